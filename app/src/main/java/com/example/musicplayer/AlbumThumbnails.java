@@ -0,0 +1,115 @@
+package com.example.musicplayer;
+
+import android.content.Context;
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.widget.ImageView;
+
+import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.ListPreloader;
+import com.bumptech.glide.RequestBuilder;
+import com.bumptech.glide.RequestManager;
+import com.bumptech.glide.integration.recyclerview.RecyclerViewPreloader;
+import com.bumptech.glide.load.DataSource;
+import com.bumptech.glide.load.DecodeFormat;
+import com.bumptech.glide.load.engine.DiskCacheStrategy;
+import com.bumptech.glide.load.engine.GlideException;
+import com.bumptech.glide.request.RequestListener;
+import com.bumptech.glide.request.target.Target;
+import com.bumptech.glide.util.FixedPreloadSizeProvider;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Row-sized album art for list rows. Every request for an album is identical (same URI, size and
+ * transformation), so all tracks of an album share one Glide memory-cache entry and one downsampled
+ * file in the disk cache, and a preloaded thumbnail is exactly the one a later bind asks for.
+ * Albums found to have no art are remembered and get the default image without a lookup.
+ */
+public class AlbumThumbnails {
+
+    private static final int MAX_PRELOAD = 24; // Rows ahead of the scroll direction to fetch art for
+
+    // Album ids with no artwork; only touched on the main thread, where Glide delivers callbacks
+    private static final Set<Long> albumsWithoutArt = new HashSet<>();
+
+    private final RequestManager requestManager;
+    private final int sizePx;
+
+    public interface SongProvider {
+        @Nullable
+        Song getSongAt(int position);
+    }
+
+    public AlbumThumbnails(Context context) {
+        this.requestManager = Glide.with(context);
+        this.sizePx = context.getResources().getDimensionPixelSize(R.dimen.album_thumbnail_size);
+    }
+
+    /** Forgets which albums lacked art, e.g. after a sync that may have added some. Main thread only. */
+    public static void forgetMissingArt() {
+        albumsWithoutArt.clear();
+    }
+
+    public void into(long albumId, ImageView imageView) {
+        if (albumsWithoutArt.contains(albumId)) {
+            requestManager.clear(imageView);
+            imageView.setImageResource(R.drawable.ic_default_album_art);
+            return;
+        }
+        request(albumId)
+                .placeholder(R.drawable.ic_default_album_art)
+                .error(R.drawable.ic_default_album_art)
+                .into(imageView);
+    }
+
+    private RequestBuilder<Drawable> request(long albumId) {
+        return requestManager
+                .load(Uri.parse(MediaScanner.albumArtUriFor(albumId)))
+                .override(sizePx)
+                .centerCrop() // Explicit, so binds into centerCrop ImageViews and preloads share a cache key
+                .format(DecodeFormat.PREFER_RGB_565) // Album art is opaque; half the bytes per cached thumbnail
+                .diskCacheStrategy(DiskCacheStrategy.RESOURCE)
+                .listener(new RequestListener<Drawable>() {
+                    @Override
+                    public boolean onLoadFailed(@Nullable GlideException e, Object model, Target<Drawable> target, boolean isFirstResource) {
+                        albumsWithoutArt.add(albumId);
+                        return false;
+                    }
+
+                    @Override
+                    public boolean onResourceReady(Drawable resource, Object model, Target<Drawable> target, DataSource dataSource, boolean isFirstResource) {
+                        return false;
+                    }
+                });
+    }
+
+    /**
+     * Returns a scroll listener that loads art for the rows about to scroll into view. Consecutive rows of
+     * the same album are requested once, so a title-sorted run of an album's tracks costs one lookup.
+     */
+    public RecyclerView.OnScrollListener createPreloader(SongProvider songProvider) {
+        ListPreloader.PreloadModelProvider<Long> modelProvider = new ListPreloader.PreloadModelProvider<Long>() {
+            @Override
+            public List<Long> getPreloadItems(int position) {
+                Song song = songProvider.getSongAt(position);
+                if (song == null || albumsWithoutArt.contains(song.getAlbumId())) return Collections.emptyList();
+                Song previous = songProvider.getSongAt(position - 1);
+                if (previous != null && previous.getAlbumId() == song.getAlbumId()) return Collections.emptyList();
+                return Collections.singletonList(song.getAlbumId());
+            }
+
+            @Override
+            public RequestBuilder<?> getPreloadRequestBuilder(Long albumId) {
+                return request(albumId);
+            }
+        };
+        return new RecyclerViewPreloader<>(requestManager, modelProvider, new FixedPreloadSizeProvider<>(sizePx, sizePx), MAX_PRELOAD);
+    }
+}
@@ -0,0 +1,223 @@
+package com.example.musicplayer;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.DisplayMetrics;
+import android.util.Log;
+import android.util.LruCache;
+
+import androidx.core.content.ContextCompat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Full-size album art for the notification, the media session and the Now Playing screen. Each album's
+ * art is read and decoded once, at the largest size requested for it at that moment, and the smaller size
+ * buckets are scaled down from that bitmap. Variants live in one byte-bounded LRU cache shared by all
+ * consumers, and concurrent requests for an album share a single decode.
+ */
+public class ArtworkBroker {
+
+    private static final String TAG = "ArtworkBroker";
+
+    public static final int SIZE_NOTIFICATION = 0;
+    public static final int SIZE_SESSION = 1;
+    public static final int SIZE_FULL = 2;
+    private static final int SESSION_SIZE_PX = 320; // Metadata bitmaps cross Binder; keep them well under its limits
+
+    private static ArtworkBroker instance;
+
+    private final Context appContext;
+    private final int[] bucketSizes = new int[3];
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> new Thread(() -> {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        runnable.run();
+    }, "ArtworkDecode"));
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // Keyed by albumId << 2 | bucket
+    private final LruCache<Long, Bitmap> cache;
+    private final Bitmap[] defaultArt = new Bitmap[3]; // Rendered once per bucket, never evicted
+    private final Set<Long> albumsWithoutArt = Collections.synchronizedSet(new HashSet<>());
+
+    // Guarded by itself; decodes queued or running, by album id
+    private final HashMap<Long, PendingDecode> pending = new HashMap<>();
+
+    public interface Callback {
+        /** Delivered on the main thread; {@code bitmap} is the default art if the album has none. */
+        void onArtworkLoaded(long albumId, Bitmap bitmap);
+    }
+
+    public static synchronized ArtworkBroker getInstance(Context context) {
+        if (instance == null) {
+            instance = new ArtworkBroker(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private ArtworkBroker(Context appContext) {
+        this.appContext = appContext;
+        Resources resources = appContext.getResources();
+        DisplayMetrics displayMetrics = resources.getDisplayMetrics();
+        bucketSizes[SIZE_NOTIFICATION] = resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_width);
+        bucketSizes[SIZE_SESSION] = SESSION_SIZE_PX;
+        bucketSizes[SIZE_FULL] = Math.min(displayMetrics.widthPixels, displayMetrics.heightPixels);
+        int maxBytes = (int) Math.min(Runtime.getRuntime().maxMemory() / 16, 24 * 1024 * 1024);
+        cache = new LruCache<Long, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(Long key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+    }
+
+    private static long key(long albumId, int bucket) {
+        return albumId << 2 | bucket;
+    }
+
+    /** Forgets which albums lacked art, e.g. after a sync that may have added some. Any thread. */
+    public void forgetMissingArt() {
+        albumsWithoutArt.clear();
+    }
+
+    /** Returns the art if it is already decoded at {@code bucket}, the default art if the album has none, else null. */
+    public Bitmap getCached(long albumId, int bucket) {
+        if (albumsWithoutArt.contains(albumId)) return getDefaultArt(bucket);
+        return cache.get(key(albumId, bucket));
+    }
+
+    /** Returns the default art rendered at {@code bucket}'s size. Main thread only. */
+    public Bitmap getDefaultArt(int bucket) {
+        if (defaultArt[bucket] == null) {
+            int size = bucketSizes[bucket];
+            Drawable drawable = ContextCompat.getDrawable(appContext, R.drawable.ic_default_album_art);
+            Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+            drawable.setBounds(0, 0, size, size);
+            drawable.draw(new Canvas(bitmap));
+            defaultArt[bucket] = bitmap;
+        }
+        return defaultArt[bucket];
+    }
+
+    /** Loads the art for {@code albumId} at {@code bucket}. Call from the main thread; the callback may run before this returns. */
+    public void load(long albumId, int bucket, Callback callback) {
+        Bitmap cached = getCached(albumId, bucket);
+        if (cached != null) {
+            callback.onArtworkLoaded(albumId, cached);
+            return;
+        }
+        getDefaultArt(bucket); // Render on the main thread so a failed decode can hand it out from anywhere
+        synchronized (pending) {
+            PendingDecode decode = pending.get(albumId);
+            if (decode != null) {
+                decode.add(bucket, callback);
+                return;
+            }
+            decode = new PendingDecode();
+            decode.add(bucket, callback);
+            pending.put(albumId, decode);
+        }
+        executor.execute(() -> decode(albumId));
+    }
+
+    private void decode(long albumId) {
+        int largestBucket;
+        synchronized (pending) {
+            largestBucket = pending.get(albumId).largestBucket;
+        }
+        Tracing.begin(Tracing.DECODE_ART);
+        try {
+            long decodeStartedAt = PlaybackMetrics.now();
+            Bitmap source = decodeSampled(albumId, bucketSizes[largestBucket]);
+            if (source != null) PlaybackMetrics.getInstance().artDecode.recordSince(decodeStartedAt); // Misses are only a failed open
+            if (source == null) {
+                albumsWithoutArt.add(albumId);
+            } else {
+                for (int bucket = largestBucket; bucket >= SIZE_NOTIFICATION; bucket--) {
+                    cache.put(key(albumId, bucket), scaleDown(source, bucketSizes[bucket]));
+                }
+            }
+        } finally {
+            Tracing.end();
+        }
+
+        PendingDecode decode;
+        synchronized (pending) {
+            decode = pending.remove(albumId);
+        }
+        mainHandler.post(() -> {
+            for (int i = 0; i < decode.buckets.size(); i++) {
+                int bucket = decode.buckets.get(i);
+                Callback callback = decode.callbacks.get(i);
+                Bitmap bitmap = getCached(albumId, bucket);
+                if (bitmap != null) {
+                    callback.onArtworkLoaded(albumId, bitmap);
+                } else {
+                    load(albumId, bucket, callback); // Asked for a larger size after the decode started, or evicted already
+                }
+            }
+        });
+    }
+
+    // Reads the bounds first so the full-resolution image is never allocated, only a power-of-two subsample of it.
+    private Bitmap decodeSampled(long albumId, int targetSize) {
+        Uri uri = Uri.parse(MediaScanner.albumArtUriFor(albumId));
+        try {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            try (InputStream in = appContext.getContentResolver().openInputStream(uri)) {
+                if (in == null) return null;
+                BitmapFactory.decodeStream(in, null, options);
+            }
+            if (options.outWidth <= 0 || options.outHeight <= 0) return null;
+            int sampleSize = 1;
+            while (Math.min(options.outWidth, options.outHeight) / (sampleSize * 2) >= targetSize) {
+                sampleSize *= 2;
+            }
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = sampleSize;
+            try (InputStream in = appContext.getContentResolver().openInputStream(uri)) {
+                if (in == null) return null;
+                return BitmapFactory.decodeStream(in, null, options);
+            }
+        } catch (IOException | SecurityException e) {
+            Log.d(TAG, "No album art for album " + albumId + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static Bitmap scaleDown(Bitmap source, int targetSize) {
+        int shortSide = Math.min(source.getWidth(), source.getHeight());
+        if (shortSide <= targetSize) return source;
+        float scale = (float) targetSize / shortSide;
+        return Bitmap.createScaledBitmap(source, Math.round(source.getWidth() * scale), Math.round(source.getHeight() * scale), true);
+    }
+
+    private static class PendingDecode {
+        int largestBucket = SIZE_NOTIFICATION;
+        final List<Integer> buckets = new ArrayList<>();
+        final List<Callback> callbacks = new ArrayList<>();
+
+        void add(int bucket, Callback callback) {
+            largestBucket = Math.max(largestBucket, bucket);
+            buckets.add(bucket);
+            callbacks.add(callback);
+        }
+    }
+}
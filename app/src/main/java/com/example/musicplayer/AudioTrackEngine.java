@@ -0,0 +1,656 @@
+package com.example.musicplayer;
+
+import android.content.Context;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link PlaybackEngine} that decodes with MediaExtractor and MediaCodec itself and renders to an
+ * AudioTrack, instead of leaving both to MediaPlayer.
+ *
+ * Each track gets a decode thread and an urgent-audio render thread joined by a PCM ring buffer that is
+ * allocated once per track; the steady state allocates nothing per buffer. Prepare only waits for the
+ * first {@link #PREFILL_MS} of audio, and the render thread primes the paused AudioTrack with it, so
+ * start() is heard almost at once. A chained next engine is primed the same way and started on the
+ * render thread the moment this one plays out.
+ *
+ * Time to first sample and underruns (ring empty while playing, plus AudioTrack's own count on API 24+)
+ * are logged when a track ends and available from the getters.
+ */
+public class AudioTrackEngine implements PlaybackEngine {
+
+    private static final String TAG = "AudioTrackEngine";
+    public static final String PREF_ENGINE = "audio_engine"; // In CrossfadeController.PREFS_NAME; true selects this engine
+
+    private static final long DEQUEUE_TIMEOUT_US = 10000;
+    private static final int RING_MS = 500;     // Decoded audio kept ahead of the AudioTrack
+    private static final int PREFILL_MS = 100;  // Decoded before reporting prepared
+    private static final int CHUNK_MS = 20;     // Largest single write, bounds how long a write can block
+    private static final int MEDIA_ERROR_UNKNOWN = 1;
+    private static final int MEDIA_ERROR_IO = -1004;
+
+    private final Handler callbackHandler;
+    private Listener listener;
+    private String path;
+    private volatile Session session; // One per prepared data source; null while idle
+    private volatile float volume = 1f;
+    private volatile float gain = 1f;
+    private volatile boolean looping;
+    private volatile AudioTrackEngine next;
+
+    private volatile long prepareMs = -1;
+    private volatile long timeToFirstSampleMs = -1;
+    private volatile int underrunCount;
+
+    public AudioTrackEngine() {
+        Looper looper = Looper.myLooper();
+        callbackHandler = new Handler(looper != null ? looper : Looper.getMainLooper());
+    }
+
+    public static boolean isSelected(Context context) {
+        return context.getSharedPreferences(CrossfadeController.PREFS_NAME, Context.MODE_PRIVATE).getBoolean(PREF_ENGINE, false);
+    }
+
+    public static void setSelected(Context context, boolean selected) {
+        context.getSharedPreferences(CrossfadeController.PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putBoolean(PREF_ENGINE, selected)
+                .apply();
+    }
+
+    /** From start() to the first PCM written while playing, for the current track; -1 until then. */
+    public long getTimeToFirstSampleMs() {
+        return timeToFirstSampleMs;
+    }
+
+    /** From prepareAsync() to onPrepared, for the current track; -1 until then. */
+    public long getPrepareMs() {
+        return prepareMs;
+    }
+
+    public int getUnderrunCount() {
+        Session current = session;
+        return underrunCount + (current != null ? current.trackUnderruns() : 0);
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void setDataSource(String path) throws IOException {
+        if (this.path != null) throw new IllegalStateException("setDataSource called twice without reset");
+        this.path = path;
+    }
+
+    @Override
+    public void prepareAsync() {
+        if (path == null) throw new IllegalStateException("prepareAsync called without a data source");
+        if (session != null) throw new IllegalStateException("prepareAsync called while prepared");
+        prepareMs = -1;
+        timeToFirstSampleMs = -1;
+        underrunCount = 0;
+        session = new Session(path);
+        session.begin();
+    }
+
+    @Override
+    public void start() {
+        Session current = requirePrepared("start");
+        current.play();
+    }
+
+    @Override
+    public void pause() {
+        requirePrepared("pause").pause();
+    }
+
+    @Override
+    public void stop() {
+        shutdownSession(); // Like MediaPlayer, the data source stays and prepareAsync() may follow
+    }
+
+    @Override
+    public void reset() {
+        shutdownSession();
+        path = null;
+        looping = false;
+        volume = 1f;
+        gain = 1f;
+        next = null;
+    }
+
+    @Override
+    public void release() {
+        reset();
+        listener = null;
+    }
+
+    @Override
+    public void seekTo(int positionMs) {
+        requirePrepared("seekTo").seek(positionMs);
+    }
+
+    @Override
+    public int getCurrentPosition() {
+        Session current = session;
+        return current != null ? current.positionMs() : 0;
+    }
+
+    @Override
+    public int getDuration() {
+        return (int) (requirePrepared("getDuration").durationUs / 1000);
+    }
+
+    @Override
+    public boolean isPlaying() {
+        Session current = session;
+        return current != null && current.isPlaying();
+    }
+
+    @Override
+    public void setLooping(boolean looping) {
+        this.looping = looping;
+    }
+
+    @Override
+    public void setVolume(float volume) {
+        this.volume = volume;
+        Session current = session;
+        if (current != null) current.applyVolume();
+    }
+
+    @Override
+    public void setGain(float gain) {
+        this.gain = gain;
+        Session current = session;
+        if (current != null) current.applyVolume();
+    }
+
+    @Override
+    public void setNextEngine(PlaybackEngine next) {
+        AudioTrackEngine engine = (AudioTrackEngine) next;
+        if (engine != null && (engine.session == null || !engine.session.prepared)) {
+            throw new IllegalStateException("Next engine must be prepared");
+        }
+        this.next = engine;
+    }
+
+    private Session requirePrepared(String call) {
+        Session current = session;
+        if (current == null || !current.prepared) throw new IllegalStateException(call + " called before prepared");
+        return current;
+    }
+
+    private void shutdownSession() {
+        Session current = session;
+        session = null;
+        if (current != null) {
+            underrunCount += current.trackUnderruns();
+            current.quit();
+        }
+    }
+
+    // Posts a callback that is dropped if the session has been replaced or shut down by then.
+    private void postCallback(Session from, Runnable callback) {
+        callbackHandler.post(() -> {
+            if (session == from && listener != null) callback.run();
+        });
+    }
+
+    /**
+     * Decoder, renderer and ring buffer for one data source. Byte counters only grow; the ring index is
+     * the counter modulo the capacity.
+     */
+    private final class Session {
+        final String path;
+        final Object lock = new Object();
+        final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo(); // Decode thread only
+        final long prepareStartNanos = System.nanoTime();
+
+        MediaExtractor extractor; // Decode thread only
+        MediaCodec codec;         // Decode thread only
+        boolean inputEos;         // Decode thread only
+        volatile boolean prepared;
+        volatile long durationUs;
+
+        // Guarded by lock
+        AudioTrack track;
+        byte[] ring;
+        int capacity;
+        int frameBytes;
+        int sampleRate;
+        int trackBufferBytes;
+        int chunkBytes;
+        long writePos;
+        long readPos;
+        long framesWritten;       // To the AudioTrack since its last flush
+        long baseFrames;          // Track position of the first frame after that flush
+        int flushGeneration;      // Bumped by a seek; a write made across it does not advance readPos
+        boolean flushTrack;
+        long seekRequestUs = -1;
+        int pendingSeekMs = -1;
+        int loops;
+        boolean decodeDone;
+        boolean playing;
+        boolean completed;
+        boolean quit;
+        int threadsAlive = 2;
+        long startNanos;
+        boolean firstSampleWritten;
+
+        Session(String path) {
+            this.path = path;
+        }
+
+        void begin() {
+            Thread decodeThread = new Thread(this::decodeLoop, "AudioDecode");
+            Thread renderThread = new Thread(this::renderLoop, "AudioRender");
+            decodeThread.start();
+            renderThread.start();
+        }
+
+        void play() {
+            synchronized (lock) {
+                if (playing) return;
+                if (completed) {
+                    completed = false;
+                    requestSeekLocked(0); // Like MediaPlayer, start() after completion plays from the top
+                }
+                playing = true;
+                startNanos = System.nanoTime();
+                firstSampleWritten = false;
+                if (track != null) track.play();
+                lock.notifyAll();
+            }
+        }
+
+        void pause() {
+            synchronized (lock) {
+                playing = false;
+                if (track != null) track.pause();
+            }
+        }
+
+        boolean isPlaying() {
+            synchronized (lock) {
+                return playing;
+            }
+        }
+
+        void seek(int positionMs) {
+            synchronized (lock) {
+                completed = false;
+                requestSeekLocked(positionMs);
+            }
+        }
+
+        private void requestSeekLocked(int positionMs) {
+            seekRequestUs = positionMs * 1000L;
+            pendingSeekMs = positionMs;
+            lock.notifyAll();
+        }
+
+        int positionMs() {
+            synchronized (lock) {
+                if (pendingSeekMs >= 0) return pendingSeekMs;
+                if (track == null || sampleRate == 0) return 0;
+                long frames = baseFrames + (track.getPlaybackHeadPosition() & 0xFFFFFFFFL);
+                long trackFrames = durationUs * sampleRate / 1000000;
+                if (loops > 0 && trackFrames > 0) frames %= trackFrames;
+                return (int) (frames * 1000 / sampleRate);
+            }
+        }
+
+        void applyVolume() {
+            synchronized (lock) {
+                if (track != null) track.setVolume(volume * gain);
+            }
+        }
+
+        int trackUnderruns() {
+            synchronized (lock) {
+                return track != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N ? track.getUnderrunCount() : 0;
+            }
+        }
+
+        void quit() {
+            synchronized (lock) {
+                quit = true;
+                playing = false;
+                if (track != null) {
+                    try {
+                        track.pause(); // Also interrupts a write blocked on a full track
+                        track.flush();
+                    } catch (IllegalStateException e) {
+                        Log.w(TAG, "Error stopping track: " + e.getMessage());
+                    }
+                }
+                lock.notifyAll();
+            }
+        }
+
+        // ---- Decode thread ----
+
+        private void decodeLoop() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+            try {
+                openDecoder();
+                while (true) {
+                    long seekUs;
+                    synchronized (lock) {
+                        while (!quit && decodeDone && seekRequestUs < 0) {
+                            lock.wait();
+                        }
+                        if (quit) break;
+                        seekUs = seekRequestUs;
+                        seekRequestUs = -1;
+                    }
+                    if (seekUs >= 0) {
+                        seekDecoder(seekUs, true);
+                    }
+                    feedInput();
+                    drainOutput();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Decoding " + path + " failed: " + e.getMessage());
+                postCallback(this, () -> listener.onError(AudioTrackEngine.this, MEDIA_ERROR_UNKNOWN,
+                        e instanceof IOException ? MEDIA_ERROR_IO : 0));
+            } finally {
+                if (codec != null) {
+                    try {
+                        codec.stop();
+                    } catch (IllegalStateException e) {
+                        Log.w(TAG, "Error stopping codec: " + e.getMessage());
+                    }
+                    codec.release();
+                }
+                if (extractor != null) extractor.release();
+                threadExited();
+            }
+        }
+
+        private void openDecoder() throws IOException {
+            extractor = new MediaExtractor();
+            extractor.setDataSource(path);
+            for (int i = 0; i < extractor.getTrackCount(); i++) {
+                MediaFormat format = extractor.getTrackFormat(i);
+                String mime = format.getString(MediaFormat.KEY_MIME);
+                if (mime != null && mime.startsWith("audio/")) {
+                    extractor.selectTrack(i);
+                    durationUs = format.containsKey(MediaFormat.KEY_DURATION) ? format.getLong(MediaFormat.KEY_DURATION) : 0;
+                    codec = MediaCodec.createDecoderByType(mime);
+                    codec.configure(format, null, null, 0);
+                    codec.start();
+                    return;
+                }
+            }
+            throw new IOException("No audio track in " + path);
+        }
+
+        private void seekDecoder(long positionUs, boolean flushOutput) {
+            extractor.seekTo(positionUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            codec.flush();
+            inputEos = false;
+            synchronized (lock) {
+                decodeDone = false;
+                if (flushOutput) {
+                    readPos = writePos; // Drop decoded audio from before the seek
+                    flushGeneration++;
+                    flushTrack = true;
+                    baseFrames = sampleRate > 0 ? positionUs * sampleRate / 1000000 : 0;
+                    loops = 0;
+                }
+                lock.notifyAll();
+            }
+        }
+
+        private void feedInput() {
+            if (inputEos) return;
+            int index = codec.dequeueInputBuffer(0);
+            if (index < 0) return;
+            ByteBuffer buffer = codec.getInputBuffer(index);
+            int size = extractor.readSampleData(buffer, 0);
+            if (size < 0) {
+                codec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                inputEos = true;
+            } else {
+                codec.queueInputBuffer(index, 0, size, extractor.getSampleTime(), 0);
+                extractor.advance();
+            }
+        }
+
+        private void drainOutput() throws InterruptedException {
+            int index = codec.dequeueOutputBuffer(info, DEQUEUE_TIMEOUT_US);
+            if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                onOutputFormat(codec.getOutputFormat());
+                return;
+            }
+            if (index < 0) return;
+            if (info.size > 0) {
+                ByteBuffer buffer = codec.getOutputBuffer(index);
+                buffer.position(info.offset);
+                buffer.limit(info.offset + info.size);
+                writeToRing(buffer);
+            }
+            codec.releaseOutputBuffer(index, false);
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                if (looping) {
+                    seekDecoder(0, false); // Keep what is buffered; the next loop follows it seamlessly
+                    synchronized (lock) {
+                        loops++;
+                    }
+                    return;
+                }
+                synchronized (lock) {
+                    decodeDone = true;
+                    lock.notifyAll();
+                }
+                reportPreparedIfReady();
+            }
+        }
+
+        private void onOutputFormat(MediaFormat format) {
+            int rate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            int channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+            synchronized (lock) {
+                if (track != null) {
+                    if (rate != sampleRate || channels * 2 != frameBytes) {
+                        throw new IllegalStateException("Output format changed mid-stream to " + rate + " Hz, " + channels + " ch");
+                    }
+                    return;
+                }
+                if (quit) return;
+                if (channels < 1 || channels > 2) throw new IllegalStateException("Unsupported channel count " + channels);
+                int channelMask = channels == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
+                sampleRate = rate;
+                frameBytes = channels * 2;
+                trackBufferBytes = Math.max(AudioTrack.getMinBufferSize(rate, channelMask, AudioFormat.ENCODING_PCM_16BIT),
+                        bytesFor(CHUNK_MS)) * 2;
+                capacity = bytesFor(RING_MS);
+                chunkBytes = bytesFor(CHUNK_MS);
+                ring = new byte[capacity];
+                track = new AudioTrack(MediaPlayerEngine.MUSIC_ATTRIBUTES,
+                        new AudioFormat.Builder()
+                                .setSampleRate(rate)
+                                .setChannelMask(channelMask)
+                                .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                                .build(),
+                        trackBufferBytes, AudioTrack.MODE_STREAM, AudioManager.AUDIO_SESSION_ID_GENERATE);
+                track.setVolume(volume * gain);
+                if (playing) track.play();
+                lock.notifyAll();
+            }
+        }
+
+        private int bytesFor(int ms) {
+            return (int) ((long) sampleRate * ms / 1000) * frameBytes;
+        }
+
+        // Copies decoded PCM into the ring, waiting for the renderer to make room; returns early on quit or seek.
+        private void writeToRing(ByteBuffer buffer) throws InterruptedException {
+            while (buffer.hasRemaining()) {
+                int ringIndex;
+                int length;
+                synchronized (lock) {
+                    while (!quit && seekRequestUs < 0 && writePos - readPos == capacity) {
+                        lock.wait();
+                    }
+                    if (quit || seekRequestUs >= 0) return;
+                    ringIndex = (int) (writePos % capacity);
+                    length = Math.min(buffer.remaining(), Math.min(capacity - (int) (writePos - readPos), capacity - ringIndex));
+                }
+                buffer.get(ring, ringIndex, length);
+                synchronized (lock) {
+                    writePos += length;
+                    lock.notifyAll();
+                }
+                reportPreparedIfReady();
+            }
+        }
+
+        private void reportPreparedIfReady() {
+            synchronized (lock) {
+                if (prepared || track == null || (writePos < bytesFor(PREFILL_MS) && !decodeDone)) return;
+                prepared = true;
+            }
+            prepareMs = (System.nanoTime() - prepareStartNanos) / 1000000;
+            postCallback(this, () -> listener.onPrepared(AudioTrackEngine.this));
+        }
+
+        // ---- Render thread ----
+
+        private void renderLoop() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+            try {
+                while (true) {
+                    boolean starved = false;
+                    AudioTrack target;
+                    int offset;
+                    int length;
+                    int generation;
+                    synchronized (lock) {
+                        while (!quit && !canRenderLocked()) {
+                            if (playing && firstSampleWritten && writePos == readPos && !decodeDone) {
+                                starved = true; // Playing with nothing decoded: counted once per episode below
+                            }
+                            lock.wait();
+                        }
+                        if (quit) return;
+                        if (flushTrack) {
+                            flushTrack = false;
+                            track.pause();
+                            track.flush(); // Resets the playback head, so position restarts from baseFrames
+                            framesWritten = 0;
+                            pendingSeekMs = -1;
+                            if (playing) track.play();
+                        }
+                        if (writePos == readPos) {
+                            // Decoding is done and everything is written: play out, then complete
+                            target = null;
+                            offset = 0;
+                            length = 0;
+                        } else {
+                            int ringIndex = (int) (readPos % capacity);
+                            target = track;
+                            offset = ringIndex;
+                            length = (int) Math.min(Math.min(writePos - readPos, capacity - ringIndex), chunkBytes);
+                            if (!playing) length = (int) Math.min(length, trackBufferBytes - framesWritten * frameBytes);
+                        }
+                        generation = flushGeneration;
+                    }
+                    if (starved) underrunCount++;
+                    if (target == null) {
+                        if (playOut(generation)) complete();
+                        continue;
+                    }
+                    int written = target.write(ring, offset, length);
+                    if (written < 0) throw new IllegalStateException("AudioTrack.write failed: " + written);
+                    synchronized (lock) {
+                        if (generation == flushGeneration) {
+                            readPos += written;
+                            framesWritten += written / frameBytes;
+                        }
+                        if (playing && !firstSampleWritten && written > 0) {
+                            firstSampleWritten = true;
+                            timeToFirstSampleMs = (System.nanoTime() - startNanos) / 1000000;
+                        }
+                        lock.notifyAll(); // Room in the ring for the decoder
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Rendering " + path + " failed: " + e.getMessage());
+                postCallback(this, () -> listener.onError(AudioTrackEngine.this, MEDIA_ERROR_UNKNOWN, 0));
+            } finally {
+                threadExited();
+            }
+        }
+
+        // Something to do: a flush, PCM to write (while playing, or to prime the paused track), or a finished stream to play out.
+        private boolean canRenderLocked() {
+            if (track == null) return false;
+            if (flushTrack) return true;
+            if (completed) return false;
+            if (writePos == readPos) return decodeDone && playing;
+            return playing || framesWritten * frameBytes < trackBufferBytes;
+        }
+
+        // Waits until the AudioTrack has played everything written to it; false if a seek or quit intervened.
+        private boolean playOut(int generation) throws InterruptedException {
+            while (true) {
+                synchronized (lock) {
+                    if (quit || generation != flushGeneration || flushTrack) return false;
+                    if ((track.getPlaybackHeadPosition() & 0xFFFFFFFFL) >= framesWritten) {
+                        completed = true;
+                        playing = false;
+                        return true;
+                    }
+                    lock.wait(5); // Polls the head; AudioTrack has no callback-free end-of-stream signal
+                }
+            }
+        }
+
+        private void complete() {
+            AudioTrackEngine chained = next;
+            next = null;
+            if (chained != null) {
+                Session nextSession = chained.session;
+                if (nextSession != null && nextSession.prepared) {
+                    nextSession.play(); // Already primed, so audio follows within a buffer callback
+                }
+            }
+            Log.d(TAG, "Played " + path + ": prepare " + prepareMs + " ms, first sample " + timeToFirstSampleMs
+                    + " ms, underruns " + getUnderrunCount());
+            postCallback(this, () -> listener.onCompletion(AudioTrackEngine.this));
+        }
+
+        private void threadExited() {
+            AudioTrack finished = null;
+            synchronized (lock) {
+                quit = true; // If one thread fails, the other stops too
+                lock.notifyAll();
+                if (--threadsAlive == 0) {
+                    finished = track;
+                    track = null;
+                }
+            }
+            if (finished != null) finished.release();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.example.musicplayer;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.util.Log;
+import android.widget.Toast;
+
+import androidx.annotation.Nullable;
+import androidx.appcompat.app.AlertDialog;
+import androidx.appcompat.app.AppCompatActivity;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Lists all albums or all artists, or, when started with a group key, the tracks of one album or artist.
+ * Both come from MusicLibrary's precomputed aggregates, so opening a group never walks the library.
+ */
+public class BrowseActivity extends AppCompatActivity implements GroupAdapter.OnGroupClickListener, SongAdapter.OnSongClickListener {
+
+    public static final String EXTRA_GROUP_TYPE = "com.example.musicplayer.EXTRA_GROUP_TYPE";
+    public static final String EXTRA_GROUP_KEY = "com.example.musicplayer.EXTRA_GROUP_KEY";
+    private static final String TAG = "BrowseActivity";
+
+    private int groupType;
+    private String groupKey;
+    private List<Song> groupTracks = new ArrayList<>();
+    private SongAdapter songAdapter;
+    private GroupAdapter groupAdapter;
+
+    private PlaybackService playbackService;
+    private boolean isServiceBound = false;
+
+    private ServiceConnection serviceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            PlaybackService.LocalBinder binder = (PlaybackService.LocalBinder) service;
+            playbackService = binder.getService();
+            isServiceBound = true;
+            Log.d(TAG, "PlaybackService connected");
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            isServiceBound = false;
+            playbackService = null;
+            Log.d(TAG, "PlaybackService disconnected");
+        }
+    };
+
+    public static Intent newIntent(Context context, int groupType, @Nullable String groupKey) {
+        return new Intent(context, BrowseActivity.class)
+                .putExtra(EXTRA_GROUP_TYPE, groupType)
+                .putExtra(EXTRA_GROUP_KEY, groupKey);
+    }
+
+    @Override
+    protected void onCreate(@Nullable Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_browse);
+
+        groupType = getIntent().getIntExtra(EXTRA_GROUP_TYPE, LibraryGroup.TYPE_ALBUM);
+        groupKey = getIntent().getStringExtra(EXTRA_GROUP_KEY);
+
+        RecyclerView recyclerView = findViewById(R.id.recyclerViewBrowse);
+        recyclerView.setLayoutManager(new LinearLayoutManager(this));
+        MusicLibrary musicLibrary = MusicLibrary.getInstance(this);
+
+        if (groupKey == null) {
+            setTitle(groupType == LibraryGroup.TYPE_ALBUM ? R.string.action_albums : R.string.action_artists);
+            groupAdapter = new GroupAdapter(this, this);
+            recyclerView.setAdapter(groupAdapter);
+            musicLibrary.loadGroups(groupType, groups -> {
+                if (!isDestroyed()) groupAdapter.setGroups(groups);
+            });
+        } else {
+            songAdapter = new SongAdapter(this, groupTracks, this);
+            recyclerView.setAdapter(songAdapter);
+            songAdapter.attachArtPreloader(recyclerView);
+            musicLibrary.loadGroup(groupType, groupKey, group -> {
+                if (isDestroyed()) return;
+                if (group == null) {
+                    Toast.makeText(this, "This item is no longer in the library.", Toast.LENGTH_SHORT).show();
+                    finish();
+                    return;
+                }
+                setTitle(group.name);
+                groupTracks = group.tracks;
+                songAdapter.setSongs(groupTracks);
+            });
+        }
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        if (groupKey != null) {
+            bindService(new Intent(this, PlaybackService.class), serviceConnection, Context.BIND_AUTO_CREATE);
+        }
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        if (isServiceBound) {
+            unbindService(serviceConnection);
+            isServiceBound = false;
+        }
+    }
+
+    @Override
+    public void onGroupClick(LibraryGroup group) {
+        startActivity(newIntent(this, group.type, group.key));
+    }
+
+    @Override
+    public void onSongClick(Song song, int position) {
+        if (isServiceBound && playbackService != null) {
+            Log.d(TAG, "Song clicked: " + song.getTitle() + " at position " + position);
+            playbackService.setQueue(groupTracks, position); // Group track lists are unmodifiable
+            startActivity(new Intent(this, NowPlayingActivity.class));
+        } else {
+            Log.e(TAG, "Service not bound, cannot play song: " + song.getTitle());
+            Toast.makeText(this, "Playback service not ready. Please try again.", Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    @Override
+    public void onSongLongClick(Song song, int position) {
+        if (!isServiceBound || playbackService == null) return;
+        String[] actions = {getString(R.string.action_play_next), getString(R.string.action_add_to_queue)};
+        new AlertDialog.Builder(this)
+                .setTitle(song.getTitle())
+                .setItems(actions, (dialog, which) -> {
+                    if (which == 0) {
+                        playbackService.playNext(song);
+                    } else {
+                        playbackService.enqueue(Collections.singletonList(song));
+                    }
+                })
+                .show();
+    }
+}
@@ -0,0 +1,159 @@
+package com.example.musicplayer;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Drives the volume ramps of a crossfade between two playing engines on its own audio-priority
+ * thread. Ticks are scheduled on an absolute timeline and each tick derives its step from the clock, so a
+ * late tick catches up instead of stretching the fade. The equal-power curve is precomputed and a tick
+ * allocates nothing.
+ */
+public class CrossfadeController {
+
+    private static final String TAG = "CrossfadeController";
+    public static final String PREFS_NAME = "playback";
+    public static final String PREF_CROSSFADE_SECONDS = "crossfade_seconds";
+    public static final int MAX_CROSSFADE_SECONDS = 12;
+
+    private static final int CURVE_STEPS = 256;
+    private static final long TICK_MS = 16;
+    // sin over a quarter period; read backwards it is the matching cos, so in^2 + out^2 stays 1
+    private static final float[] FADE_IN = new float[CURVE_STEPS + 1];
+
+    static {
+        for (int i = 0; i <= CURVE_STEPS; i++) {
+            FADE_IN[i] = (float) Math.sin(i * Math.PI / 2 / CURVE_STEPS);
+        }
+    }
+
+    public interface Listener {
+        /** Callback looper. The fade completed; {@code outgoing} is still in a playable state and can be reset. */
+        void onCrossfadeFinished(PlaybackEngine outgoing);
+    }
+
+    private final Listener listener;
+    private final HandlerThread thread = new HandlerThread("Crossfade", Process.THREAD_PRIORITY_AUDIO);
+    private final Handler handler;
+    private final Handler callbackHandler;
+    private final Runnable tickRunnable = this::tick;
+    private final Runnable finishedRunnable = this::deliverFinished;
+
+    private final Object lock = new Object();
+    // Guarded by lock
+    private PlaybackEngine outgoing;
+    private PlaybackEngine incoming;
+    private PlaybackEngine finishedOutgoing;
+    private long startUptime;
+    private long durationMs;
+    private int tickCount;
+
+    /** {@code listener} is called on {@code callbackLooper}, which must be the thread that drives this controller. */
+    public CrossfadeController(Listener listener, Looper callbackLooper) {
+        this.listener = listener;
+        this.callbackHandler = new Handler(callbackLooper);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    public static int getOverlapSeconds(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        return Math.max(0, Math.min(MAX_CROSSFADE_SECONDS, prefs.getInt(PREF_CROSSFADE_SECONDS, 0)));
+    }
+
+    public static void setOverlapSeconds(Context context, int seconds) {
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putInt(PREF_CROSSFADE_SECONDS, Math.max(0, Math.min(MAX_CROSSFADE_SECONDS, seconds)))
+                .apply();
+    }
+
+    /** Fades {@code from} out and {@code to} in over {@code fadeMs}. Both must already be playing. Callback looper thread. */
+    public void start(PlaybackEngine from, PlaybackEngine to, long fadeMs) {
+        synchronized (lock) {
+            outgoing = from;
+            incoming = to;
+            finishedOutgoing = null;
+            durationMs = Math.max(1, fadeMs);
+            startUptime = SystemClock.uptimeMillis();
+            tickCount = 0;
+        }
+        handler.removeCallbacks(tickRunnable);
+        handler.post(tickRunnable);
+        Log.d(TAG, "Crossfade started over " + fadeMs + " ms");
+    }
+
+    public boolean isFading() {
+        synchronized (lock) {
+            return outgoing != null || finishedOutgoing != null;
+        }
+    }
+
+    /**
+     * Ends a running fade at once, with the incoming player at full volume. Returns the outgoing player
+     * for the caller to stop, or null if no fade was running. Callback looper thread.
+     */
+    public PlaybackEngine cancel() {
+        handler.removeCallbacks(tickRunnable);
+        synchronized (lock) {
+            PlaybackEngine from = outgoing != null ? outgoing : finishedOutgoing;
+            if (incoming != null) {
+                try {
+                    incoming.setVolume(1f);
+                } catch (IllegalStateException e) {
+                    Log.w(TAG, "Could not restore incoming volume: " + e.getMessage());
+                }
+            }
+            outgoing = null;
+            incoming = null;
+            finishedOutgoing = null;
+            return from;
+        }
+    }
+
+    public void release() {
+        cancel();
+        thread.quitSafely();
+    }
+
+    private void tick() {
+        synchronized (lock) {
+            if (outgoing == null) return;
+            long elapsed = SystemClock.uptimeMillis() - startUptime;
+            int step = elapsed >= durationMs ? CURVE_STEPS : (int) (elapsed * CURVE_STEPS / durationMs);
+            try {
+                incoming.setVolume(FADE_IN[step]);
+                outgoing.setVolume(FADE_IN[CURVE_STEPS - step]);
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "Player left a playable state mid-fade, finishing: " + e.getMessage());
+                step = CURVE_STEPS;
+            }
+            if (step == CURVE_STEPS) {
+                finishedOutgoing = outgoing;
+                outgoing = null;
+                incoming = null;
+                callbackHandler.post(finishedRunnable);
+                return;
+            }
+            tickCount++;
+            handler.postAtTime(tickRunnable, startUptime + tickCount * TICK_MS);
+        }
+    }
+
+    private void deliverFinished() {
+        PlaybackEngine from;
+        synchronized (lock) {
+            from = finishedOutgoing;
+            finishedOutgoing = null;
+        }
+        if (from != null) {
+            Log.d(TAG, "Crossfade finished");
+            listener.onCrossfadeFinished(from);
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package com.example.musicplayer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Deterministic {@link PlaybackEngine} for plain-JVM tests and benchmarks of the queue and transition
+ * paths. Nothing happens until the shared {@link Clock} is advanced: prepares complete after a fixed
+ * latency, tracks end after the duration registered for their path, and chaining, looping and errors
+ * follow the MediaPlayer state machine. Every start is logged with its virtual time, so the gap between
+ * one track ending and the next starting can be measured exactly.
+ *
+ * Uses no Android classes. Not thread-safe; drive it from one thread.
+ */
+public class FakePlaybackEngine implements PlaybackEngine {
+
+    public static final int MEDIA_ERROR_UNKNOWN = 1; // Same codes as MediaPlayer
+    public static final int MEDIA_ERROR_IO = -1004;
+
+    private enum State { IDLE, INITIALIZED, PREPARING, PREPARED, STARTED, PAUSED, COMPLETED, STOPPED, ERROR, RELEASED }
+
+    /** Virtual time shared by all engines of one {@link Environment}. */
+    public static final class Clock {
+        private long nowMs;
+        private long sequence; // Keeps events at the same time in scheduling order
+        private final PriorityQueue<Event> events = new PriorityQueue<>();
+
+        public long now() {
+            return nowMs;
+        }
+
+        void schedule(long delayMs, Runnable action) {
+            events.add(new Event(nowMs + Math.max(0, delayMs), sequence++, action));
+        }
+
+        /** Moves time forward by {@code ms}, running each due event at its own timestamp. */
+        public void advanceBy(long ms) {
+            long target = nowMs + ms;
+            while (!events.isEmpty() && events.peek().atMs <= target) {
+                Event event = events.poll();
+                nowMs = event.atMs;
+                event.action.run();
+            }
+            nowMs = target;
+        }
+
+        private static final class Event implements Comparable<Event> {
+            final long atMs;
+            final long sequence;
+            final Runnable action;
+
+            Event(long atMs, long sequence, Runnable action) {
+                this.atMs = atMs;
+                this.sequence = sequence;
+                this.action = action;
+            }
+
+            @Override
+            public int compareTo(Event other) {
+                if (atMs != other.atMs) return atMs < other.atMs ? -1 : 1;
+                return Long.compare(sequence, other.sequence);
+            }
+        }
+    }
+
+    /** One start of playback: a track began producing audio at {@code atMs}. */
+    public static final class Start {
+        public final String path;
+        public final long atMs;
+        public final boolean chained; // Started by the engine before it, not by start()
+        public final float gain;      // Loudness gain in effect when the track began
+
+        Start(String path, long atMs, boolean chained, float gain) {
+            this.path = path;
+            this.atMs = atMs;
+            this.chained = chained;
+            this.gain = gain;
+        }
+    }
+
+    /** The tracks, latencies and clock the engines see; doubles as their factory. */
+    public static final class Environment implements PlaybackEngine.Factory {
+        public final Clock clock = new Clock();
+        private final Map<String, Integer> durations = new HashMap<>();
+        private final Set<String> failingPaths = new HashSet<>();
+        private final List<Start> starts = new ArrayList<>();
+        private long prepareLatencyMs = 20;
+
+        public Environment addTrack(String path, int durationMs) {
+            durations.put(path, durationMs);
+            return this;
+        }
+
+        /** Prepares of {@code path} fail with {@link #MEDIA_ERROR_IO} instead of completing. */
+        public Environment failOnPrepare(String path) {
+            failingPaths.add(path);
+            return this;
+        }
+
+        public Environment setPrepareLatency(long ms) {
+            prepareLatencyMs = ms;
+            return this;
+        }
+
+        public List<Start> getStarts() {
+            return Collections.unmodifiableList(starts);
+        }
+
+        @Override
+        public PlaybackEngine create() {
+            return new FakePlaybackEngine(this);
+        }
+    }
+
+    private final Environment environment;
+    private Listener listener;
+    private State state = State.IDLE;
+    private int epoch; // Bumped to invalidate scheduled callbacks when the state they expect is left
+    private String path;
+    private int durationMs;
+    private int basePositionMs;  // Position when last started, paused or seeked
+    private long startedAtMs;    // Clock time of that start, while STARTED
+    private boolean looping;
+    private volatile float volume = 1f;
+    private volatile float gain = 1f;
+    private FakePlaybackEngine next;
+
+    private FakePlaybackEngine(Environment environment) {
+        this.environment = environment;
+    }
+
+    public float getVolume() {
+        return volume;
+    }
+
+    public float getGain() {
+        return gain;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void setDataSource(String path) throws IOException {
+        require(state == State.IDLE, "setDataSource");
+        Integer duration = environment.durations.get(path);
+        if (duration == null) throw new IOException("No such track: " + path);
+        this.path = path;
+        this.durationMs = duration;
+        state = State.INITIALIZED;
+    }
+
+    @Override
+    public void prepareAsync() {
+        require(state == State.INITIALIZED || state == State.STOPPED, "prepareAsync");
+        state = State.PREPARING;
+        int expected = ++epoch;
+        environment.clock.schedule(environment.prepareLatencyMs, () -> {
+            if (epoch != expected) return;
+            if (environment.failingPaths.contains(path)) {
+                fail(MEDIA_ERROR_IO);
+                return;
+            }
+            state = State.PREPARED;
+            basePositionMs = 0;
+            if (listener != null) listener.onPrepared(this);
+        });
+    }
+
+    @Override
+    public void start() {
+        require(state == State.PREPARED || state == State.STARTED || state == State.PAUSED || state == State.COMPLETED, "start");
+        if (state == State.STARTED) return;
+        if (state == State.COMPLETED) basePositionMs = 0;
+        environment.starts.add(new Start(path, environment.clock.now(), false, gain));
+        begin();
+    }
+
+    @Override
+    public void pause() {
+        require(state == State.STARTED || state == State.PAUSED, "pause");
+        basePositionMs = getCurrentPosition();
+        state = State.PAUSED;
+        epoch++;
+    }
+
+    @Override
+    public void stop() {
+        require(state == State.PREPARED || state == State.STARTED || state == State.PAUSED
+                || state == State.COMPLETED || state == State.STOPPED, "stop");
+        state = State.STOPPED;
+        epoch++;
+    }
+
+    @Override
+    public void reset() {
+        require(state != State.RELEASED, "reset");
+        state = State.IDLE;
+        epoch++;
+        path = null;
+        basePositionMs = 0;
+        looping = false;
+        volume = 1f;
+        gain = 1f;
+        next = null;
+    }
+
+    @Override
+    public void release() {
+        state = State.RELEASED;
+        epoch++;
+        next = null;
+    }
+
+    @Override
+    public void seekTo(int positionMs) {
+        require(state == State.PREPARED || state == State.STARTED || state == State.PAUSED || state == State.COMPLETED, "seekTo");
+        basePositionMs = Math.max(0, Math.min(durationMs, positionMs));
+        if (state == State.STARTED) {
+            begin(); // Re-anchors the position and reschedules the end of the track
+        }
+    }
+
+    @Override
+    public int getCurrentPosition() {
+        if (state == State.STARTED) {
+            return (int) Math.min(durationMs, basePositionMs + environment.clock.now() - startedAtMs);
+        }
+        return state == State.COMPLETED ? durationMs : basePositionMs;
+    }
+
+    @Override
+    public int getDuration() {
+        require(state == State.PREPARED || state == State.STARTED || state == State.PAUSED
+                || state == State.COMPLETED || state == State.STOPPED, "getDuration");
+        return durationMs;
+    }
+
+    @Override
+    public boolean isPlaying() {
+        return state == State.STARTED;
+    }
+
+    @Override
+    public void setLooping(boolean looping) {
+        require(state != State.ERROR && state != State.RELEASED, "setLooping");
+        this.looping = looping;
+    }
+
+    @Override
+    public void setVolume(float volume) {
+        this.volume = volume;
+    }
+
+    @Override
+    public void setGain(float gain) {
+        this.gain = gain;
+    }
+
+    @Override
+    public void setNextEngine(PlaybackEngine next) {
+        require(state != State.IDLE && state != State.ERROR && state != State.RELEASED, "setNextEngine");
+        FakePlaybackEngine engine = (FakePlaybackEngine) next;
+        if (engine != null && engine.state != State.PREPARED) {
+            throw new IllegalStateException("Next engine must be prepared, is " + engine.state);
+        }
+        this.next = engine;
+    }
+
+    private void begin() {
+        state = State.STARTED;
+        startedAtMs = environment.clock.now();
+        int expected = ++epoch;
+        environment.clock.schedule(durationMs - basePositionMs, () -> {
+            if (epoch == expected) complete();
+        });
+    }
+
+    private void complete() {
+        if (looping) {
+            basePositionMs = 0;
+            begin();
+            return;
+        }
+        state = State.COMPLETED;
+        epoch++;
+        FakePlaybackEngine chained = next;
+        next = null;
+        if (chained != null && chained.state == State.PREPARED) {
+            chained.basePositionMs = 0;
+            environment.starts.add(new Start(chained.path, environment.clock.now(), true, chained.gain));
+            chained.begin(); // Same clock tick: a gapless transition has no gap
+        }
+        if (listener != null) listener.onCompletion(this);
+    }
+
+    private void fail(int extra) {
+        state = State.ERROR;
+        epoch++;
+        boolean handled = listener != null && listener.onError(this, MEDIA_ERROR_UNKNOWN, extra);
+        if (!handled && listener != null) listener.onCompletion(this); // As MediaPlayer does for unhandled errors
+    }
+
+    private void require(boolean allowed, String call) {
+        if (!allowed) throw new IllegalStateException(call + " called in state " + state);
+    }
+}
@@ -0,0 +1,50 @@
+package com.example.musicplayer;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Holds a prepared {@link PlaybackEngine} back until the loudness gain for its track is known, so a track
+ * never starts (or is chained) at the unity gain reset() left and then drops. The owner reports each gain
+ * lookup it starts and finishes; onPrepared asks whether the engine may go on, and a finished lookup says
+ * whether an engine held there should be released now.
+ *
+ * Uses no Android classes. Not thread-safe; PlaybackService drives it from the playback thread.
+ */
+public final class GainGate {
+
+    // Engine -> track whose gain lookup is still running
+    private final Map<PlaybackEngine, Song> pending = new IdentityHashMap<>();
+    private final Set<PlaybackEngine> held = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /** A gain lookup for {@code song} started on {@code engine}; any earlier prepare of the engine is void. */
+    public void expect(PlaybackEngine engine, Song song) {
+        pending.put(engine, song);
+        held.remove(engine);
+    }
+
+    /** From onPrepared: true if the engine may start or be chained now, false if it waits for {@link #resolve}. */
+    public boolean admit(PlaybackEngine engine) {
+        if (!pending.containsKey(engine)) return true;
+        held.add(engine);
+        return false;
+    }
+
+    /**
+     * The lookup for {@code song} on {@code engine} finished. Returns true if the engine was held by
+     * {@link #admit} and should be let through now. A lookup overtaken by a newer one on the same engine
+     * releases nothing.
+     */
+    public boolean resolve(PlaybackEngine engine, Song song) {
+        if (pending.get(engine) == song) pending.remove(engine);
+        return !pending.containsKey(engine) && held.remove(engine);
+    }
+
+    /** Forgets every engine, e.g. when they are all released. */
+    public void clear() {
+        pending.clear();
+        held.clear();
+    }
+}
@@ -0,0 +1,83 @@
+package com.example.musicplayer;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+public class GroupAdapter extends RecyclerView.Adapter<GroupAdapter.GroupViewHolder> {
+
+    private Context context;
+    private final AlbumThumbnails albumThumbnails;
+    private List<LibraryGroup> groups = new ArrayList<>();
+    private OnGroupClickListener onGroupClickListener;
+
+    public interface OnGroupClickListener {
+        void onGroupClick(LibraryGroup group);
+    }
+
+    public GroupAdapter(Context context, OnGroupClickListener listener) {
+        this.context = context;
+        this.onGroupClickListener = listener;
+        this.albumThumbnails = new AlbumThumbnails(context);
+    }
+
+    @NonNull
+    @Override
+    public GroupViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(context).inflate(R.layout.list_item_group, parent, false);
+        return new GroupViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull GroupViewHolder holder, int position) {
+        LibraryGroup group = groups.get(position);
+        holder.textViewName.setText(group.name);
+
+        long totalMinutes = TimeUnit.MILLISECONDS.toMinutes(group.totalDuration);
+        String details = String.format(Locale.getDefault(), "%d songs, %d:%02d",
+                group.getTrackCount(), totalMinutes / 60, totalMinutes % 60);
+        holder.textViewDetails.setText(group.subtitle != null ? group.subtitle + ", " + details : details);
+
+        albumThumbnails.into(group.artAlbumId, holder.imageViewArt);
+
+        holder.itemView.setOnClickListener(v -> {
+            if (onGroupClickListener != null) {
+                onGroupClickListener.onGroupClick(group);
+            }
+        });
+    }
+
+    @Override
+    public int getItemCount() {
+        return groups.size();
+    }
+
+    public void setGroups(List<LibraryGroup> groups) {
+        this.groups = groups != null ? groups : new ArrayList<>();
+        notifyDataSetChanged();
+    }
+
+    static class GroupViewHolder extends RecyclerView.ViewHolder {
+        ImageView imageViewArt;
+        TextView textViewName;
+        TextView textViewDetails;
+
+        public GroupViewHolder(@NonNull View itemView) {
+            super(itemView);
+            imageViewArt = itemView.findViewById(R.id.imageViewGroupArt);
+            textViewName = itemView.findViewById(R.id.textViewGroupName);
+            textViewDetails = itemView.findViewById(R.id.textViewGroupDetails);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.example.musicplayer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Album and artist groupings of the library with their track counts and total durations, built in one
+ * pass and then patched per sync, rebuilding only the groups the sync touched. Groups are immutable snapshots that are replaced on
+ * change, so a group handed to the UI can be read from any thread without copying its track list.
+ *
+ * Not thread-safe for writers: mutate only from MusicLibrary's executor.
+ */
+public class LibraryAggregates {
+
+    private static final Comparator<Song> TRACK_ORDER = (a, b) -> compareNames(a.getTitle(), b.getTitle());
+    private static final Comparator<LibraryGroup> GROUP_ORDER = (a, b) -> compareNames(a.name, b.name);
+
+    private final HashMap<String, LibraryGroup> albums = new HashMap<>();
+    private final HashMap<String, LibraryGroup> artists = new HashMap<>();
+    private final HashMap<Long, Song> songsById = new HashMap<>();
+    private List<LibraryGroup> sortedAlbums;
+    private List<LibraryGroup> sortedArtists;
+
+    /** Builds both groupings in one pass over {@code table}. */
+    public static LibraryAggregates build(SongTable table) {
+        HashMap<String, List<Song>> albumTracks = new HashMap<>();
+        HashMap<String, List<Song>> artistTracks = new HashMap<>();
+        LibraryAggregates aggregates = new LibraryAggregates();
+        for (int row = 0; row < table.size(); row++) {
+            Song song = table.get(row);
+            aggregates.songsById.put(song.getId(), song);
+            tracksFor(albumTracks, albumKey(song)).add(song);
+            tracksFor(artistTracks, artistKey(song)).add(song);
+        }
+        for (List<Song> tracks : albumTracks.values()) {
+            LibraryGroup group = LibraryGroup.of(LibraryGroup.TYPE_ALBUM, albumKey(tracks.get(0)), tracks);
+            aggregates.albums.put(group.key, group);
+        }
+        for (List<Song> tracks : artistTracks.values()) {
+            LibraryGroup group = LibraryGroup.of(LibraryGroup.TYPE_ARTIST, artistKey(tracks.get(0)), tracks);
+            aggregates.artists.put(group.key, group);
+        }
+        return aggregates;
+    }
+
+    private static List<Song> tracksFor(HashMap<String, List<Song>> groups, String key) {
+        List<Song> tracks = groups.get(key);
+        if (tracks == null) {
+            tracks = new ArrayList<>();
+            groups.put(key, tracks);
+        }
+        return tracks;
+    }
+
+    static String albumKey(Song song) {
+        return Long.toString(song.getAlbumId());
+    }
+
+    static String artistKey(Song song) {
+        return song.getArtist() != null ? song.getArtist() : "";
+    }
+
+    /**
+     * Applies one sync: drops {@code deletedIds} and adds or replaces the rows of {@code upserted}. Each
+     * touched album and artist is rebuilt once, in O(its tracks + its changes), however many of its songs
+     * the sync changed.
+     */
+    public void apply(long[] deletedIds, SongTable upserted) {
+        HashSet<Long> replacedIds = new HashSet<>(); // Old versions to drop from their groups
+        HashSet<String> touchedAlbums = new HashSet<>();
+        HashSet<String> touchedArtists = new HashSet<>();
+        HashMap<String, List<Song>> albumAdds = new HashMap<>();
+        HashMap<String, List<Song>> artistAdds = new HashMap<>();
+        for (long id : deletedIds) {
+            Song old = songsById.remove(id);
+            if (old == null) continue;
+            replacedIds.add(id);
+            touchedAlbums.add(albumKey(old));
+            touchedArtists.add(artistKey(old));
+        }
+        for (int row = 0; row < upserted.size(); row++) {
+            Song song = upserted.get(row);
+            Song old = songsById.put(song.getId(), song);
+            if (old != null) {
+                replacedIds.add(song.getId());
+                touchedAlbums.add(albumKey(old));
+                touchedArtists.add(artistKey(old));
+            }
+            tracksFor(albumAdds, albumKey(song)).add(song);
+            tracksFor(artistAdds, artistKey(song)).add(song);
+        }
+        touchedAlbums.addAll(albumAdds.keySet());
+        touchedArtists.addAll(artistAdds.keySet());
+        for (String key : touchedAlbums) {
+            rebuild(albums, LibraryGroup.TYPE_ALBUM, key, replacedIds, albumAdds.get(key));
+        }
+        for (String key : touchedArtists) {
+            rebuild(artists, LibraryGroup.TYPE_ARTIST, key, replacedIds, artistAdds.get(key));
+        }
+        if (!touchedAlbums.isEmpty()) sortedAlbums = null;
+        if (!touchedArtists.isEmpty()) sortedArtists = null;
+    }
+
+    // Merges the group's surviving tracks with its sorted additions in one pass.
+    private static void rebuild(HashMap<String, LibraryGroup> groups, int type, String key, HashSet<Long> droppedIds, List<Song> adds) {
+        LibraryGroup group = groups.get(key);
+        List<Song> existing = group != null ? group.tracks : Collections.<Song>emptyList();
+        if (adds == null) adds = Collections.emptyList();
+        Collections.sort(adds, TRACK_ORDER);
+        List<Song> tracks = new ArrayList<>(existing.size() + adds.size());
+        int next = 0;
+        for (Song track : existing) {
+            if (droppedIds.contains(track.getId())) continue;
+            while (next < adds.size() && TRACK_ORDER.compare(adds.get(next), track) < 0) {
+                tracks.add(adds.get(next++));
+            }
+            tracks.add(track);
+        }
+        while (next < adds.size()) {
+            tracks.add(adds.get(next++));
+        }
+        if (tracks.isEmpty()) {
+            groups.remove(key);
+        } else {
+            groups.put(key, LibraryGroup.of(type, key, tracks));
+        }
+    }
+
+    public LibraryGroup getGroup(int type, String key) {
+        return (type == LibraryGroup.TYPE_ALBUM ? albums : artists).get(key);
+    }
+
+    /** All groups of {@code type}, sorted by name. The list is cached until the next change. */
+    public List<LibraryGroup> getGroups(int type) {
+        if (type == LibraryGroup.TYPE_ALBUM) {
+            if (sortedAlbums == null) sortedAlbums = sorted(albums);
+            return sortedAlbums;
+        }
+        if (sortedArtists == null) sortedArtists = sorted(artists);
+        return sortedArtists;
+    }
+
+    private static List<LibraryGroup> sorted(HashMap<String, LibraryGroup> groups) {
+        List<LibraryGroup> list = new ArrayList<>(groups.values());
+        Collections.sort(list, GROUP_ORDER);
+        return Collections.unmodifiableList(list);
+    }
+
+    private static int compareNames(String a, String b) {
+        if (a == null) return b == null ? 0 : -1;
+        if (b == null) return 1;
+        return a.compareToIgnoreCase(b);
+    }
+}
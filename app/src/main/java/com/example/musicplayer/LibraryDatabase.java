@@ -0,0 +1,349 @@
+package com.example.musicplayer;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+/**
+ * Persistent copy of the MediaStore audio rows we care about, keyed by MediaStore _ID.
+ * MediaScanner keeps it in sync with deltas so the UI can show the library without a full rescan.
+ */
+public class LibraryDatabase extends SQLiteOpenHelper {
+
+    private static final String TAG = "LibraryDatabase";
+    private static final String DATABASE_NAME = "library.db";
+    private static final int DATABASE_VERSION = 3;
+
+    static final String TABLE_SONGS = "songs";
+    static final String COLUMN_ID = "_id";
+    static final String COLUMN_PATH = "path";
+    static final String COLUMN_TITLE = "title";
+    static final String COLUMN_ARTIST = "artist";
+    static final String COLUMN_ALBUM = "album";
+    static final String COLUMN_ALBUM_ID = "album_id";
+    static final String COLUMN_DURATION = "duration";
+    static final String COLUMN_DATE_MODIFIED = "date_modified";
+    static final String COLUMN_GENERATION = "generation";
+
+    private static final String TABLE_META = "meta";
+    private static final String COLUMN_KEY = "key";
+    private static final String COLUMN_VALUE = "value";
+
+    // Analysis results by song _id; a NULL loudness marks a track that could not be decoded
+    private static final String TABLE_LOUDNESS = "loudness";
+    private static final String COLUMN_LOUDNESS = "loudness";
+    private static final String COLUMN_PEAK = "peak";
+
+    static final String META_MEDIA_STORE_VERSION = "media_store_version";
+    static final String META_MEDIA_STORE_GENERATION = "media_store_generation";
+
+    static final String[] SONG_PROJECTION = {
+            COLUMN_ID, COLUMN_PATH, COLUMN_TITLE, COLUMN_ARTIST, COLUMN_ALBUM, COLUMN_ALBUM_ID, COLUMN_DURATION
+    };
+    static final String SONG_SORT_ORDER = COLUMN_TITLE + " COLLATE NOCASE ASC, " + COLUMN_ID + " ASC";
+
+    private static LibraryDatabase instance;
+
+    public static synchronized LibraryDatabase getInstance(Context context) {
+        if (instance == null) {
+            instance = new LibraryDatabase(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private LibraryDatabase(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        db.enableWriteAheadLogging(); // Readers (UI paging) must not block behind a sync transaction
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_SONGS + " ("
+                + COLUMN_ID + " INTEGER PRIMARY KEY, "
+                + COLUMN_PATH + " TEXT, "
+                + COLUMN_TITLE + " TEXT, "
+                + COLUMN_ARTIST + " TEXT, "
+                + COLUMN_ALBUM + " TEXT, "
+                + COLUMN_ALBUM_ID + " INTEGER, "
+                + COLUMN_DURATION + " INTEGER, "
+                + COLUMN_DATE_MODIFIED + " INTEGER, "
+                + COLUMN_GENERATION + " INTEGER)");
+        db.execSQL("CREATE INDEX songs_title_idx ON " + TABLE_SONGS + " (" + COLUMN_TITLE + " COLLATE NOCASE, " + COLUMN_ID + ")");
+        createAlbumIndex(db);
+        db.execSQL("CREATE TABLE " + TABLE_META + " ("
+                + COLUMN_KEY + " TEXT PRIMARY KEY, "
+                + COLUMN_VALUE + " TEXT)");
+        createLoudnessTable(db);
+    }
+
+    // Album-mode loudness looks up every track of an album while a prepared track waits for its gain
+    private static void createAlbumIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX songs_album_idx ON " + TABLE_SONGS + " (" + COLUMN_ALBUM_ID + ")");
+    }
+
+    private static void createLoudnessTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_LOUDNESS + " ("
+                + COLUMN_ID + " INTEGER PRIMARY KEY, "
+                + COLUMN_DATE_MODIFIED + " INTEGER, "
+                + COLUMN_LOUDNESS + " REAL, "
+                + COLUMN_PEAK + " REAL)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion <= 2) {
+            // Versions 2 and 3 only added analysis results and an index; the song index stays valid
+            if (oldVersion == 1) createLoudnessTable(db);
+            createAlbumIndex(db);
+            return;
+        }
+        // The index is only a cache of MediaStore, so it is always safe to rebuild it from scratch.
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_SONGS);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_META);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_LOUDNESS);
+        onCreate(db);
+    }
+
+    public String getMeta(String key) {
+        try (Cursor cursor = getReadableDatabase().query(TABLE_META, new String[]{COLUMN_VALUE},
+                COLUMN_KEY + " = ?", new String[]{key}, null, null, null)) {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        }
+    }
+
+    public void putMeta(String key, String value) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_KEY, key);
+        values.put(COLUMN_VALUE, value);
+        getWritableDatabase().insertWithOnConflict(TABLE_META, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Returns the (_id, date_modified, generation) triples of every indexed song, ordered by _id,
+     * so the scanner can merge-join them against a MediaStore cursor sorted the same way.
+     */
+    public IndexedRows loadIndexedRows() {
+        try (Cursor cursor = getReadableDatabase().query(TABLE_SONGS,
+                new String[]{COLUMN_ID, COLUMN_DATE_MODIFIED, COLUMN_GENERATION},
+                null, null, null, null, COLUMN_ID + " ASC")) {
+            IndexedRows rows = new IndexedRows(cursor.getCount());
+            int i = 0;
+            while (cursor.moveToNext()) {
+                rows.ids[i] = cursor.getLong(0);
+                rows.dateModified[i] = cursor.getLong(1);
+                rows.generation[i] = cursor.getLong(2);
+                i++;
+            }
+            return rows;
+        }
+    }
+
+    /** Removes every indexed song, e.g. when the MediaStore volume version changes and ids may have been reused. */
+    public void clearSongs() {
+        getWritableDatabase().delete(TABLE_SONGS, null, null);
+        getWritableDatabase().delete(TABLE_LOUDNESS, null, null); // Keyed by ids that may now be reused
+        Log.d(TAG, "Library index cleared.");
+    }
+
+    public void beginTransaction() {
+        getWritableDatabase().beginTransaction();
+    }
+
+    public void setTransactionSuccessful() {
+        getWritableDatabase().setTransactionSuccessful();
+    }
+
+    public void endTransaction() {
+        getWritableDatabase().endTransaction();
+    }
+
+    public SQLiteStatement compileUpsert() {
+        return getWritableDatabase().compileStatement("INSERT OR REPLACE INTO " + TABLE_SONGS + " ("
+                + COLUMN_ID + ", " + COLUMN_PATH + ", " + COLUMN_TITLE + ", " + COLUMN_ARTIST + ", "
+                + COLUMN_ALBUM + ", " + COLUMN_ALBUM_ID + ", " + COLUMN_DURATION + ", "
+                + COLUMN_DATE_MODIFIED + ", " + COLUMN_GENERATION + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)");
+    }
+
+    public SQLiteStatement compileDelete() {
+        return getWritableDatabase().compileStatement("DELETE FROM " + TABLE_SONGS + " WHERE " + COLUMN_ID + " = ?");
+    }
+
+    public long countSongs() {
+        return DatabaseUtils.queryNumEntries(getReadableDatabase(), TABLE_SONGS);
+    }
+
+    /**
+     * Number of rows before ({@code title}, {@code id}) in {@link #SONG_SORT_ORDER}, i.e. that song's
+     * position in the list; one count over songs_title_idx.
+     */
+    public int countSongsBefore(String title, long id) {
+        return (int) DatabaseUtils.queryNumEntries(getReadableDatabase(), TABLE_SONGS,
+                COLUMN_TITLE + " < ? COLLATE NOCASE OR (" + COLUMN_TITLE + " = ? COLLATE NOCASE AND " + COLUMN_ID + " < ?)",
+                new String[]{title, title, Long.toString(id)});
+    }
+
+    /** Appends the whole index to {@code table} in {@link #SONG_SORT_ORDER}. */
+    public void loadSongs(SongTable table) {
+        try (Cursor cursor = getReadableDatabase().query(TABLE_SONGS, SONG_PROJECTION,
+                null, null, null, null, SONG_SORT_ORDER)) {
+            while (cursor.moveToNext()) {
+                appendFromCursor(table, cursor);
+            }
+        }
+    }
+
+    /**
+     * Appends one keyset page in {@link #SONG_SORT_ORDER} to {@code table} and returns the number of rows
+     * read; pass a null {@code afterTitle} for the first page.
+     */
+    public int loadSongPage(SongTable table, String afterTitle, long afterId, int limit) {
+        return loadSongPage(table, afterTitle, afterId, 0, limit);
+    }
+
+    /**
+     * Like {@link #loadSongPage(SongTable, String, long, int)}, but first skips {@code skip} rows after the
+     * key: for a reader that knows a key some way before the rows it wants.
+     */
+    public int loadSongPage(SongTable table, String afterTitle, long afterId, int skip, int limit) {
+        String selection = null;
+        String[] selectionArgs = null;
+        if (afterTitle != null) {
+            selection = COLUMN_TITLE + " > ? COLLATE NOCASE OR (" + COLUMN_TITLE + " = ? COLLATE NOCASE AND " + COLUMN_ID + " > ?)";
+            selectionArgs = new String[]{afterTitle, afterTitle, Long.toString(afterId)};
+        }
+        try (Cursor cursor = getReadableDatabase().query(TABLE_SONGS, SONG_PROJECTION,
+                selection, selectionArgs, null, null, SONG_SORT_ORDER, skip > 0 ? skip + "," + limit : Integer.toString(limit))) {
+            while (cursor.moveToNext()) {
+                appendFromCursor(table, cursor);
+            }
+            return cursor.getCount();
+        }
+    }
+
+    /** Appends the indexed rows for {@code ids} to {@code table}, in no particular order. */
+    public void loadSongsById(SongTable table, long[] ids) {
+        StringBuilder selection = new StringBuilder();
+        for (int start = 0; start < ids.length; start += 500) {
+            int end = Math.min(start + 500, ids.length);
+            selection.setLength(0);
+            selection.append(COLUMN_ID).append(" IN (");
+            for (int i = start; i < end; i++) {
+                if (i > start) selection.append(',');
+                selection.append(ids[i]);
+            }
+            selection.append(')');
+            try (Cursor cursor = getReadableDatabase().query(TABLE_SONGS, SONG_PROJECTION,
+                    selection.toString(), null, null, null, null)) {
+                while (cursor.moveToNext()) {
+                    appendFromCursor(table, cursor);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns up to {@code limit} ids, ascending and after {@code afterId}, of songs that have no loudness
+     * result or whose file changed since it was measured. Paging by id lets an interrupted analysis resume
+     * where it stopped without re-reading finished tracks.
+     */
+    public long[] loadUnanalyzedIds(long afterId, int limit) {
+        String sql = "SELECT s." + COLUMN_ID + " FROM " + TABLE_SONGS + " s LEFT JOIN " + TABLE_LOUDNESS
+                + " l ON l." + COLUMN_ID + " = s." + COLUMN_ID
+                + " WHERE s." + COLUMN_ID + " > ? AND (l." + COLUMN_ID + " IS NULL OR l." + COLUMN_DATE_MODIFIED
+                + " != s." + COLUMN_DATE_MODIFIED + ") ORDER BY s." + COLUMN_ID + " LIMIT " + limit;
+        try (Cursor cursor = getReadableDatabase().rawQuery(sql, new String[]{Long.toString(afterId)})) {
+            long[] ids = new long[cursor.getCount()];
+            int i = 0;
+            while (cursor.moveToNext()) {
+                ids[i++] = cursor.getLong(0);
+            }
+            return ids;
+        }
+    }
+
+    /** Records the analysis of song {@code id}; pass NaN values for a track that could not be decoded. */
+    public void putLoudness(long id, double loudness, float peak) {
+        SQLiteDatabase db = getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_ID, id);
+        if (!Double.isNaN(loudness)) values.put(COLUMN_LOUDNESS, loudness);
+        if (!Float.isNaN(peak)) values.put(COLUMN_PEAK, peak);
+        // Stamped from the row itself so a file changed since the job read its path is measured again
+        try (Cursor cursor = db.query(TABLE_SONGS, new String[]{COLUMN_DATE_MODIFIED},
+                COLUMN_ID + " = ?", new String[]{Long.toString(id)}, null, null, null)) {
+            if (!cursor.moveToFirst()) return; // Deleted while it was being analyzed
+            values.put(COLUMN_DATE_MODIFIED, cursor.getLong(0));
+        }
+        db.insertWithOnConflict(TABLE_LOUDNESS, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /** Drops results for songs that are no longer indexed. */
+    public int deleteOrphanedLoudness() {
+        return getWritableDatabase().delete(TABLE_LOUDNESS, COLUMN_ID + " NOT IN (SELECT " + COLUMN_ID
+                + " FROM " + TABLE_SONGS + ")", null);
+    }
+
+    /** Returns {loudness LUFS, peak} for song {@code id}, or null if it has not been measured. */
+    public double[] getTrackLoudness(long id) {
+        try (Cursor cursor = getReadableDatabase().query(TABLE_LOUDNESS, new String[]{COLUMN_LOUDNESS, COLUMN_PEAK},
+                COLUMN_ID + " = ? AND " + COLUMN_LOUDNESS + " IS NOT NULL", new String[]{Long.toString(id)},
+                null, null, null)) {
+            return cursor.moveToFirst() ? new double[]{cursor.getDouble(0), cursor.getDouble(1)} : null;
+        }
+    }
+
+    /**
+     * Returns {loudness LUFS, peak} for album {@code albumId}: the duration-weighted energy mean of its
+     * measured tracks and their highest peak, or null if none are measured.
+     */
+    public double[] getAlbumLoudness(long albumId) {
+        String sql = "SELECT l." + COLUMN_LOUDNESS + ", l." + COLUMN_PEAK + ", s." + COLUMN_DURATION
+                + " FROM " + TABLE_LOUDNESS + " l JOIN " + TABLE_SONGS + " s ON s." + COLUMN_ID + " = l." + COLUMN_ID
+                + " WHERE s." + COLUMN_ALBUM_ID + " = ? AND l." + COLUMN_LOUDNESS + " IS NOT NULL";
+        try (Cursor cursor = getReadableDatabase().rawQuery(sql, new String[]{Long.toString(albumId)})) {
+            double weightedEnergy = 0;
+            double totalDuration = 0;
+            double peak = 0;
+            while (cursor.moveToNext()) {
+                double duration = Math.max(1, cursor.getLong(2));
+                weightedEnergy += duration * LoudnessMeter.energyOf(cursor.getDouble(0));
+                totalDuration += duration;
+                peak = Math.max(peak, cursor.getDouble(1));
+            }
+            if (totalDuration == 0) return null;
+            return new double[]{LoudnessMeter.loudnessOf(weightedEnergy / totalDuration), peak};
+        }
+    }
+
+    private static void appendFromCursor(SongTable table, Cursor cursor) {
+        table.append(cursor.getLong(0), cursor.getString(1), cursor.getString(2), cursor.getString(3),
+                cursor.getString(4), cursor.getLong(5), cursor.getLong(6));
+    }
+
+    /** Plain column arrays so a 60k-row index does not turn into 60k boxed objects. */
+    public static class IndexedRows {
+        final long[] ids;
+        final long[] dateModified;
+        final long[] generation;
+
+        IndexedRows(int count) {
+            ids = new long[count];
+            dateModified = new long[count];
+            generation = new long[count];
+        }
+
+        public int size() {
+            return ids.length;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.example.musicplayer;
+
+import java.util.Collections;
+import java.util.List;
+
+/** One album or artist with its precomputed totals. Immutable; see {@link LibraryAggregates}. */
+public class LibraryGroup {
+
+    public static final int TYPE_ALBUM = 0;
+    public static final int TYPE_ARTIST = 1;
+
+    public final int type;
+    public final String key;
+    public final String name;
+    public final String subtitle; // Album artist for albums, null for artists
+    public final List<Song> tracks;
+    public final long totalDuration;
+    public final long artAlbumId; // Album whose art represents the group
+
+    private LibraryGroup(int type, String key, String name, String subtitle, List<Song> tracks, long totalDuration, long artAlbumId) {
+        this.type = type;
+        this.key = key;
+        this.name = name;
+        this.subtitle = subtitle;
+        this.tracks = tracks;
+        this.totalDuration = totalDuration;
+        this.artAlbumId = artAlbumId;
+    }
+
+    /** Wraps {@code tracks}, which must not be modified afterwards. */
+    static LibraryGroup of(int type, String key, List<Song> tracks) {
+        Song first = tracks.get(0);
+        long totalDuration = 0;
+        for (Song track : tracks) {
+            totalDuration += track.getDuration();
+        }
+        String name = type == TYPE_ALBUM ? first.getAlbum() : first.getArtist();
+        String subtitle = type == TYPE_ALBUM ? first.getArtist() : null;
+        return new LibraryGroup(type, key, name, subtitle, Collections.unmodifiableList(tracks), totalDuration, first.getAlbumId());
+    }
+
+    public int getTrackCount() {
+        return tracks.size();
+    }
+
+    public String getArtUri() {
+        return MediaScanner.albumArtUriFor(artAlbumId);
+    }
+}
@@ -0,0 +1,57 @@
+package com.example.musicplayer;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Handler;
+import android.provider.MediaStore;
+import android.util.Log;
+
+/**
+ * Watches the audio MediaStore tables and reports library changes. MediaStore fires one notification per
+ * touched row, so a copy of a whole album arrives as a burst; bursts are collapsed into a single callback
+ * that runs once no further change has been seen for {@link #DEBOUNCE_MS}.
+ */
+public class LibraryObserver extends ContentObserver {
+
+    private static final String TAG = "LibraryObserver";
+    private static final long DEBOUNCE_MS = 750;
+
+    private final Handler handler;
+    private final Runnable onLibraryChanged;
+    private boolean registered = false;
+
+    public LibraryObserver(Handler handler, Runnable onLibraryChanged) {
+        super(handler);
+        this.handler = handler;
+        this.onLibraryChanged = onLibraryChanged;
+    }
+
+    public void register(ContentResolver contentResolver) {
+        if (!registered) {
+            contentResolver.registerContentObserver(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, true, this);
+            registered = true;
+            Log.d(TAG, "Registered for MediaStore audio changes.");
+        }
+    }
+
+    public void unregister(ContentResolver contentResolver) {
+        if (registered) {
+            contentResolver.unregisterContentObserver(this);
+            handler.removeCallbacks(onLibraryChanged);
+            registered = false;
+            Log.d(TAG, "Unregistered from MediaStore audio changes.");
+        }
+    }
+
+    @Override
+    public void onChange(boolean selfChange, Uri uri) {
+        handler.removeCallbacks(onLibraryChanged);
+        handler.postDelayed(onLibraryChanged, DEBOUNCE_MS);
+    }
+
+    @Override
+    public void onChange(boolean selfChange) {
+        onChange(selfChange, null);
+    }
+}
@@ -0,0 +1,221 @@
+package com.example.musicplayer;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Idle-time job that decodes every indexed track once and stores its integrated loudness and peak for
+ * {@link LoudnessNormalizer}. Each result is written as soon as it is measured and pending tracks are
+ * found by a join against the index, so a stopped job picks up where it left off and only changed files
+ * are measured again.
+ *
+ * On battery a single background thread decodes with a 50% duty cycle; while charging the batch is
+ * spread over all but one core.
+ */
+public class LoudnessAnalysisJob extends JobService {
+
+    private static final String TAG = "LoudnessAnalysisJob";
+    private static final int JOB_ID = 1018;
+    private static final int BATCH_SIZE = 32;
+    private static final long DEQUEUE_TIMEOUT_US = 10000;
+
+    private volatile boolean stopped;
+    private Thread worker;
+
+    /** Schedules the analysis for the next idle window, unless it is already scheduled or running. */
+    public static void schedule(Context context) {
+        JobScheduler scheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        for (JobInfo pending : scheduler.getAllPendingJobs()) {
+            if (pending.getId() == JOB_ID) return;
+        }
+        JobInfo.Builder builder = new JobInfo.Builder(JOB_ID, new ComponentName(context, LoudnessAnalysisJob.class))
+                .setRequiresDeviceIdle(true);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            builder.setRequiresBatteryNotLow(true);
+        }
+        scheduler.schedule(builder.build());
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        stopped = false;
+        worker = new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            analyzePending();
+            if (!stopped) jobFinished(params, false);
+        }, "LoudnessAnalysis");
+        worker.start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        stopped = true; // Decoders check this between buffers; finished tracks are already stored
+        if (worker != null) worker.interrupt();
+        return true;
+    }
+
+    private void analyzePending() {
+        LibraryDatabase database = LibraryDatabase.getInstance(this);
+        LoudnessNormalizer normalizer = LoudnessNormalizer.getInstance(this);
+        database.deleteOrphanedLoudness();
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        ExecutorService pool = null;
+        AtomicInteger analyzed = new AtomicInteger();
+        long startedAt = SystemClock.elapsedRealtime();
+        long afterId = 0;
+        try {
+            while (!stopped) {
+                long[] ids = database.loadUnanalyzedIds(afterId, BATCH_SIZE);
+                if (ids.length == 0) break;
+                afterId = ids[ids.length - 1];
+                SongTable table = new SongTable();
+                database.loadSongsById(table, ids);
+                if (threads > 1 && isCharging()) {
+                    if (pool == null) {
+                        pool = Executors.newFixedThreadPool(threads, r -> new Thread(() -> {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }, "LoudnessAnalysisPool"));
+                    }
+                    List<Callable<Void>> tasks = new ArrayList<>(table.size());
+                    for (int row = 0; row < table.size(); row++) {
+                        long id = table.getId(row);
+                        String path = table.getPath(row);
+                        tasks.add(() -> {
+                            if (analyze(database, id, path) >= 0) analyzed.incrementAndGet();
+                            return null;
+                        });
+                    }
+                    pool.invokeAll(tasks);
+                } else {
+                    for (int row = 0; row < table.size() && !stopped; row++) {
+                        long elapsedMs = analyze(database, table.getId(row), table.getPath(row));
+                        if (elapsedMs < 0) continue;
+                        analyzed.incrementAndGet();
+                        Thread.sleep(elapsedMs); // Throttle: idle for as long as the decode took
+                    }
+                }
+                normalizer.invalidate();
+            }
+        } catch (InterruptedException e) {
+            Log.d(TAG, "Loudness analysis interrupted.");
+        } finally {
+            if (pool != null) pool.shutdownNow();
+        }
+        Log.d(TAG, "Analyzed " + analyzed.get() + " tracks in " + (SystemClock.elapsedRealtime() - startedAt)
+                + " ms" + (stopped ? ", stopped before the end." : "."));
+    }
+
+    private boolean isCharging() {
+        Intent battery = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    // Decodes one track and stores its result; returns the time it took, or -1 if the job was stopped first.
+    private long analyze(LibraryDatabase database, long id, String path) {
+        long startedAt = SystemClock.elapsedRealtime();
+        double loudness = Double.NaN;
+        float peak = Float.NaN;
+        MediaExtractor extractor = new MediaExtractor();
+        MediaCodec codec = null;
+        try {
+            extractor.setDataSource(path);
+            MediaFormat format = null;
+            for (int i = 0; i < extractor.getTrackCount() && format == null; i++) {
+                String mime = extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME);
+                if (mime != null && mime.startsWith("audio/")) {
+                    extractor.selectTrack(i);
+                    format = extractor.getTrackFormat(i);
+                }
+            }
+            if (format == null) throw new IOException("No audio track in " + path);
+            codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            codec.configure(format, null, null, 0);
+            codec.start();
+
+            LoudnessMeter meter = null;
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            boolean inputDone = false;
+            boolean outputDone = false;
+            while (!outputDone) {
+                if (stopped) return -1;
+                if (!inputDone) {
+                    int index = codec.dequeueInputBuffer(DEQUEUE_TIMEOUT_US);
+                    if (index >= 0) {
+                        int size = extractor.readSampleData(codec.getInputBuffer(index), 0);
+                        if (size < 0) {
+                            codec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        } else {
+                            codec.queueInputBuffer(index, 0, size, extractor.getSampleTime(), 0);
+                            extractor.advance();
+                        }
+                    }
+                }
+                int index = codec.dequeueOutputBuffer(info, DEQUEUE_TIMEOUT_US);
+                if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    meter = newMeter(codec.getOutputFormat());
+                } else if (index >= 0) {
+                    if (info.size > 0) {
+                        if (meter == null) meter = newMeter(format);
+                        ByteBuffer buffer = codec.getOutputBuffer(index);
+                        buffer.order(ByteOrder.nativeOrder());
+                        buffer.limit(info.offset + info.size);
+                        buffer.position(info.offset);
+                        meter.add(buffer);
+                    }
+                    outputDone = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                    codec.releaseOutputBuffer(index, false);
+                }
+            }
+            if (meter != null) {
+                double measured = meter.integratedLoudness();
+                if (!Double.isInfinite(measured)) loudness = measured; // Silence gets no gain
+                peak = meter.peak();
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Could not analyze " + path, e); // Stored without a result so it is not retried until it changes
+        } finally {
+            if (codec != null) {
+                try {
+                    codec.stop();
+                } catch (IllegalStateException ignored) {
+                    // Never started
+                }
+                codec.release();
+            }
+            extractor.release();
+        }
+        database.putLoudness(id, loudness, peak);
+        return SystemClock.elapsedRealtime() - startedAt;
+    }
+
+    private static LoudnessMeter newMeter(MediaFormat format) {
+        return new LoudnessMeter(format.getInteger(MediaFormat.KEY_SAMPLE_RATE), format.getInteger(MediaFormat.KEY_CHANNEL_COUNT));
+    }
+}
@@ -0,0 +1,148 @@
+package com.example.musicplayer;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Integrated loudness (ITU-R BS.1770 / EBU R128: K-weighting, 400 ms blocks with 75% overlap, absolute
+ * and relative gating) and sample peak of 16-bit PCM. Feeding samples allocates nothing except the
+ * occasional growth of the block history. Mono and stereo only; extra channels are ignored.
+ */
+public class LoudnessMeter {
+
+    private static final double ABSOLUTE_GATE_LUFS = -70.0;
+    private static final double RELATIVE_GATE_LU = -10.0;
+
+    private final int channels;
+    private final int measuredChannels;
+    private final int stepFrames;             // 100 ms; a block is four steps
+    // Two cascaded biquads per channel: high-shelf "pre-filter", then the RLB high-pass
+    private final double[] shelfB = new double[3];
+    private final double[] shelfA = new double[3];
+    private final double[] highPassB = new double[3];
+    private final double[] highPassA = new double[3];
+    private final double[][] state;           // Per channel: x1, x2, y1, y2 of each stage
+
+    private final double[] stepEnergy = new double[4]; // Last four steps, as a ring
+    private int stepsSeen;
+    private double currentStepEnergy;
+    private int currentStepFrames;
+    private double[] blockEnergies = new double[1024];
+    private int blockCount;
+    private int peak;
+
+    public LoudnessMeter(int sampleRate, int channels) {
+        this.channels = channels;
+        this.measuredChannels = Math.min(channels, 2);
+        this.stepFrames = sampleRate / 10;
+        this.state = new double[measuredChannels][8];
+
+        double f0 = 1681.974450955533;
+        double gain = 3.999843853973347;
+        double q = 0.7071752369554196;
+        double k = Math.tan(Math.PI * f0 / sampleRate);
+        double vh = Math.pow(10.0, gain / 20.0);
+        double vb = Math.pow(vh, 0.4996667741545416);
+        double a0 = 1.0 + k / q + k * k;
+        shelfB[0] = (vh + vb * k / q + k * k) / a0;
+        shelfB[1] = 2.0 * (k * k - vh) / a0;
+        shelfB[2] = (vh - vb * k / q + k * k) / a0;
+        shelfA[1] = 2.0 * (k * k - 1.0) / a0;
+        shelfA[2] = (1.0 - k / q + k * k) / a0;
+
+        f0 = 38.13547087602444;
+        q = 0.5003270373238773;
+        k = Math.tan(Math.PI * f0 / sampleRate);
+        a0 = 1.0 + k / q + k * k;
+        highPassB[0] = 1.0;
+        highPassB[1] = -2.0;
+        highPassB[2] = 1.0;
+        highPassA[1] = 2.0 * (k * k - 1.0) / a0;
+        highPassA[2] = (1.0 - k / q + k * k) / a0;
+    }
+
+    /** Adds the interleaved native-order 16-bit samples between {@code buffer}'s position and limit. */
+    public void add(ByteBuffer buffer) {
+        int frameBytes = channels * 2;
+        int end = buffer.limit() - frameBytes + 1;
+        for (int offset = buffer.position(); offset < end; offset += frameBytes) {
+            double frameEnergy = 0;
+            for (int c = 0; c < measuredChannels; c++) {
+                int sample = buffer.getShort(offset + c * 2);
+                int magnitude = Math.abs(sample);
+                if (magnitude > peak) peak = magnitude;
+                double filtered = filter(state[c], sample / 32768.0);
+                frameEnergy += filtered * filtered; // Left and right both weigh 1.0
+            }
+            currentStepEnergy += frameEnergy;
+            if (++currentStepFrames == stepFrames) {
+                endStep();
+            }
+        }
+        buffer.position(buffer.limit());
+    }
+
+    private double filter(double[] s, double x) {
+        double y = shelfB[0] * x + shelfB[1] * s[0] + shelfB[2] * s[1] - shelfA[1] * s[2] - shelfA[2] * s[3];
+        s[1] = s[0];
+        s[0] = x;
+        s[3] = s[2];
+        s[2] = y;
+        double z = highPassB[0] * y + highPassB[1] * s[4] + highPassB[2] * s[5] - highPassA[1] * s[6] - highPassA[2] * s[7];
+        s[5] = s[4];
+        s[4] = y;
+        s[7] = s[6];
+        s[6] = z;
+        return z;
+    }
+
+    private void endStep() {
+        stepEnergy[stepsSeen & 3] = currentStepEnergy;
+        stepsSeen++;
+        currentStepEnergy = 0;
+        currentStepFrames = 0;
+        if (stepsSeen < 4) return;
+        if (blockCount == blockEnergies.length) {
+            blockEnergies = Arrays.copyOf(blockEnergies, blockCount * 2);
+        }
+        blockEnergies[blockCount++] = (stepEnergy[0] + stepEnergy[1] + stepEnergy[2] + stepEnergy[3]) / (4.0 * stepFrames);
+    }
+
+    /** Gated integrated loudness in LUFS, or negative infinity for silence or audio under 400 ms. */
+    public double integratedLoudness() {
+        double absoluteGate = energyOf(ABSOLUTE_GATE_LUFS);
+        double sum = 0;
+        int count = 0;
+        for (int i = 0; i < blockCount; i++) {
+            if (blockEnergies[i] > absoluteGate) {
+                sum += blockEnergies[i];
+                count++;
+            }
+        }
+        if (count == 0) return Double.NEGATIVE_INFINITY;
+        double relativeGate = energyOf(loudnessOf(sum / count) + RELATIVE_GATE_LU);
+        double gate = Math.max(absoluteGate, relativeGate);
+        sum = 0;
+        count = 0;
+        for (int i = 0; i < blockCount; i++) {
+            if (blockEnergies[i] > gate) {
+                sum += blockEnergies[i];
+                count++;
+            }
+        }
+        return count == 0 ? Double.NEGATIVE_INFINITY : loudnessOf(sum / count);
+    }
+
+    /** Sample peak as a fraction of full scale. */
+    public float peak() {
+        return peak / 32768f;
+    }
+
+    static double loudnessOf(double energy) {
+        return -0.691 + 10.0 * Math.log10(energy);
+    }
+
+    static double energyOf(double loudness) {
+        return Math.pow(10.0, (loudness + 0.691) / 10.0);
+    }
+}
@@ -0,0 +1,108 @@
+package com.example.musicplayer;
+
+import android.content.Context;
+import android.os.Handler;
+import android.util.LruCache;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Turns the loudness results of {@link LoudnessAnalysisJob} into a playback gain per track, in track or
+ * album mode. Lookups hit the database on a background thread and are cached, so PlaybackService can ask
+ * for every track it prepares without touching disk on its playback thread.
+ */
+public class LoudnessNormalizer {
+
+    public static final String PREF_MODE = "normalization"; // In CrossfadeController.PREFS_NAME
+    public static final int MODE_OFF = 0;
+    public static final int MODE_TRACK = 1;
+    public static final int MODE_ALBUM = 2;
+
+    static final double REFERENCE_LUFS = -18.0; // ReplayGain 2.0 reference level
+    private static final int CACHE_SIZE = 256;
+    private static final double[] NOT_MEASURED = new double[0];
+
+    public interface GainCallback {
+        /** Called on the lookup's handler with a linear gain from 0 to 1. */
+        void onGain(float gain);
+    }
+
+    private static LoudnessNormalizer instance;
+
+    private final LibraryDatabase database;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> new Thread(r, "LoudnessLookup"));
+    // {loudness LUFS, peak} by song and by album id; NOT_MEASURED caches a miss
+    private final LruCache<Long, double[]> trackLevels = new LruCache<>(CACHE_SIZE);
+    private final LruCache<Long, double[]> albumLevels = new LruCache<>(CACHE_SIZE);
+
+    public static synchronized LoudnessNormalizer getInstance(Context context) {
+        if (instance == null) {
+            instance = new LoudnessNormalizer(LibraryDatabase.getInstance(context));
+        }
+        return instance;
+    }
+
+    private LoudnessNormalizer(LibraryDatabase database) {
+        this.database = database;
+    }
+
+    public static int getMode(Context context) {
+        return context.getSharedPreferences(CrossfadeController.PREFS_NAME, Context.MODE_PRIVATE).getInt(PREF_MODE, MODE_OFF);
+    }
+
+    public static void setMode(Context context, int mode) {
+        context.getSharedPreferences(CrossfadeController.PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putInt(PREF_MODE, mode)
+                .apply();
+    }
+
+    /**
+     * Delivers the gain for {@code song} in {@code mode} on {@code handler}, or right away when normalization
+     * is off; 1 when off or the track is not measured yet.
+     */
+    public void lookupGain(Song song, int mode, Handler handler, GainCallback callback) {
+        if (mode == MODE_OFF) {
+            callback.onGain(1f);
+            return;
+        }
+        executor.execute(() -> {
+            float gain = gainFor(song, mode);
+            handler.post(() -> callback.onGain(gain));
+        });
+    }
+
+    private float gainFor(Song song, int mode) {
+        double[] levels = NOT_MEASURED;
+        if (mode == MODE_ALBUM && song.getAlbumId() != 0) {
+            levels = cachedLevels(albumLevels, song.getAlbumId(), true);
+        }
+        if (levels == NOT_MEASURED) {
+            levels = cachedLevels(trackLevels, song.getId(), false);
+        }
+        return levels == NOT_MEASURED ? 1f : toGain(levels[0], levels[1]);
+    }
+
+    private double[] cachedLevels(LruCache<Long, double[]> cache, long key, boolean album) {
+        double[] levels = cache.get(key);
+        if (levels == null) {
+            levels = album ? database.getAlbumLoudness(key) : database.getTrackLoudness(key);
+            if (levels == null) levels = NOT_MEASURED;
+            cache.put(key, levels);
+        }
+        return levels;
+    }
+
+    /** Gain that brings {@code loudness} to the reference level without pushing {@code peak} past full scale. */
+    static float toGain(double loudness, double peak) {
+        double gain = Math.pow(10.0, (REFERENCE_LUFS - loudness) / 20.0);
+        if (peak > 0) gain = Math.min(gain, 1.0 / peak);
+        return (float) Math.min(1.0, gain); // Engine volume only attenuates, so quiet tracks play unchanged
+    }
+
+    /** Forgets cached levels once new analysis results have been stored. */
+    public void invalidate() {
+        trackLevels.evictAll();
+        albumLevels.evictAll();
+    }
+}
@@ -1,7 +1,9 @@
 package com.example.musicplayer;
 
 import androidx.annotation.NonNull;
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.appcompat.widget.SearchView;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 
@@ -13,8 +15,13 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.ProgressBar;
 import android.widget.Toast;
 import android.content.pm.PackageManager; // Required for PackageManager.PERMISSION_GRANTED
 import android.os.Build; // Required for Build.VERSION.SDK_INT and Build.VERSION_CODES.TIRAMISU
@@ -27,21 +34,44 @@ import com.google.android.material.snackbar.Snackbar; // Required for Snackbar
 import android.view.View; // Required for Snackbar anchor view
 
 
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-public class MainActivity extends AppCompatActivity implements SongAdapter.OnSongClickListener {
+public class MainActivity extends AppCompatActivity implements SongAdapter.OnSongClickListener, SongAdapter.OnLoadMoreListener,
+        SearchView.OnQueryTextListener, MusicLibrary.SearchCallback, ScanCoordinator.Listener {
 
     private static final int PERMISSION_REQUEST_CODE = 101;
     private static final String TAG = "MainActivity";
     private static final int POST_NOTIFICATION_PERMISSION_REQUEST_CODE = 102; // Different from media permissions
+    private static final int FIRST_PAGE_SIZE = 40; // Roughly one screen, so the list renders before the rest is read
+    private static final int PAGE_SIZE = 250;
+    private static final int SEARCH_RESULT_LIMIT = 500;
+    private static final String STATE_HANDLED_SCAN = "handled_scan_sequence";
 
     private RecyclerView recyclerViewSongs;
+    private ProgressBar progressBarScan;
     private SongAdapter songAdapter;
     private List<Song> songList = new ArrayList<>();
+    private final MediaScanner mediaScanner = new MediaScanner();
+    private final ExecutorService libraryExecutor = Executors.newSingleThreadExecutor();
+    private MediaScanner.PageKey currentPageKey; // Paging run currently shown; only touched on the UI thread
+    // Paging run and list most recently handed to the UI; only touched on libraryExecutor
+    private MediaScanner.PageKey latestPageKey;
+    private List<Song> postedSongs = new ArrayList<>();
+    private LibraryObserver libraryObserver;
+    private boolean libraryHasMore = false; // Whether songList has further pages to load
+    private MusicLibrary musicLibrary;
+    private String activeQuery; // Non-null while the list shows search results instead of songList
+    private List<Song> searchResults = new ArrayList<>();
+    private ScanCoordinator scanCoordinator;
+    private int handledScanSequence = 0; // Last scan outcome applied to this list; survives recreation
 
     private PlaybackService playbackService;
     private boolean isServiceBound = false;
@@ -73,12 +103,23 @@ public class MainActivity extends AppCompatActivity implements SongAdapter.OnSon
         recyclerViewSongs = findViewById(R.id.recyclerViewSongs);
         recyclerViewSongs.setLayoutManager(new LinearLayoutManager(this));
         songAdapter = new SongAdapter(this, songList, this);
+        songAdapter.setOnLoadMoreListener(this);
         recyclerViewSongs.setAdapter(songAdapter);
+        songAdapter.attachArtPreloader(recyclerViewSongs);
+        progressBarScan = findViewById(R.id.progressBarScan);
+        libraryObserver = new LibraryObserver(new Handler(Looper.getMainLooper()), this::onLibraryChanged);
+        musicLibrary = MusicLibrary.getInstance(this);
+        scanCoordinator = ScanCoordinator.getInstance(this);
+        if (savedInstanceState != null) {
+            handledScanSequence = savedInstanceState.getInt(STATE_HANDLED_SCAN);
+        }
 
 
         if (checkAndRequestPermissions()) { // Handles READ_MEDIA_AUDIO / READ_EXTERNAL_STORAGE
             // Permissions already granted for media, proceed with media scanning
             scanMusic();
+            libraryObserver.register(getContentResolver());
+            musicLibrary.preload();
         }
         // After setting up media scanning, also check for notification permission
         checkAndRequestPostNotificationPermission();
@@ -91,11 +132,13 @@ public class MainActivity extends AppCompatActivity implements SongAdapter.OnSon
         startService(intent); // Start the service to keep it running
         bindService(intent, serviceConnection, Context.BIND_AUTO_CREATE);
         Log.d(TAG, "Attempting to bind PlaybackService");
+        scanCoordinator.attach(this);
     }
 
     @Override
     protected void onStop() {
         super.onStop();
+        scanCoordinator.detach(this);
         if (isServiceBound) {
             unbindService(serviceConnection);
             isServiceBound = false;
@@ -107,12 +150,126 @@ public class MainActivity extends AppCompatActivity implements SongAdapter.OnSon
         // }
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        libraryObserver.unregister(getContentResolver());
+        libraryExecutor.shutdownNow();
+        if (isFinishing()) {
+            scanCoordinator.cancel(); // Leaving for good; a recreated activity would have joined the scan instead
+        }
+    }
+
+    @Override
+    protected void onSaveInstanceState(@NonNull Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putInt(STATE_HANDLED_SCAN, handledScanSequence);
+    }
+
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_main, menu);
+        SearchView searchView = (SearchView) menu.findItem(R.id.action_search).getActionView();
+        searchView.setQueryHint(getString(R.string.search_hint));
+        searchView.setOnQueryTextListener(this);
+        menu.findItem(R.id.action_low_latency_engine).setChecked(AudioTrackEngine.isSelected(this));
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        int itemId = item.getItemId();
+        if (itemId == R.id.action_albums) {
+            startActivity(BrowseActivity.newIntent(this, LibraryGroup.TYPE_ALBUM, null));
+            return true;
+        } else if (itemId == R.id.action_artists) {
+            startActivity(BrowseActivity.newIntent(this, LibraryGroup.TYPE_ARTIST, null));
+            return true;
+        } else if (itemId == R.id.action_crossfade) {
+            showCrossfadeDialog();
+            return true;
+        } else if (itemId == R.id.action_normalization) {
+            showNormalizationDialog();
+            return true;
+        } else if (itemId == R.id.action_low_latency_engine) {
+            item.setChecked(!item.isChecked());
+            AudioTrackEngine.setSelected(this, item.isChecked()); // Takes effect from the next track that is not chained
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    private void showCrossfadeDialog() {
+        String[] choices = new String[CrossfadeController.MAX_CROSSFADE_SECONDS + 1];
+        choices[0] = getString(R.string.crossfade_off);
+        for (int seconds = 1; seconds < choices.length; seconds++) {
+            choices[seconds] = getString(R.string.crossfade_seconds, seconds);
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.action_crossfade)
+                .setSingleChoiceItems(choices, CrossfadeController.getOverlapSeconds(this), (dialog, which) -> {
+                    CrossfadeController.setOverlapSeconds(this, which); // PlaybackService picks this up via its preference listener
+                    dialog.dismiss();
+                })
+                .show();
+    }
+
+    private void showNormalizationDialog() {
+        String[] choices = {  // Indexed by LoudnessNormalizer.MODE_*
+                getString(R.string.normalization_off),
+                getString(R.string.normalization_track),
+                getString(R.string.normalization_album)
+        };
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.action_normalization)
+                .setSingleChoiceItems(choices, LoudnessNormalizer.getMode(this), (dialog, which) -> {
+                    LoudnessNormalizer.setMode(this, which); // Applied to the playing track via PlaybackService's preference listener
+                    dialog.dismiss();
+                })
+                .show();
+    }
+
+    @Override
+    public boolean onQueryTextSubmit(String query) {
+        return onQueryTextChange(query);
+    }
+
+    @Override
+    public boolean onQueryTextChange(String newText) {
+        String query = newText.trim();
+        if (query.isEmpty()) {
+            if (activeQuery != null) {
+                activeQuery = null;
+                searchResults = new ArrayList<>();
+                musicLibrary.cancelSearch();
+                songAdapter.onPagesReset(songList, libraryHasMore);
+            }
+        } else {
+            activeQuery = query;
+            musicLibrary.search(query, SEARCH_RESULT_LIMIT, this);
+        }
+        return true;
+    }
+
+    @Override
+    public void onSearchResults(String query, List<Song> results) {
+        if (isDestroyed() || !query.equals(activeQuery)) return;
+        searchResults = results;
+        songAdapter.onPagesReset(results, false);
+    }
 
     @Override
     public void onSongClick(Song song, int position) {
         if (isServiceBound && playbackService != null) {
             Log.d(TAG, "Song clicked: " + song.getTitle() + " at position " + position);
-            playbackService.setQueue(new ArrayList<>(songList), position);
+            if (activeQuery != null) {
+                playbackService.setQueue(searchResults, position); // Replaced, never modified, so no copy
+            } else {
+                // songList only holds the pages loaded so far; the queue is the whole library
+                PlaybackService service = playbackService;
+                musicLibrary.loadQueueFrom(song.getId(), service::setQueue);
+            }
             startActivity(new Intent(this, NowPlayingActivity.class));
         } else {
             Log.e(TAG, "Service not bound, cannot play song: " + song.getTitle());
@@ -120,6 +277,22 @@ public class MainActivity extends AppCompatActivity implements SongAdapter.OnSon
         }
     }
 
+    @Override
+    public void onSongLongClick(Song song, int position) {
+        if (!isServiceBound || playbackService == null) return;
+        String[] actions = {getString(R.string.action_play_next), getString(R.string.action_add_to_queue)};
+        new AlertDialog.Builder(this)
+                .setTitle(song.getTitle())
+                .setItems(actions, (dialog, which) -> {
+                    if (which == 0) {
+                        playbackService.playNext(song);
+                    } else {
+                        playbackService.enqueue(Collections.singletonList(song));
+                    }
+                })
+                .show();
+    }
+
 
     private void checkAndRequestPostNotificationPermission() {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
@@ -185,6 +358,8 @@ public class MainActivity extends AppCompatActivity implements SongAdapter.OnSon
             if (grantResults.length > 0 && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
                 Toast.makeText(this, "Media Permission granted", Toast.LENGTH_SHORT).show();
                 scanMusic();
+                libraryObserver.register(getContentResolver());
+                musicLibrary.preload();
             } else {
                 // Permission denied. Explain to the user that the feature is unavailable.
                 // Offer to go to settings or re-request.
@@ -211,32 +386,132 @@ public class MainActivity extends AppCompatActivity implements SongAdapter.OnSon
 
     private void scanMusic() {
         Log.d(TAG, "scanMusic: Called. Starting media scan...");
-        new Thread(() -> {
-            MediaScanner mediaScanner = new MediaScanner();
-            List<Song> scannedSongs = mediaScanner.scanForMusic(MainActivity.this);
-            runOnUiThread(() -> {
-                songList.clear(); // Clear existing list before adding new ones
-                if (scannedSongs.isEmpty()) {
-                    Log.d(TAG, "No music files found.");
-                    Toast.makeText(MainActivity.this, "No music files found.", Toast.LENGTH_LONG).show();
-                } else {
-                    Log.d(TAG, "Found " + scannedSongs.size() + " songs.");
-                    Toast.makeText(MainActivity.this, "Found " + scannedSongs.size() + " songs.", Toast.LENGTH_LONG).show();
-                    songList.addAll(scannedSongs);
-                    // Log details for a few songs for verification
-                    for (int i = 0; i < Math.min(songList.size(), 3); i++) {
-                        Song s = songList.get(i);
-                        Log.d(TAG, "Song " + i + ": Title: " + s.getTitle() + ", Artist: " + s.getArtist() + ", Album: " + s.getAlbum() + ", Art URI: " + s.getAlbumArtUri());
-                    }
-                }
-                songAdapter.setSongs(songList); // Update adapter with the new (or empty) list
+        libraryExecutor.execute(() -> {
+            // Show the first screen of the persisted index right away, then reconcile it with MediaStore.
+            MediaScanner.PageKey cachedKey = new MediaScanner.PageKey();
+            int cachedCount = mediaScanner.loadLibraryPage(MainActivity.this, cachedKey, FIRST_PAGE_SIZE);
+            if (cachedCount > 0) {
+                Log.d(TAG, "Showing first page of the library index.");
+                latestPageKey = cachedKey;
+                postedSongs = cachedKey.getTable().rows(cachedCount);
+                List<Song> firstPage = postedSongs;
+                runOnUiThread(() -> showFirstPage(cachedKey, firstPage));
+            }
+        });
+        scanCoordinator.requestScan();
+    }
+
+    // Runs (debounced) whenever MediaStore reports audio changes while the activity is alive.
+    private void onLibraryChanged() {
+        Log.d(TAG, "MediaStore audio changed, syncing library index.");
+        scanCoordinator.requestRescan();
+    }
+
+    @Override
+    public void onScanProgress(int fetched, int total) {
+        if (total <= 0) return; // Nothing to fetch yet; a quick no-op sync should not flash a progress bar
+        progressBarScan.setVisibility(View.VISIBLE);
+        progressBarScan.setMax(total);
+        progressBarScan.setProgress(fetched);
+    }
 
-                // If service is already bound, we could update its queue if needed,
-                // though typically the queue is set when a song is first played.
-                // if (isServiceBound && playbackService != null) {
-                // playbackService.updateFullQueue(new ArrayList<>(songList));
-                // }
+    @Override
+    public void onScanFinished(ScanCoordinator.ScanOutcome outcome) {
+        progressBarScan.setVisibility(View.GONE);
+        if (outcome == null || outcome.sequence <= handledScanSequence) return;
+        handledScanSequence = outcome.sequence;
+        LoudnessAnalysisJob.schedule(this); // Measures new and changed tracks the next time the device is idle
+        boolean changed = outcome.syncResult.hasChanges();
+        if (changed) {
+            AlbumThumbnails.forgetMissingArt(); // New or retagged tracks may bring art for albums that had none
+            ArtworkBroker.getInstance(this).forgetMissingArt(); // Notification, session and Now Playing art
+        }
+        long songCount = outcome.songCount;
+        libraryExecutor.execute(() -> {
+            // Queued behind the cached first page, so an empty postedSongs means the index was empty before
+            if (!changed && !postedSongs.isEmpty()) return;
+            publishRefreshedLibrary();
+            runOnUiThread(() -> announceSongCount(songCount));
+        });
+    }
+
+    /**
+     * Re-reads the index up to the number of rows currently shown and publishes it as a minimal diff.
+     * Must run on libraryExecutor: the diff is taken against postedSongs, which is exactly what the UI
+     * shows once every earlier runOnUiThread post from this executor has run.
+     */
+    private void publishRefreshedLibrary() {
+        MediaScanner.PageKey key = new MediaScanner.PageKey();
+        int wanted = Math.max(FIRST_PAGE_SIZE, postedSongs.size());
+        mediaScanner.loadLibraryPage(MainActivity.this, key, FIRST_PAGE_SIZE);
+        while (!key.isExhausted() && key.getTable().size() < wanted) {
+            mediaScanner.loadLibraryPage(MainActivity.this, key, PAGE_SIZE);
+        }
+        List<Song> oldSongs = postedSongs;
+        List<Song> newSongs = key.getTable().rows(key.getTable().size());
+        latestPageKey = key;
+        postedSongs = newSongs;
+        if (oldSongs.isEmpty()) {
+            runOnUiThread(() -> showFirstPage(key, newSongs));
+            return;
+        }
+        DiffUtil.DiffResult diff = SongAdapter.calculateDiff(oldSongs, newSongs);
+        boolean hasMore = !key.isExhausted();
+        runOnUiThread(() -> {
+            if (isDestroyed()) return;
+            currentPageKey = key;
+            songList = newSongs;
+            libraryHasMore = hasMore;
+            if (activeQuery != null) return; // The list shows search results; songList is restored when search ends
+            songAdapter.applyDiff(newSongs, diff, hasMore);
+        });
+    }
+
+    private void showFirstPage(MediaScanner.PageKey key, List<Song> firstPage) {
+        if (isDestroyed()) return;
+        currentPageKey = key;
+        songList = firstPage; // Fixed-size view, later appends to the table do not move it
+        libraryHasMore = !key.isExhausted();
+        // Log details for a few songs for verification
+        for (int i = 0; i < Math.min(songList.size(), 3); i++) {
+            Song s = songList.get(i);
+            Log.d(TAG, "Song " + i + ": Title: " + s.getTitle() + ", Artist: " + s.getArtist() + ", Album: " + s.getAlbum() + ", Art URI: " + s.getAlbumArtUri());
+        }
+        if (activeQuery == null) {
+            songAdapter.onPagesReset(songList, libraryHasMore);
+        }
+    }
+
+    private void announceSongCount(long songCount) {
+        if (isDestroyed()) return;
+        if (songCount == 0) {
+            Log.d(TAG, "No music files found.");
+            Toast.makeText(MainActivity.this, "No music files found.", Toast.LENGTH_LONG).show();
+        } else {
+            Log.d(TAG, "Found " + songCount + " songs.");
+            Toast.makeText(MainActivity.this, "Found " + songCount + " songs.", Toast.LENGTH_LONG).show();
+        }
+    }
+
+    @Override
+    public void onLoadMore() {
+        MediaScanner.PageKey key = currentPageKey;
+        if (key == null) return;
+        libraryExecutor.execute(() -> {
+            if (key != latestPageKey) return; // A refresh replaced this paging run before the page was read
+            mediaScanner.loadLibraryPage(MainActivity.this, key, PAGE_SIZE);
+            int rowCount = key.getTable().size();
+            boolean hasMore = !key.isExhausted();
+            List<Song> oldSongs = postedSongs;
+            List<Song> newSongs = key.getTable().rows(rowCount);
+            postedSongs = newSongs;
+            runOnUiThread(() -> {
+                if (isDestroyed()) return;
+                songList = newSongs;
+                libraryHasMore = hasMore;
+                if (activeQuery != null) return;
+                songAdapter.onPageAppended(newSongs, oldSongs.size(), rowCount - oldSongs.size(), hasMore);
             });
-        }).start();
+        });
     }
 }
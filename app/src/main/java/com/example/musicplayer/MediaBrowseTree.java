@@ -0,0 +1,325 @@
+package com.example.musicplayer;
+
+import android.Manifest;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaBrowserCompat.MediaItem;
+import android.support.v4.media.MediaDescriptionCompat;
+import android.util.Log;
+import android.util.LruCache;
+
+import androidx.media.MediaBrowserServiceCompat.Result;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The library as a MediaBrowserServiceCompat tree: songs, albums, artists and the play queue under the
+ * root, tracks under each album and artist. Children are always sent one page at a time, from
+ * EXTRA_PAGE/EXTRA_PAGE_SIZE or the first {@link #MAX_PAGE_SIZE} items when a browser does not page, so no
+ * result comes near the binder transaction limit however large the library is.
+ *
+ * Library pages are cached until MusicLibrary applies a sync; queue pages are cut from the immutable
+ * PlayQueue on every request and need no cache.
+ */
+public class MediaBrowseTree {
+
+    private static final String TAG = "MediaBrowseTree";
+
+    static final String ROOT_ID = "root";
+    static final String EMPTY_ROOT_ID = "empty"; // Given to callers that may not see the library; has no children
+    private static final String SONGS_ID = "songs";
+    private static final String ALBUMS_ID = "albums";
+    private static final String ARTISTS_ID = "artists";
+    private static final String QUEUE_ID = "queue";
+    // Child ids are "<parent>/<song id or queue index>"; album and artist node ids are "album/<key>"
+    private static final String ALBUM_PREFIX = "album/";
+    private static final String ARTIST_PREFIX = "artist/";
+
+    static final int MAX_PAGE_SIZE = 200; // A few hundred bytes per parcelled item keeps a page far below 1 MB
+    private static final int CACHE_PAGES = 64;
+    private static final int MAX_ROW_KEYS = 4096;
+    // Hosts that browse on the user's behalf: Android Auto, Wear OS, the Auto simulator and Assistant in the car
+    private static final HashSet<String> TRUSTED_HOSTS = new HashSet<>(Arrays.asList(
+            "com.android.systemui",
+            "com.google.android.projection.gearhead",
+            "com.google.android.wearable.app",
+            "com.google.android.autosimulator",
+            "com.google.android.carassistant"));
+
+    private final Context appContext;
+    private final PlaybackService service;
+    private final MusicLibrary musicLibrary;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> new Thread(r, "MediaBrowse"));
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // "<parent id>#<page>/<page size>" -> items; only touched on the main thread
+    private final LruCache<String, List<MediaItem>> pageCache = new LruCache<>(CACHE_PAGES);
+    private final Runnable onLibraryChanged = () -> {
+        forgetRowKeys();
+        mainHandler.post(this::invalidate);
+    };
+    // Row r -> sort key of row r - 1, recorded at the end of each songs page read, so the next page (or a
+    // page further on) seeks from it instead of counting past every earlier row. Guarded by itself.
+    private final TreeMap<Integer, RowKey> rowKeys = new TreeMap<>();
+    private int rowKeysGeneration; // Bumped on library change, so a read in flight does not record a stale key
+
+    public MediaBrowseTree(PlaybackService service) {
+        this.appContext = service.getApplicationContext();
+        this.service = service;
+        this.musicLibrary = MusicLibrary.getInstance(appContext);
+        musicLibrary.addChangeListener(onLibraryChanged);
+    }
+
+    public void release() {
+        musicLibrary.removeChangeListener(onLibraryChanged);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Whether {@code packageName} may browse and play the library: this app, the system, the known media
+     * hosts, or an app that could read the same audio from MediaStore itself. Titles, artists and the
+     * listening queue are not something to hand to any app that binds.
+     */
+    static boolean isAllowedCaller(Context context, String packageName, int uid) {
+        if (uid == Process.myUid() || uid == Process.SYSTEM_UID) return true;
+        if (TRUSTED_HOSTS.contains(packageName)) return true; // The framework already checked the uid owns the package
+        String permission = Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU
+                ? Manifest.permission.READ_MEDIA_AUDIO : Manifest.permission.READ_EXTERNAL_STORAGE;
+        return context.checkPermission(permission, -1, uid) == PackageManager.PERMISSION_GRANTED;
+    }
+
+    /** Called on the main thread, from MediaBrowserServiceCompat.onLoadChildren. */
+    public void loadChildren(String parentId, Result<List<MediaItem>> result, Bundle options) {
+        int pageSize = MAX_PAGE_SIZE;
+        int page = 0;
+        if (options != null && options.containsKey(MediaBrowserCompat.EXTRA_PAGE_SIZE)) {
+            page = Math.max(0, options.getInt(MediaBrowserCompat.EXTRA_PAGE, 0));
+            pageSize = Math.max(1, Math.min(MAX_PAGE_SIZE, options.getInt(MediaBrowserCompat.EXTRA_PAGE_SIZE)));
+        }
+        if (EMPTY_ROOT_ID.equals(parentId)) {
+            result.sendResult(Collections.emptyList());
+            return;
+        }
+        if (ROOT_ID.equals(parentId)) {
+            result.sendResult(rootItems());
+            return;
+        }
+        if (QUEUE_ID.equals(parentId)) {
+            result.sendResult(queuePage(service.getCurrentQueue(), page, pageSize));
+            return;
+        }
+        String cacheKey = parentId + "#" + page + "/" + pageSize;
+        List<MediaItem> cached = pageCache.get(cacheKey);
+        if (cached != null) {
+            result.sendResult(cached);
+            return;
+        }
+        result.detach();
+        int offset = page * pageSize;
+        int limit = pageSize;
+        PageCallback deliver = items -> {
+            if (items != null) pageCache.put(cacheKey, items);
+            result.sendResult(items);
+        };
+        if (SONGS_ID.equals(parentId)) {
+            executor.execute(() -> {
+                SongTable table = new SongTable();
+                loadSongsAt(table, offset, limit);
+                List<MediaItem> items = new ArrayList<>(table.size());
+                for (int row = 0; row < table.size(); row++) {
+                    items.add(songItem(SONGS_ID, table.get(row)));
+                }
+                mainHandler.post(() -> deliver.onPage(items));
+            });
+        } else if (ALBUMS_ID.equals(parentId) || ARTISTS_ID.equals(parentId)) {
+            int type = ALBUMS_ID.equals(parentId) ? LibraryGroup.TYPE_ALBUM : LibraryGroup.TYPE_ARTIST;
+            musicLibrary.loadGroups(type, groups -> {
+                List<MediaItem> items = new ArrayList<>(limit);
+                for (int i = offset; i < groups.size() && i < offset + limit; i++) {
+                    items.add(groupItem(groups.get(i)));
+                }
+                deliver.onPage(items);
+            });
+        } else if (parentId.startsWith(ALBUM_PREFIX) || parentId.startsWith(ARTIST_PREFIX)) {
+            int type = parentId.startsWith(ALBUM_PREFIX) ? LibraryGroup.TYPE_ALBUM : LibraryGroup.TYPE_ARTIST;
+            String key = parentId.substring(parentId.indexOf('/') + 1);
+            musicLibrary.loadGroup(type, key, group -> {
+                if (group == null) {
+                    deliver.onPage(null); // Gone since the browser saw it
+                    return;
+                }
+                List<MediaItem> items = new ArrayList<>(limit);
+                for (int i = offset; i < group.tracks.size() && i < offset + limit; i++) {
+                    items.add(songItem(parentId, group.tracks.get(i)));
+                }
+                deliver.onPage(items);
+            });
+        } else {
+            Log.w(TAG, "Unknown parent id " + parentId);
+            result.sendResult(null);
+        }
+    }
+
+    // Keyset read of rows [offset, offset + limit) from the nearest recorded key at or before offset.
+    // Browsers page in order, so that is almost always the end of the previous page. Executor only.
+    private void loadSongsAt(SongTable table, int offset, int limit) {
+        Map.Entry<Integer, RowKey> start;
+        int generation;
+        synchronized (rowKeys) {
+            start = rowKeys.floorEntry(offset);
+            generation = rowKeysGeneration;
+        }
+        int startRow = start != null ? start.getKey() : 0;
+        String afterTitle = start != null ? start.getValue().title : null;
+        long afterId = start != null ? start.getValue().id : 0;
+        int read = LibraryDatabase.getInstance(appContext).loadSongPage(table, afterTitle, afterId, offset - startRow, limit);
+        int last = table.size() - 1;
+        if (read == 0 || table.getTitle(last) == null) return; // A null title cannot be a keyset bound
+        synchronized (rowKeys) {
+            if (generation != rowKeysGeneration) return;
+            if (rowKeys.size() >= MAX_ROW_KEYS) rowKeys.clear();
+            rowKeys.put(offset + read, new RowKey(table.getTitle(last), table.getId(last)));
+        }
+    }
+
+    private void forgetRowKeys() {
+        synchronized (rowKeys) {
+            rowKeys.clear();
+            rowKeysGeneration++;
+        }
+    }
+
+    private static final class RowKey {
+        final String title;
+        final long id;
+
+        RowKey(String title, long id) {
+            this.title = title;
+            this.id = id;
+        }
+    }
+
+    private interface PageCallback {
+        void onPage(List<MediaItem> items);
+    }
+
+    /**
+     * Plays a song item: from its position in its album or artist, from its position in the whole library,
+     * or, for a queue item, by jumping there in the current queue. Any thread.
+     */
+    public void playFromMediaId(String mediaId) {
+        int split = mediaId.lastIndexOf('/');
+        if (split < 0) {
+            Log.w(TAG, "Not a playable media id: " + mediaId);
+            return;
+        }
+        String parentId = mediaId.substring(0, split);
+        long id;
+        try {
+            id = Long.parseLong(mediaId.substring(split + 1));
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Not a playable media id: " + mediaId);
+            return;
+        }
+        if (QUEUE_ID.equals(parentId)) {
+            service.playSongAtIndex((int) id);
+        } else if (SONGS_ID.equals(parentId)) {
+            musicLibrary.loadQueueFrom(id, service::setQueue);
+        } else if (parentId.startsWith(ALBUM_PREFIX) || parentId.startsWith(ARTIST_PREFIX)) {
+            int type = parentId.startsWith(ALBUM_PREFIX) ? LibraryGroup.TYPE_ALBUM : LibraryGroup.TYPE_ARTIST;
+            musicLibrary.loadGroup(type, parentId.substring(parentId.indexOf('/') + 1), group -> {
+                if (group == null) return;
+                for (int i = 0; i < group.tracks.size(); i++) {
+                    if (group.tracks.get(i).getId() == id) {
+                        service.setQueue(group.tracks, i); // Group track lists are unmodifiable
+                        return;
+                    }
+                }
+            });
+        }
+    }
+
+    /** The queue changed; called from the playback thread. */
+    public void onQueueChanged() {
+        service.notifyChildrenChanged(QUEUE_ID);
+    }
+
+    // Drops every cached page and tells browsers to reload the nodes they had loaded. Main thread.
+    private void invalidate() {
+        HashSet<String> loadedParents = new HashSet<>();
+        for (Map.Entry<String, List<MediaItem>> entry : pageCache.snapshot().entrySet()) {
+            String key = entry.getKey();
+            loadedParents.add(key.substring(0, key.lastIndexOf('#')));
+        }
+        pageCache.evictAll();
+        for (String parentId : loadedParents) {
+            service.notifyChildrenChanged(parentId);
+        }
+        Log.d(TAG, "Library changed; reloading " + loadedParents.size() + " browse nodes.");
+    }
+
+    private List<MediaItem> rootItems() {
+        List<MediaItem> items = new ArrayList<>(4);
+        items.add(browsableItem(SONGS_ID, appContext.getString(R.string.browse_songs), null, null));
+        items.add(browsableItem(ALBUMS_ID, appContext.getString(R.string.action_albums), null, null));
+        items.add(browsableItem(ARTISTS_ID, appContext.getString(R.string.action_artists), null, null));
+        items.add(browsableItem(QUEUE_ID, appContext.getString(R.string.browse_queue), null, null));
+        return items;
+    }
+
+    private static List<MediaItem> queuePage(PlayQueue queue, int page, int pageSize) {
+        int offset = page * pageSize;
+        if (offset >= queue.size()) return Collections.emptyList();
+        int end = Math.min(queue.size(), offset + pageSize);
+        List<MediaItem> items = new ArrayList<>(end - offset);
+        for (int i = offset; i < end; i++) {
+            Song song = queue.get(i);
+            items.add(playableItem(QUEUE_ID + "/" + i, song.getTitle(), song.getArtist(), song.getAlbumId()));
+        }
+        return items;
+    }
+
+    private static MediaItem songItem(String parentId, Song song) {
+        return playableItem(parentId + "/" + song.getId(), song.getTitle(), song.getArtist(), song.getAlbumId());
+    }
+
+    private static MediaItem groupItem(LibraryGroup group) {
+        String prefix = group.type == LibraryGroup.TYPE_ALBUM ? ALBUM_PREFIX : ARTIST_PREFIX;
+        String subtitle = group.subtitle != null ? group.subtitle : group.getTrackCount() + " tracks";
+        return browsableItem(prefix + group.key, group.name, subtitle, Uri.parse(group.getArtUri()));
+    }
+
+    private static MediaItem playableItem(String mediaId, String title, String subtitle, long albumId) {
+        MediaDescriptionCompat description = new MediaDescriptionCompat.Builder()
+                .setMediaId(mediaId)
+                .setTitle(title)
+                .setSubtitle(subtitle)
+                .setIconUri(Uri.parse(MediaScanner.albumArtUriFor(albumId))) // A URI, never a bitmap, over IPC
+                .build();
+        return new MediaItem(description, MediaItem.FLAG_PLAYABLE);
+    }
+
+    private static MediaItem browsableItem(String mediaId, String title, String subtitle, Uri iconUri) {
+        MediaDescriptionCompat description = new MediaDescriptionCompat.Builder()
+                .setMediaId(mediaId)
+                .setTitle(title)
+                .setSubtitle(subtitle)
+                .setIconUri(iconUri)
+                .build();
+        return new MediaItem(description, MediaItem.FLAG_BROWSABLE);
+    }
+}
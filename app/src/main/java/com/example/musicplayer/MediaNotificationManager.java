@@ -7,19 +7,17 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.v4.media.session.MediaSessionCompat;
+import android.text.TextUtils;
 
 
 import androidx.core.app.NotificationCompat;
 import androidx.core.app.NotificationManagerCompat;
 // import androidx.media.app.NotificationCompat.MediaStyle; // Correct import for MediaStyle
 
-import com.bumptech.glide.Glide;
-import com.bumptech.glide.request.target.SimpleTarget;
-import com.bumptech.glide.request.transition.Transition;
-
 public class MediaNotificationManager {
 
     private static final String TAG = "MediaNotificationMgr";
@@ -32,14 +30,56 @@ public class MediaNotificationManager {
     public static final String ACTION_STOP_SERVICE = "com.example.musicplayer.ACTION_STOP_SERVICE";
 
 
+    private static final long FRAME_INTERVAL_MS = 16; // Updates closer together than one frame are merged
+    private static final long NO_SONG = -1;
+
     private PlaybackService service;
     private NotificationManagerCompat notificationManager;
+    private final ArtworkBroker artworkBroker;
+    private final Handler handler; // The playback thread; every public method is called there
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable renderRunnable = this::render;
+
+    // Created once; the intents never change, so neither do their PendingIntents
+    private final PendingIntent contentPendingIntent;
+    private final PendingIntent prevPendingIntent;
+    private final PendingIntent playPausePendingIntent;
+    private final PendingIntent nextPendingIntent;
+    private androidx.media.app.NotificationCompat.MediaStyle mediaStyle;
+
+    // Latest requested state, rendered on the next frame tick
+    private Song pendingSong;
+    private boolean pendingIsPlaying;
+    private MediaSessionCompat.Token pendingToken;
+    private boolean renderScheduled = false;
+
+    // What the posted notification currently shows
+    private long renderedSongId = NO_SONG;
+    private String renderedTitle;
+    private String renderedArtist;
+    private boolean renderedIsPlaying;
+    private Bitmap renderedArt;
+    private MediaSessionCompat.Token renderedToken;
+    private boolean isForeground = false;
+    private volatile Notification renderedNotification; // Read on the main thread by startForegroundForMediaButton
+    private long artRequestedAlbumId = NO_SONG;
 
 
-    public MediaNotificationManager(PlaybackService service) {
+    /** Main thread; renders then happen on {@code looper}. */
+    public MediaNotificationManager(PlaybackService service, Looper looper) {
         this.service = service;
+        this.handler = new Handler(looper);
         this.notificationManager = NotificationManagerCompat.from(service);
+        this.artworkBroker = ArtworkBroker.getInstance(service);
+        artworkBroker.getDefaultArt(ArtworkBroker.SIZE_NOTIFICATION); // Rendered here, read from the playback thread later
         createNotificationChannel();
+
+        // Intent to open NowPlayingActivity when notification is clicked
+        contentPendingIntent = PendingIntent.getActivity(service, 0, new Intent(service, NowPlayingActivity.class),
+                PendingIntent.FLAG_UPDATE_CURRENT | (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M ? PendingIntent.FLAG_IMMUTABLE : 0));
+        prevPendingIntent = immutableBroadcast(ACTION_PREVIOUS);
+        playPausePendingIntent = immutableBroadcast(ACTION_PLAY_PAUSE);
+        nextPendingIntent = immutableBroadcast(ACTION_NEXT);
     }
 
     private void createNotificationChannel() {
@@ -63,98 +103,161 @@ public class MediaNotificationManager {
         }
     }
 
-    public void buildNotificationAndStartForeground(Song currentSong, boolean isPlaying, MediaSessionCompat.Token mediaSessionToken) {
-        if (currentSong == null) {
-            android.util.Log.d(TAG, "Cannot build notification, currentSong is null");
-            service.stopForeground(true);
-            hideNotification();
-            return;
-        }
-
-        // Intent to open NowPlayingActivity when notification is clicked
-        Intent contentIntent = new Intent(service, NowPlayingActivity.class);
-        PendingIntent contentPendingIntent = PendingIntent.getActivity(service, 0, contentIntent,
+    private PendingIntent immutableBroadcast(String action) {
+        return PendingIntent.getBroadcast(service, 0, new Intent(action).setPackage(service.getPackageName()),
                 PendingIntent.FLAG_UPDATE_CURRENT | (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M ? PendingIntent.FLAG_IMMUTABLE : 0));
+    }
 
-        // Create PendingIntents for actions
-        PendingIntent prevPendingIntent = PendingIntent.getBroadcast(service, 0,
-                new Intent(ACTION_PREVIOUS).setPackage(service.getPackageName()),
-                PendingIntent.FLAG_UPDATE_CURRENT | (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M ? PendingIntent.FLAG_IMMUTABLE : 0));
+    /**
+     * Asks for the notification to show {@code song} in the given play state, or to go away if
+     * {@code song} is null. Calls within one frame interval collapse into a single render of the latest
+     * state, and a render that would repeat what is already posted is skipped.
+     */
+    public void update(Song song, boolean isPlaying, MediaSessionCompat.Token mediaSessionToken) {
+        pendingSong = song;
+        pendingIsPlaying = isPlaying;
+        pendingToken = mediaSessionToken;
+        if (!renderScheduled) {
+            renderScheduled = true;
+            handler.postDelayed(renderRunnable, FRAME_INTERVAL_MS);
+        }
+    }
 
-        PendingIntent playPausePendingIntent = PendingIntent.getBroadcast(service, 0,
-                new Intent(ACTION_PLAY_PAUSE).setPackage(service.getPackageName()),
-                PendingIntent.FLAG_UPDATE_CURRENT | (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M ? PendingIntent.FLAG_IMMUTABLE : 0));
+    private void render() {
+        renderScheduled = false;
+        Song song = pendingSong;
+        if (song == null) {
+            if (renderedSongId != NO_SONG) {
+                android.util.Log.d(TAG, "No current song, removing notification");
+                hideNotification();
+            }
+            return;
+        }
 
-        PendingIntent nextPendingIntent = PendingIntent.getBroadcast(service, 0,
-                new Intent(ACTION_NEXT).setPackage(service.getPackageName()),
-                PendingIntent.FLAG_UPDATE_CURRENT | (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M ? PendingIntent.FLAG_IMMUTABLE : 0));
-        
-        // PendingIntent stopPendingIntent = PendingIntent.getBroadcast(service, 0,
-        // new Intent(ACTION_STOP_SERVICE).setPackage(service.getPackageName()),
-        // PendingIntent.FLAG_UPDATE_CURRENT | (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M ? PendingIntent.FLAG_IMMUTABLE : 0));
+        Bitmap art = artworkBroker.getCached(song.getAlbumId(), ArtworkBroker.SIZE_NOTIFICATION);
+        if (art == null) {
+            requestArt(song.getAlbumId());
+            art = artworkBroker.getDefaultArt(ArtworkBroker.SIZE_NOTIFICATION);
+        }
+        boolean isPlaying = pendingIsPlaying;
+        if (song.getId() == renderedSongId && isPlaying == renderedIsPlaying && art == renderedArt
+                && TextUtils.equals(song.getTitle(), renderedTitle) && TextUtils.equals(song.getArtist(), renderedArtist)) {
+            return; // Nothing visible changed
+        }
 
+        Notification notification;
+        Tracing.begin(Tracing.BUILD_NOTIFICATION);
+        try {
+            long buildStartedAt = PlaybackMetrics.now();
+            if (mediaStyle == null || pendingToken != renderedToken) {
+                mediaStyle = new androidx.media.app.NotificationCompat.MediaStyle()
+                        .setMediaSession(pendingToken)
+                        .setShowActionsInCompactView(0, 1, 2); // Previous, Play/Pause, Next
+                renderedToken = pendingToken;
+            }
+            notification = new NotificationCompat.Builder(service, CHANNEL_ID)
+                    .setSmallIcon(R.drawable.ic_music_note) // Ensure this drawable exists
+                    .setContentTitle(song.getTitle())
+                    .setContentText(song.getArtist())
+                    .setLargeIcon(art)
+                    .setContentIntent(contentPendingIntent)
+                    .setVisibility(NotificationCompat.VISIBILITY_PUBLIC)
+                    .setOngoing(isPlaying) // Ongoing if playing, dismissible if paused
+                    .setShowWhen(false)
+                    .setStyle(mediaStyle)
+                    .addAction(R.drawable.ic_skip_previous, "Previous", prevPendingIntent)
+                    .addAction(isPlaying ? R.drawable.ic_pause : R.drawable.ic_play_arrow, isPlaying ? "Pause" : "Play", playPausePendingIntent)
+                    .addAction(R.drawable.ic_skip_next, "Next", nextPendingIntent)
+                    .build();
+            PlaybackMetrics.getInstance().notificationBuild.recordSince(buildStartedAt);
+        } finally {
+            Tracing.end();
+        }
 
-        androidx.media.app.NotificationCompat.MediaStyle mediaStyle = new androidx.media.app.NotificationCompat.MediaStyle()
-                .setMediaSession(mediaSessionToken)
-                .setShowActionsInCompactView(0, 1, 2); // Previous, Play/Pause, Next
+        // Foreground only while playing; a paused notification stays up but can be swiped away.
+        if (isPlaying && !isForeground) {
+            service.startForeground(NOTIFICATION_ID, notification);
+            isForeground = true;
+        } else {
+            if (!isPlaying && isForeground) {
+                service.stopForeground(false);
+                isForeground = false;
+            }
+            notificationManager.notify(NOTIFICATION_ID, notification);
+        }
+        renderedNotification = notification;
+        renderedSongId = song.getId();
+        renderedTitle = song.getTitle();
+        renderedArtist = song.getArtist();
+        renderedIsPlaying = isPlaying;
+        renderedArt = art;
+        android.util.Log.d(TAG, "Notification rendered. Playing: " + isPlaying + ", foreground: " + isForeground);
+    }
 
+    private void requestArt(long albumId) {
+        if (albumId == artRequestedAlbumId) return;
+        artRequestedAlbumId = albumId;
+        // The broker is driven from the main thread; its answer is handed back to ours
+        mainHandler.post(() -> artworkBroker.load(albumId, ArtworkBroker.SIZE_NOTIFICATION, (loadedAlbumId, art) ->
+                handler.post(() -> {
+                    if (pendingSong != null && pendingSong.getAlbumId() == loadedAlbumId) {
+                        update(pendingSong, pendingIsPlaying, pendingToken); // Re-render now that the art is cached
+                    }
+                })));
+    }
 
-        NotificationCompat.Builder builder = new NotificationCompat.Builder(service, CHANNEL_ID)
-                .setSmallIcon(R.drawable.ic_music_note) // Ensure this drawable exists
-                .setContentTitle(currentSong.getTitle())
-                .setContentText(currentSong.getArtist())
+    /**
+     * Main thread. Answers the startForegroundService() of a media button within its deadline, before the
+     * playback thread knows whether the key will play anything: re-posts the notification already shown,
+     * unchanged, or else enters the foreground with a plain placeholder for {@code song}, or the app name,
+     * which the next render replaces.
+     */
+    public void startForegroundForMediaButton(Song song) {
+        Notification shown = renderedNotification;
+        if (shown != null) {
+            service.startForeground(NOTIFICATION_ID, shown);
+            handler.post(() -> isForeground = true);
+            return;
+        }
+        Notification notification = new NotificationCompat.Builder(service, CHANNEL_ID)
+                .setSmallIcon(R.drawable.ic_music_note)
+                .setContentTitle(song != null ? song.getTitle() : service.getString(R.string.app_name))
+                .setContentText(song != null ? song.getArtist() : null)
                 .setContentIntent(contentPendingIntent)
                 .setVisibility(NotificationCompat.VISIBILITY_PUBLIC)
-                .setOngoing(isPlaying) // Ongoing if playing, dismissible if paused
-                .setStyle(mediaStyle)
-                .addAction(R.drawable.ic_skip_previous, "Previous", prevPendingIntent)
-                .addAction(isPlaying ? R.drawable.ic_pause : R.drawable.ic_play_arrow, isPlaying ? "Pause" : "Play", playPausePendingIntent)
-                .addAction(R.drawable.ic_skip_next, "Next", nextPendingIntent);
-                // .addAction(R.drawable.ic_close, "Stop", stopPendingIntent); // Optional stop action
-
-        // Load album art asynchronously
-        Glide.with(service)
-                .asBitmap()
-                .load(currentSong.getAlbumArtUri())
-                .error(R.drawable.ic_default_album_art) // Default art if loading fails
-                .into(new SimpleTarget<Bitmap>() {
-                    @Override
-                    public void onResourceReady(Bitmap resource, Transition<? super Bitmap> transition) {
-                        builder.setLargeIcon(resource);
-                        Notification notification = builder.build();
-                        // notificationManager.notify(NOTIFICATION_ID, notification); // Don't notify here, let service handle foreground
-                        service.startForeground(NOTIFICATION_ID, notification);
-                        android.util.Log.d(TAG, "Notification built and service put in foreground (with album art). Playing: " + isPlaying);
-                    }
+                .setShowWhen(false)
+                .build();
+        service.startForeground(NOTIFICATION_ID, notification);
+        handler.post(() -> {
+            isForeground = true;
+            renderedSongId = NO_SONG; // Nothing rendered yet, so the next update always renders
+        });
+    }
 
-                    @Override
-                    public void onLoadFailed(android.graphics.drawable.Drawable errorDrawable) {
-                        super.onLoadFailed(errorDrawable);
-                        // Use default album art if Glide fails
-                        Bitmap defaultAlbumArt = BitmapFactory.decodeResource(service.getResources(), R.drawable.ic_default_album_art);
-                        if (defaultAlbumArt != null) builder.setLargeIcon(defaultAlbumArt);
-                        Notification notification = builder.build();
-                        // notificationManager.notify(NOTIFICATION_ID, notification);
-                        service.startForeground(NOTIFICATION_ID, notification);
-                        android.util.Log.d(TAG, "Notification built and service put in foreground (default art). Playing: " + isPlaying);
-                    }
-                });
-        
-        // Fallback for immediate notification display before Glide finishes (or if it fails quickly)
-        // This ensures the service goes to foreground state promptly.
-        // The notification will then update with album art once Glide loads it.
-        if (!Glide.with(service).isPaused()) { // Check if Glide is active
-             Bitmap defaultAlbumArt = BitmapFactory.decodeResource(service.getResources(), R.drawable.ic_default_album_art);
-             if (defaultAlbumArt != null) builder.setLargeIcon(defaultAlbumArt);
-             Notification notification = builder.build();
-             service.startForeground(NOTIFICATION_ID, notification);
-             android.util.Log.d(TAG, "Notification built (initial) and service put in foreground. Playing: " + isPlaying);
-        }
+    /** True while only the {@link #startForegroundForMediaButton placeholder} is posted. */
+    public boolean isShowingPlaceholder() {
+        return isForeground && renderedSongId == NO_SONG && !renderScheduled;
     }
 
+    /** Leaves the foreground but keeps the notification, as a render of a paused state does. */
+    public void leaveForeground() {
+        if (!isForeground || renderScheduled) return; // The pending render decides
+        service.stopForeground(false);
+        isForeground = false;
+    }
 
+    /** Removes the notification and leaves the foreground state right away, dropping any pending update. */
     public void hideNotification() {
+        handler.removeCallbacks(renderRunnable);
+        renderScheduled = false;
+        pendingSong = null;
+        service.stopForeground(true);
+        isForeground = false;
         notificationManager.cancel(NOTIFICATION_ID);
+        renderedSongId = NO_SONG;
+        renderedNotification = null;
+        renderedArt = null;
+        artRequestedAlbumId = NO_SONG;
         android.util.Log.d(TAG, "Notification hidden");
     }
 }
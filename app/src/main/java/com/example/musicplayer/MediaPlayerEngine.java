@@ -0,0 +1,122 @@
+package com.example.musicplayer;
+
+import android.content.Context;
+import android.media.AudioAttributes;
+import android.media.MediaPlayer;
+import android.os.PowerManager;
+
+import java.io.IOException;
+
+/** {@link PlaybackEngine} on the framework MediaPlayer; gapless chaining uses setNextMediaPlayer. */
+public class MediaPlayerEngine implements PlaybackEngine {
+
+    static final AudioAttributes MUSIC_ATTRIBUTES = new AudioAttributes.Builder()
+            .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
+            .setUsage(AudioAttributes.USAGE_MEDIA)
+            .build();
+
+    private final MediaPlayer player = new MediaPlayer();
+    private Listener listener;
+    private float volume = 1f;
+    private float gain = 1f;
+
+    public MediaPlayerEngine(Context context) {
+        player.setWakeMode(context.getApplicationContext(), PowerManager.PARTIAL_WAKE_LOCK);
+        player.setAudioAttributes(MUSIC_ATTRIBUTES);
+        player.setOnPreparedListener(mp -> {
+            if (listener != null) listener.onPrepared(this);
+        });
+        player.setOnCompletionListener(mp -> {
+            if (listener != null) listener.onCompletion(this);
+        });
+        player.setOnErrorListener((mp, what, extra) -> listener != null && listener.onError(this, what, extra));
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void setDataSource(String path) throws IOException {
+        player.setDataSource(path);
+    }
+
+    @Override
+    public void prepareAsync() {
+        player.prepareAsync();
+    }
+
+    @Override
+    public void start() {
+        player.start();
+    }
+
+    @Override
+    public void pause() {
+        player.pause();
+    }
+
+    @Override
+    public void stop() {
+        player.stop();
+    }
+
+    @Override
+    public void reset() {
+        player.reset();
+        gain = 1f;
+        applyVolume();
+    }
+
+    @Override
+    public void release() {
+        player.release();
+    }
+
+    @Override
+    public void seekTo(int positionMs) {
+        player.seekTo(positionMs);
+    }
+
+    @Override
+    public int getCurrentPosition() {
+        return player.getCurrentPosition();
+    }
+
+    @Override
+    public int getDuration() {
+        return player.getDuration();
+    }
+
+    @Override
+    public boolean isPlaying() {
+        return player.isPlaying();
+    }
+
+    @Override
+    public void setLooping(boolean looping) {
+        player.setLooping(looping);
+    }
+
+    @Override
+    public synchronized void setVolume(float volume) {
+        this.volume = volume;
+        applyVolume();
+    }
+
+    @Override
+    public synchronized void setGain(float gain) {
+        this.gain = gain;
+        applyVolume();
+    }
+
+    private synchronized void applyVolume() {
+        player.setVolume(volume * gain, volume * gain);
+    }
+
+    @Override
+    public void setNextEngine(PlaybackEngine next) {
+        player.setNextMediaPlayer(next != null ? ((MediaPlayerEngine) next).player : null);
+    }
+}
@@ -4,72 +4,293 @@ import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 import android.provider.MediaStore;
 import android.util.Log;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 public class MediaScanner {
 
     private static final String TAG = "MediaScanner";
+    private static final Uri ALBUM_ART_BASE_URI = Uri.parse("content://media/external/audio/albumart");
+    private static final int FETCH_BATCH_SIZE = 500; // Stays well below SQLite's bound-argument limit
 
-    public List<Song> scanForMusic(Context context) {
-        List<Song> songs = new ArrayList<>();
+    /** Receives the number of changed tracks fetched so far out of the total to fetch. */
+    public interface ProgressListener {
+        void onProgress(int fetched, int total);
+    }
+
+    public static String albumArtUriFor(long albumId) {
+        return ContentUris.withAppendedId(ALBUM_ART_BASE_URI, albumId).toString();
+    }
+
+    /** Returns whatever the local library index currently holds, without touching MediaStore. */
+    public SongTable loadCachedLibrary(Context context) {
+        SongTable table = new SongTable();
+        LibraryDatabase.getInstance(context).loadSongs(table);
+        return table;
+    }
+
+    /**
+     * Appends the next window of the library index, in title order, to the key's table and advances the
+     * key. Keyset paging keeps every page an index seek no matter how deep the list is.
+     * Returns the number of rows appended.
+     */
+    public int loadLibraryPage(Context context, PageKey pageKey, int pageSize) {
+        SongTable table = pageKey.table;
+        int read = LibraryDatabase.getInstance(context).loadSongPage(table, pageKey.lastTitle, pageKey.lastId, pageSize);
+        if (read > 0) {
+            Song last = table.get(table.size() - 1);
+            pageKey.lastTitle = last.getTitle();
+            pageKey.lastId = last.getId();
+        }
+        pageKey.exhausted = read < pageSize;
+        return read;
+    }
+
+    /**
+     * Brings the local library index up to date with MediaStore. Only the cheap (_ID, DATE_MODIFIED,
+     * GENERATION_MODIFIED) columns are read for every track; full rows are fetched just for tracks that
+     * were added or changed since the last sync, and indexed tracks missing from MediaStore are deleted.
+     * Throws OperationCanceledException if {@code cancellationSignal} fires; the index is then left as it
+     * was before the call.
+     */
+    public SyncResult syncLibrary(Context context, CancellationSignal cancellationSignal, ProgressListener progressListener) {
+        Tracing.begin(Tracing.SYNC_LIBRARY);
+        try {
+            return syncIndex(context, cancellationSignal, progressListener);
+        } finally {
+            Tracing.end();
+        }
+    }
+
+    private SyncResult syncIndex(Context context, CancellationSignal cancellationSignal, ProgressListener progressListener) {
+        LibraryDatabase database = LibraryDatabase.getInstance(context);
         ContentResolver contentResolver = context.getContentResolver();
+        boolean hasGenerations = Build.VERSION.SDK_INT >= Build.VERSION_CODES.R;
+
+        String mediaStoreVersion = hasGenerations ? MediaStore.getVersion(context) : null;
+        String indexedVersion = database.getMeta(LibraryDatabase.META_MEDIA_STORE_VERSION);
+        // A new MediaStore version means generations were reset and _IDs may have been reused. The index is
+        // cleared inside the transaction below, so a cancelled rebuild keeps the old one.
+        boolean rebuild = mediaStoreVersion != null && !mediaStoreVersion.equals(indexedVersion);
+        if (rebuild) {
+            Log.d(TAG, "MediaStore version changed (" + indexedVersion + " -> " + mediaStoreVersion + "), rebuilding index.");
+        }
+        String storedGeneration = database.getMeta(LibraryDatabase.META_MEDIA_STORE_GENERATION);
+        long lastGeneration = storedGeneration != null && mediaStoreVersion != null && mediaStoreVersion.equals(indexedVersion)
+                ? Long.parseLong(storedGeneration) : -1;
+
+        LibraryDatabase.IndexedRows indexed = database.loadIndexedRows();
+        LongList changedIds = new LongList();
+        LongList deletedIds = new LongList();
+        long maxGeneration = lastGeneration;
+
+        String[] projection = hasGenerations
+                ? new String[]{MediaStore.Audio.Media._ID, MediaStore.Audio.Media.DATE_MODIFIED, MediaStore.Audio.Media.GENERATION_MODIFIED}
+                : new String[]{MediaStore.Audio.Media._ID, MediaStore.Audio.Media.DATE_MODIFIED};
+        String selection = MediaStore.Audio.Media.IS_MUSIC + "!= 0";
+
+        try (Cursor cursor = contentResolver.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, projection,
+                selection, null, MediaStore.Audio.Media._ID + " ASC", cancellationSignal)) {
+            if (cursor == null) {
+                Log.e(TAG, "MediaStore query returned no cursor, keeping the cached library.");
+                return SyncResult.EMPTY;
+            }
+            // Both sides are ordered by _ID, so a single merge pass finds additions, changes and deletions.
+            int i = 0;
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(0);
+                long dateModified = cursor.getLong(1);
+                long generation = hasGenerations ? cursor.getLong(2) : 0;
+                maxGeneration = Math.max(maxGeneration, generation);
+
+                while (i < indexed.size() && indexed.ids[i] < id) {
+                    deletedIds.add(indexed.ids[i++]);
+                }
+                if (i < indexed.size() && indexed.ids[i] == id) {
+                    boolean changed = hasGenerations
+                            ? generation > lastGeneration
+                            : dateModified != indexed.dateModified[i];
+                    if (changed) changedIds.add(id);
+                    i++;
+                } else {
+                    changedIds.add(id);
+                }
+            }
+            while (i < indexed.size()) {
+                deletedIds.add(indexed.ids[i++]);
+            }
+        } catch (OperationCanceledException e) {
+            throw e;
+        } catch (Exception e) {
+            Log.e(TAG, "Error reading MediaStore for library sync: " + e.getMessage());
+            return SyncResult.EMPTY;
+        }
+
+        LongList upsertedIds;
+        database.beginTransaction();
+        try {
+            if (rebuild) database.clearSongs(); // Every row is in changedIds, as lastGeneration is -1
+            Tracing.begin(Tracing.FETCH_AND_INDEX);
+            try {
+                upsertedIds = fetchAndIndex(contentResolver, database, changedIds, hasGenerations, cancellationSignal, progressListener);
+            } finally {
+                Tracing.end();
+            }
+            cancellationSignal.throwIfCanceled();
+            // Ids that left MediaStore between the id scan and the fetch were not written; a stale row of
+            // theirs must not stay behind, and listeners must not look them up
+            long[] written = upsertedIds.toArray();
+            Arrays.sort(written);
+            for (int i = 0; i < changedIds.size(); i++) {
+                if (Arrays.binarySearch(written, changedIds.get(i)) < 0) deletedIds.add(changedIds.get(i));
+            }
+            SQLiteStatement delete = database.compileDelete();
+            for (int i = 0; i < deletedIds.size(); i++) {
+                delete.bindLong(1, deletedIds.get(i));
+                delete.executeUpdateDelete();
+            }
+            if (mediaStoreVersion != null) {
+                database.putMeta(LibraryDatabase.META_MEDIA_STORE_VERSION, mediaStoreVersion);
+                database.putMeta(LibraryDatabase.META_MEDIA_STORE_GENERATION, Long.toString(maxGeneration));
+            }
+            database.setTransactionSuccessful();
+        } catch (OperationCanceledException e) {
+            Log.d(TAG, "Library sync cancelled, index rolled back.");
+            throw e;
+        } catch (Exception e) {
+            Log.e(TAG, "Error updating library index: " + e.getMessage());
+            return SyncResult.EMPTY;
+        } finally {
+            database.endTransaction();
+        }
 
-        Uri musicUri = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
+        Log.d(TAG, "Library sync done. Indexed before: " + indexed.size() + ", changed: " + upsertedIds.size() + ", deleted: " + deletedIds.size());
+        return new SyncResult(upsertedIds.toArray(), deletedIds.toArray());
+    }
+
+    // Returns the ids actually written, which may be fewer than {@code ids} if some were deleted meanwhile.
+    private LongList fetchAndIndex(ContentResolver contentResolver, LibraryDatabase database, LongList ids, boolean hasGenerations,
+                               CancellationSignal cancellationSignal, ProgressListener progressListener) {
         String[] projection = {
                 MediaStore.Audio.Media._ID,
                 MediaStore.Audio.Media.DATA, // path
                 MediaStore.Audio.Media.TITLE,
                 MediaStore.Audio.Media.ARTIST,
                 MediaStore.Audio.Media.ALBUM,
+                MediaStore.Audio.Media.ALBUM_ID,
                 MediaStore.Audio.Media.DURATION,
-                MediaStore.Audio.Media.ALBUM_ID
+                MediaStore.Audio.Media.DATE_MODIFIED,
+                hasGenerations ? MediaStore.Audio.Media.GENERATION_MODIFIED : MediaStore.Audio.Media.DATE_MODIFIED
         };
+        SQLiteStatement upsert = database.compileUpsert();
+        StringBuilder selection = new StringBuilder();
+        LongList upserted = new LongList();
 
-        String selection = MediaStore.Audio.Media.IS_MUSIC + "!= 0";
-        String sortOrder = MediaStore.Audio.Media.TITLE + " ASC";
-
-        Cursor cursor = null;
-        try {
-            cursor = contentResolver.query(musicUri, projection, selection, null, sortOrder);
-
-            if (cursor != null && cursor.moveToFirst()) {
-                int idColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media._ID);
-                int pathColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.DATA);
-                int titleColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.TITLE);
-                int artistColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ARTIST);
-                int albumColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ALBUM);
-                int durationColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.DURATION);
-                int albumIdColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ALBUM_ID);
-
-                do {
-                    long id = cursor.getLong(idColumn);
-                    String path = cursor.getString(pathColumn);
-                    String title = cursor.getString(titleColumn);
-                    String artist = cursor.getString(artistColumn);
-                    String album = cursor.getString(albumColumn);
-                    long duration = cursor.getLong(durationColumn);
-                    long albumId = cursor.getLong(albumIdColumn);
-
-                    Uri albumArtUri = ContentUris.withAppendedId(Uri.parse("content://media/external/audio/albumart"), albumId);
-
-                    songs.add(new Song(id, path, title, artist, album, duration, albumArtUri.toString()));
-                    Log.d(TAG, "Found song: Title: " + title + ", Artist: " + artist + ", Album Art URI: " + albumArtUri.toString());
-                } while (cursor.moveToNext());
-            } else {
-                Log.d(TAG, "No music found on the device.");
+        for (int start = 0; start < ids.size(); start += FETCH_BATCH_SIZE) {
+            progressListener.onProgress(start, ids.size());
+            int end = Math.min(start + FETCH_BATCH_SIZE, ids.size());
+            selection.setLength(0);
+            selection.append(MediaStore.Audio.Media._ID).append(" IN (");
+            for (int i = start; i < end; i++) {
+                if (i > start) selection.append(',');
+                selection.append(ids.get(i));
             }
-        } catch (Exception e) {
-            Log.e(TAG, "Error scanning for music: " + e.getMessage());
-        } finally {
-            if (cursor != null) {
-                cursor.close();
+            selection.append(')');
+
+            try (Cursor cursor = contentResolver.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, projection,
+                    selection.toString(), null, null, cancellationSignal)) {
+                if (cursor == null) continue;
+                while (cursor.moveToNext()) {
+                    upsert.clearBindings();
+                    upsert.bindLong(1, cursor.getLong(0));
+                    bindStringOrNull(upsert, 2, cursor.getString(1));
+                    String title = cursor.getString(2);
+                    upsert.bindString(3, title != null ? title : ""); // Non-null so title keyset paging stays exact
+                    bindStringOrNull(upsert, 4, cursor.getString(3));
+                    bindStringOrNull(upsert, 5, cursor.getString(4));
+                    upsert.bindLong(6, cursor.getLong(5));
+                    upsert.bindLong(7, cursor.getLong(6));
+                    upsert.bindLong(8, cursor.getLong(7));
+                    upsert.bindLong(9, hasGenerations ? cursor.getLong(8) : 0);
+                    upsert.executeInsert();
+                    upserted.add(cursor.getLong(0));
+                }
             }
         }
-        return songs;
+        progressListener.onProgress(ids.size(), ids.size());
+        return upserted;
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    /**
+     * Position of a paged read through the library index, together with the table the pages are
+     * appended to; a fresh key starts at the first row with an empty table.
+     */
+    public static class PageKey {
+        final SongTable table = new SongTable();
+        String lastTitle;
+        long lastId;
+        boolean exhausted;
+
+        public SongTable getTable() {
+            return table;
+        }
+
+        public boolean isExhausted() {
+            return exhausted;
+        }
+    }
+
+    /** Ids touched by one sync: {@code upsertedIds} were added or changed, {@code deletedIds} are gone. */
+    public static class SyncResult {
+        static final SyncResult EMPTY = new SyncResult(new long[0], new long[0]);
+
+        public final long[] upsertedIds;
+        public final long[] deletedIds;
+
+        SyncResult(long[] upsertedIds, long[] deletedIds) {
+            this.upsertedIds = upsertedIds;
+            this.deletedIds = deletedIds;
+        }
+
+        public boolean hasChanges() {
+            return upsertedIds.length > 0 || deletedIds.length > 0;
+        }
+    }
+
+    private static class LongList {
+        private long[] values = new long[64];
+        private int size;
+
+        void add(long value) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        long get(int index) {
+            return values[index];
+        }
+
+        int size() {
+            return size;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
     }
 }
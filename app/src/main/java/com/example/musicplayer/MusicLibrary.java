@@ -0,0 +1,189 @@
+package com.example.musicplayer;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process-wide in-memory view of the whole library index, used by features that need every track at
+ * once (search, album and artist browsing) rather than the page the list happens to show. It is loaded lazily from LibraryDatabase
+ * and then kept current by applying sync deltas, never by reloading.
+ */
+public class MusicLibrary {
+
+    private static final String TAG = "MusicLibrary";
+
+    private static MusicLibrary instance;
+
+    private final Context appContext;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final AtomicInteger searchGeneration = new AtomicInteger();
+    private final List<Runnable> changeListeners = new CopyOnWriteArrayList<>();
+
+    // Only touched on executor
+    private SearchIndex searchIndex;
+    private LibraryAggregates aggregates;
+    // The whole index in SONG_SORT_ORDER as it was at the last sync, shared by every queue started from the
+    // full song list; only touched on executor, dropped by applySync
+    private SongTable libraryTable;
+
+    public interface SearchCallback {
+        void onSearchResults(String query, List<Song> results);
+    }
+
+    public interface GroupsCallback {
+        void onGroupsLoaded(List<LibraryGroup> groups);
+    }
+
+    public interface GroupCallback {
+        void onGroupLoaded(LibraryGroup group);
+    }
+
+    public interface QueueCallback {
+        void onQueueLoaded(List<Song> songs, int index);
+    }
+
+    public static synchronized MusicLibrary getInstance(Context context) {
+        if (instance == null) {
+            instance = new MusicLibrary(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private MusicLibrary(Context appContext) {
+        this.appContext = appContext;
+    }
+
+    /** {@code listener} runs on the library's executor after each applied sync. */
+    public void addChangeListener(Runnable listener) {
+        changeListeners.add(listener);
+    }
+
+    public void removeChangeListener(Runnable listener) {
+        changeListeners.remove(listener);
+    }
+
+    /** Starts loading the full library in the background so the first query does not pay for it. */
+    public void preload() {
+        executor.execute(this::ensureLoaded);
+    }
+
+    /** Applies one sync's changes; a library that was never loaded picks them up when it loads. */
+    public void applySync(MediaScanner.SyncResult syncResult) {
+        if (!syncResult.hasChanges()) return;
+        executor.execute(() -> {
+            libraryTable = null;
+            if (searchIndex == null) {
+                notifyChanged(); // Nothing to patch, but views built from the database are stale
+                return;
+            }
+            for (long id : syncResult.deletedIds) {
+                searchIndex.remove(id);
+            }
+            SongTable changed = new SongTable();
+            LibraryDatabase.getInstance(appContext).loadSongsById(changed, syncResult.upsertedIds);
+            for (int row = 0; row < changed.size(); row++) {
+                searchIndex.add(changed.get(row));
+            }
+            aggregates.apply(syncResult.deletedIds, changed);
+            Log.d(TAG, "Applied sync delta: " + changed.size() + " upserted, " + syncResult.deletedIds.length + " deleted.");
+            notifyChanged();
+        });
+    }
+
+    private void notifyChanged() {
+        for (Runnable listener : changeListeners) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Runs {@code query} off the main thread and delivers the results on it. Only the latest query is
+     * answered: typing fast queues several, and the older ones are skipped before and after running.
+     */
+    public void search(String query, int limit, SearchCallback callback) {
+        int generation = searchGeneration.incrementAndGet();
+        executor.execute(() -> {
+            if (generation != searchGeneration.get()) return;
+            ensureLoaded();
+            List<Song> results = searchIndex.search(query, limit);
+            mainHandler.post(() -> {
+                if (generation == searchGeneration.get()) {
+                    callback.onSearchResults(query, results);
+                }
+            });
+        });
+    }
+
+    /** Delivers all albums or artists, sorted by name, on the main thread. */
+    public void loadGroups(int type, GroupsCallback callback) {
+        executor.execute(() -> {
+            ensureLoaded();
+            List<LibraryGroup> groups = aggregates.getGroups(type);
+            mainHandler.post(() -> callback.onGroupsLoaded(groups));
+        });
+    }
+
+    /** Delivers one album or artist, or null if it no longer exists, on the main thread. */
+    public void loadGroup(int type, String key, GroupCallback callback) {
+        executor.execute(() -> {
+            ensureLoaded();
+            LibraryGroup group = aggregates.getGroup(type, key);
+            mainHandler.post(() -> callback.onGroupLoaded(group));
+        });
+    }
+
+    /**
+     * Delivers the whole library in list order and the index of song {@code songId} in it, on the main
+     * thread, to play the library from that song; nothing is delivered if the song is no longer indexed.
+     * The position is one indexed count and the list is read once per sync, so a tap does not reload or
+     * scan the library.
+     */
+    public void loadQueueFrom(long songId, QueueCallback callback) {
+        executor.execute(() -> {
+            LibraryDatabase database = LibraryDatabase.getInstance(appContext);
+            SongTable tapped = new SongTable();
+            database.loadSongsById(tapped, new long[]{songId});
+            if (tapped.isEmpty()) return; // Gone since the list showed it
+            int position = database.countSongsBefore(tapped.getTitle(0), songId);
+            SongTable table = libraryTable;
+            if (table == null || position >= table.size() || table.getId(position) != songId) {
+                table = new MediaScanner().loadCachedLibrary(appContext); // First play, or a sync not applied yet
+                libraryTable = table;
+            }
+            if (position >= table.size() || table.getId(position) != songId) {
+                Log.w(TAG, "Song " + songId + " moved while starting it; not playing.");
+                return;
+            }
+            List<Song> songs = table.rows(table.size());
+            mainHandler.post(() -> callback.onQueueLoaded(songs, position));
+        });
+    }
+
+    /** Drops any search still queued or in flight, e.g. when the search box is closed. */
+    public void cancelSearch() {
+        searchGeneration.incrementAndGet();
+    }
+
+    private void ensureLoaded() {
+        if (searchIndex != null) return;
+        long start = System.currentTimeMillis();
+        SongTable table = new MediaScanner().loadCachedLibrary(appContext);
+        SearchIndex index = new SearchIndex();
+        for (int row = 0; row < table.size(); row++) {
+            index.add(table.get(row));
+        }
+        searchIndex = index;
+        aggregates = LibraryAggregates.build(table);
+        if (libraryTable == null) libraryTable = table; // Never appended to, so queues can share it
+        Log.d(TAG, "Loaded " + table.size() + " songs into memory in " + (System.currentTimeMillis() - start) + " ms.");
+    }
+}
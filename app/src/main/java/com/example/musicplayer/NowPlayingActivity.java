@@ -4,11 +4,12 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
-import android.net.Uri;
+import android.graphics.Bitmap;
 import android.os.Bundle;
-import android.os.Handler;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.util.Log;
+import android.view.Choreographer;
 import android.widget.ImageButton;
 import android.widget.ImageView;
 import android.widget.SeekBar;
@@ -17,8 +18,7 @@ import android.widget.Toast;
 
 import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatActivity;
-
-import com.bumptech.glide.Glide;
+import androidx.core.content.ContextCompat;
 
 import java.util.Locale;
 import java.util.concurrent.TimeUnit;
@@ -36,9 +36,17 @@ public class NowPlayingActivity extends AppCompatActivity implements PlaybackSer
     private boolean isServiceBound = false;
     private Intent serviceIntent;
 
-    private Handler updateSeekBarHandler = new Handler();
-    private Runnable updateSeekBarRunnable;
-
+    // Progress is extrapolated from the service's last anchor once per frame, only while it can be seen moving
+    private PositionAnchor positionAnchor = PositionAnchor.STOPPED;
+    private boolean visible;
+    private boolean userSeeking;
+    private boolean frameCallbackPosted;
+    private long shownSecond = -1;
+    private final Choreographer.FrameCallback progressFrameCallback = frameTimeNanos -> {
+        frameCallbackPosted = false;
+        showPosition();
+        updateProgressAnimation();
+    };
 
     private ServiceConnection serviceConnection = new ServiceConnection() {
         @Override
@@ -46,23 +54,25 @@ public class NowPlayingActivity extends AppCompatActivity implements PlaybackSer
             PlaybackService.LocalBinder binder = (PlaybackService.LocalBinder) service;
             playbackService = binder.getService();
             isServiceBound = true;
-            playbackService.setPlaybackStateListener(NowPlayingActivity.this); // Register listener
+            // Register listener; events arrive on the main thread
+            playbackService.subscribe(NowPlayingActivity.this, ContextCompat.getMainExecutor(NowPlayingActivity.this));
             Log.d(TAG, "PlaybackService connected to NowPlayingActivity and listener registered.");
             updateUIWithCurrentSong(); // Initial UI setup
             updateShuffleRepeatButtonStates(); // Set initial button states
             setupPlaybackControls();   // Setup button listeners
-            startUpdatingSeekBar();    // Start seekbar updates
+            onPositionChanged(playbackService.getPositionAnchor()); // Start seekbar updates
         }
 
         @Override
         public void onServiceDisconnected(ComponentName name) {
             if (playbackService != null) {
-                playbackService.setPlaybackStateListener(null); // Unregister listener
+                playbackService.unsubscribe(NowPlayingActivity.this); // Unregister listener
             }
             isServiceBound = false;
             playbackService = null;
             Log.d(TAG, "PlaybackService disconnected from NowPlayingActivity and listener unregistered.");
-            stopUpdatingSeekBar();
+            positionAnchor = PositionAnchor.STOPPED;
+            updateProgressAnimation();
         }
     };
 
@@ -95,6 +105,8 @@ public class NowPlayingActivity extends AppCompatActivity implements PlaybackSer
     @Override
     protected void onStart() {
         super.onStart();
+        visible = true;
+        updateProgressAnimation();
         // Bind to the service if it's not already bound
         if (!isServiceBound) {
             // Check if the service is already running, if not, start it.
@@ -109,6 +121,8 @@ public class NowPlayingActivity extends AppCompatActivity implements PlaybackSer
     @Override
     protected void onStop() {
         super.onStop();
+        visible = false;
+        updateProgressAnimation(); // No frames while hidden
         // Unbind from the service if it's bound.
         // Do not stop the service here as it might be playing music in the background.
         // if (isServiceBound) {
@@ -116,18 +130,17 @@ public class NowPlayingActivity extends AppCompatActivity implements PlaybackSer
         //     isServiceBound = false;
         //     Log.d(TAG, "PlaybackService unbound from NowPlayingActivity onStop");
         // }
-        // stopUpdatingSeekBar(); // Stop updates when activity is not visible
     }
     
     @Override
     protected void onDestroy() {
         super.onDestroy();
         if (isServiceBound) {
+            playbackService.unsubscribe(this); // The service outlives this activity
             unbindService(serviceConnection);
             isServiceBound = false;
             Log.d(TAG, "PlaybackService unbound from NowPlayingActivity onDestroy");
         }
-        stopUpdatingSeekBar();
     }
 
 
@@ -138,11 +151,7 @@ public class NowPlayingActivity extends AppCompatActivity implements PlaybackSer
                 textViewTitle.setText(currentSong.getTitle());
                 textViewArtist.setText(currentSong.getArtist());
 
-                Glide.with(this)
-                        .load(Uri.parse(currentSong.getAlbumArtUri()))
-                        .placeholder(R.drawable.ic_default_album_art)
-                        .error(R.drawable.ic_default_album_art)
-                        .into(imageViewAlbumArt);
+                showAlbumArt(currentSong.getAlbumId());
                 
                 updatePlayPauseButton();
                 updateDurationUI(playbackService.getDuration());
@@ -163,6 +172,23 @@ public class NowPlayingActivity extends AppCompatActivity implements PlaybackSer
         }
     }
     
+    private void showAlbumArt(long albumId) {
+        ArtworkBroker artworkBroker = ArtworkBroker.getInstance(this);
+        Bitmap cachedArt = artworkBroker.getCached(albumId, ArtworkBroker.SIZE_FULL);
+        if (cachedArt != null) {
+            imageViewAlbumArt.setImageBitmap(cachedArt);
+            return;
+        }
+        imageViewAlbumArt.setImageResource(R.drawable.ic_default_album_art);
+        artworkBroker.load(albumId, ArtworkBroker.SIZE_FULL, (loadedAlbumId, art) -> {
+            if (isDestroyed() || playbackService == null) return;
+            Song currentSong = playbackService.getCurrentSong();
+            if (currentSong != null && currentSong.getAlbumId() == loadedAlbumId) {
+                imageViewAlbumArt.setImageBitmap(art);
+            }
+        });
+    }
+
     private void updatePlayPauseButton() {
         if (isServiceBound && playbackService != null) {
             if (playbackService.isPlaying()) {
@@ -179,89 +205,24 @@ public class NowPlayingActivity extends AppCompatActivity implements PlaybackSer
     }
 
 
-    private void setupPlaybackControls() {
-        buttonPlayPause.setOnClickListener(v -> {
-            if (isServiceBound && playbackService != null) {
-                if (playbackService.isPlaying()) {
-                    playbackService.pauseSong();
-                } else {
-                    // If no song is loaded or if it was stopped, play the current (or first)
-                    if (playbackService.getCurrentSong() == null) {
-                        // Potentially load a default song or queue from MainActivity's perspective
-                        // This case needs more robust handling based on app flow
-                        Toast.makeText(this, "No song selected to play.", Toast.LENGTH_SHORT).show();
-                    } else {
-                        playbackService.resumeSong(); // Or playSong if it handles start implicitly
-                    }
-                }
-                updatePlayPauseButton();
-            }
-        });
-
-        buttonNext.setOnClickListener(v -> {
-            if (isServiceBound && playbackService != null) {
-                playbackService.playNextSong(); // Assumes PlaybackService has this method
-                // UI should update via a callback or by re-fetching current song info
-            }
-        });
-
-        buttonPrevious.setOnClickListener(v -> {
-            if (isServiceBound && playbackService != null) {
-                playbackService.playPreviousSong(); // Assumes PlaybackService has this method
-                // UI should update via a callback
-            }
-        });
-
-        seekBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
-            int userSelectedPosition = 0;
-            @Override
-            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
-                if (fromUser) {
-                    userSelectedPosition = progress;
-                    textViewCurrentTime.setText(formatMillis(progress));
-                }
-            }
-
-            @Override
-            public void onStartTrackingTouch(SeekBar seekBar) {
-                stopUpdatingSeekBar(); // Stop handler while user is interacting
-            }
-
-            @Override
-            public void onStopTrackingTouch(SeekBar seekBar) {
-                if (isServiceBound && playbackService != null) {
-                    playbackService.seekTo(userSelectedPosition);
-                }
-                startUpdatingSeekBar(); // Restart handler
-            }
-        });
-    }
-
-    private void startUpdatingSeekBar() {
-        if (updateSeekBarRunnable == null) {
-            updateSeekBarRunnable = new Runnable() {
-                @Override
-                public void run() {
-                    if (isServiceBound && playbackService != null && playbackService.isPlaying()) {
-                        int currentPosition = playbackService.getCurrentPosition();
-                        seekBar.setProgress(currentPosition);
-                        textViewCurrentTime.setText(formatMillis(currentPosition));
-                        
-                        // Update total duration if it changed (e.g. new song loaded)
-                        if(seekBar.getMax() != playbackService.getDuration()){
-                             updateDurationUI(playbackService.getDuration());
-                        }
-                    }
-                    updateSeekBarHandler.postDelayed(this, 500); // Update every 500ms
-                }
-            };
+    private void updateProgressAnimation() {
+        boolean animate = visible && !userSeeking && positionAnchor.speed > 0;
+        if (animate && !frameCallbackPosted) {
+            Choreographer.getInstance().postFrameCallback(progressFrameCallback);
+            frameCallbackPosted = true;
+        } else if (!animate && frameCallbackPosted) {
+            Choreographer.getInstance().removeFrameCallback(progressFrameCallback);
+            frameCallbackPosted = false;
         }
-        updateSeekBarHandler.post(updateSeekBarRunnable);
     }
 
-    private void stopUpdatingSeekBar() {
-        if (updateSeekBarRunnable != null) {
-            updateSeekBarHandler.removeCallbacks(updateSeekBarRunnable);
+    private void showPosition() {
+        long position = positionAnchor.positionAt(SystemClock.elapsedRealtime());
+        seekBar.setProgress((int) position);
+        long second = position / 1000;
+        if (second != shownSecond) { // The text only changes once a second
+            shownSecond = second;
+            textViewCurrentTime.setText(formatMillis(position));
         }
     }
 
@@ -278,49 +239,39 @@ public class NowPlayingActivity extends AppCompatActivity implements PlaybackSer
     @Override
     public void onSongChanged(Song newSong) {
         Log.d(TAG, "Listener: onSongChanged called with " + (newSong != null ? newSong.getTitle() : "null song"));
-        runOnUiThread(() -> {
-            updateUIWithCurrentSong(); // This will fetch the latest song from service
-        });
+        updateUIWithCurrentSong(); // This will fetch the latest song from service
     }
 
     @Override
     public void onPlaybackStateChanged(boolean isPlaying) {
         Log.d(TAG, "Listener: onPlaybackStateChanged called with isPlaying: " + isPlaying);
-        runOnUiThread(() -> {
-            updatePlayPauseButton();
-            if (isPlaying) {
-                startUpdatingSeekBar();
-            } else {
-                // When paused, ensure the seekbar reflects the current position accurately
-                // without continuous polling if the handler is stopped for paused state.
-                if (isServiceBound && playbackService != null) {
-                    seekBar.setProgress(playbackService.getCurrentPosition());
-                    textViewCurrentTime.setText(formatMillis(playbackService.getCurrentPosition()));
-                }
-                // Depending on startUpdatingSeekBar logic, you might not need to explicitly stop it
-                // if it already checks isPlaying().
-            }
-        });
+        updatePlayPauseButton(); // The position follows in onPositionChanged
     }
 
     @Override
-    public void onQueueUpdated(List<Song> queue, int newIndex) {
-        Log.d(TAG, "Listener: onQueueUpdated called. New index: " + newIndex);
-        runOnUiThread(() -> {
-            updateUIWithCurrentSong();
-        });
+    public void onQueueUpdated(PlayQueue queue, QueueDelta delta, int newIndex) {
+        Log.d(TAG, "Listener: onQueueUpdated called. " + delta + ", new index: " + newIndex);
+        updateUIWithCurrentSong();
     }
 
     @Override
     public void onShuffleModeChanged(boolean isShuffleOn) {
         Log.d(TAG, "Listener: onShuffleModeChanged called with isShuffleOn: " + isShuffleOn);
-        runOnUiThread(this::updateShuffleButtonVisual);
+        updateShuffleButtonVisual();
     }
 
     @Override
     public void onRepeatModeChanged(PlaybackService.RepeatMode newMode) {
         Log.d(TAG, "Listener: onRepeatModeChanged called with newMode: " + newMode);
-        runOnUiThread(this::updateRepeatButtonVisual);
+        updateRepeatButtonVisual();
+    }
+
+    @Override
+    public void onPositionChanged(PositionAnchor anchor) {
+        positionAnchor = anchor;
+        updateDurationUI((int) anchor.durationMs);
+        if (!userSeeking) showPosition();
+        updateProgressAnimation();
     }
     // --- End of PlaybackStateListener Implementation ---
 
@@ -416,15 +367,21 @@ public class NowPlayingActivity extends AppCompatActivity implements PlaybackSer
 
             @Override
             public void onStartTrackingTouch(SeekBar seekBar) {
-                stopUpdatingSeekBar(); // Stop handler while user is interacting
+                userSeeking = true; // Stop frame updates while user is interacting
+                shownSecond = -1;
+                updateProgressAnimation();
             }
 
             @Override
             public void onStopTrackingTouch(SeekBar seekBar) {
+                userSeeking = false;
                 if (isServiceBound && playbackService != null) {
                     playbackService.seekTo(userSelectedPosition);
+                    // Continue from the new position until the service pushes its own anchor
+                    positionAnchor = new PositionAnchor(userSelectedPosition, SystemClock.elapsedRealtime(),
+                            positionAnchor.speed, positionAnchor.durationMs);
                 }
-                startUpdatingSeekBar(); // Restart handler
+                updateProgressAnimation(); // Restart frame updates
             }
         });
     }
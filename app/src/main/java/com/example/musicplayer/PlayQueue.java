@@ -0,0 +1,223 @@
+package com.example.musicplayer;
+
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable play queue stored as a balanced rope of slices over shared song lists. Wrapping a list is
+ * O(1) and never copies it; play-next, enqueue, move and remove return a new queue in O(log n) that
+ * shares all untouched structure with the old one. Being immutable, a queue can be handed to the UI or
+ * another thread as-is.
+ *
+ * Lists passed in are referenced, not copied, and must not be modified afterwards.
+ */
+public final class PlayQueue extends AbstractList<Song> {
+
+    public static final PlayQueue EMPTY = new PlayQueue(null);
+
+    private static final int MAX_MERGED_LEAF = 32; // Adjacent small slices are copied into one below this size
+
+    private final Node root;
+
+    private PlayQueue(Node root) {
+        this.root = root;
+    }
+
+    public static PlayQueue of(List<Song> songs) {
+        return songs == null || songs.isEmpty() ? EMPTY : new PlayQueue(new Leaf(songs, 0, songs.size()));
+    }
+
+    @Override
+    public int size() {
+        return root == null ? 0 : root.size;
+    }
+
+    @Override
+    public Song get(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size());
+        }
+        Node node = root;
+        while (node instanceof Branch) {
+            Branch branch = (Branch) node;
+            if (index < branch.left.size) {
+                node = branch.left;
+            } else {
+                index -= branch.left.size;
+                node = branch.right;
+            }
+        }
+        Leaf leaf = (Leaf) node;
+        return leaf.songs.get(leaf.from + index);
+    }
+
+    /** Returns a queue with {@code songs} inserted before {@code index}. */
+    public PlayQueue insert(int index, List<Song> songs) {
+        if (index < 0 || index > size()) throw new IndexOutOfBoundsException("Index " + index + ", size " + size());
+        if (songs.isEmpty()) return this;
+        Node[] halves = split(root, index);
+        return new PlayQueue(concat(concat(halves[0], new Leaf(songs, 0, songs.size())), halves[1]));
+    }
+
+    public PlayQueue append(List<Song> songs) {
+        return insert(size(), songs);
+    }
+
+    public PlayQueue removeAt(int index) {
+        if (index < 0 || index >= size()) throw new IndexOutOfBoundsException("Index " + index + ", size " + size());
+        Node[] head = split(root, index);
+        Node[] tail = split(head[1], 1);
+        return new PlayQueue(concat(head[0], tail[1]));
+    }
+
+    /** Returns a queue with the entry at {@code from} moved to {@code to}, as if removed and re-inserted there. */
+    public PlayQueue move(int from, int to) {
+        if (from < 0 || from >= size()) throw new IndexOutOfBoundsException("Index " + from + ", size " + size());
+        if (to < 0 || to >= size()) throw new IndexOutOfBoundsException("Index " + to + ", size " + size());
+        if (from == to) return this;
+        Node[] head = split(root, from);
+        Node[] tail = split(head[1], 1);
+        Node[] rest = split(concat(head[0], tail[1]), to);
+        return new PlayQueue(concat(concat(rest[0], tail[0]), rest[1]));
+    }
+
+    @Override
+    public Iterator<Song> iterator() {
+        return new Iterator<Song>() {
+            private final ArrayDeque<Node> stack = new ArrayDeque<>();
+            private Leaf leaf;
+            private int offset;
+
+            {
+                if (root != null) stack.push(root);
+            }
+
+            @Override
+            public boolean hasNext() {
+                while (leaf == null || offset == leaf.size) {
+                    if (stack.isEmpty()) return false;
+                    Node node = stack.pop();
+                    while (node instanceof Branch) {
+                        stack.push(((Branch) node).right);
+                        node = ((Branch) node).left;
+                    }
+                    leaf = (Leaf) node;
+                    offset = 0;
+                }
+                return true;
+            }
+
+            @Override
+            public Song next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return leaf.songs.get(leaf.from + offset++);
+            }
+        };
+    }
+
+    // Height-balanced (AVL) rope. Each node caches its size for positional descent.
+
+    private abstract static class Node {
+        final int size;
+        final int height;
+
+        Node(int size, int height) {
+            this.size = size;
+            this.height = height;
+        }
+    }
+
+    private static final class Leaf extends Node {
+        final List<Song> songs;
+        final int from;
+
+        Leaf(List<Song> songs, int from, int to) {
+            super(to - from, 0);
+            this.songs = songs;
+            this.from = from;
+        }
+    }
+
+    private static final class Branch extends Node {
+        final Node left;
+        final Node right;
+
+        Branch(Node left, Node right) {
+            super(left.size + right.size, Math.max(left.height, right.height) + 1);
+            this.left = left;
+            this.right = right;
+        }
+    }
+
+    private static int height(Node node) {
+        return node == null ? -1 : node.height;
+    }
+
+    // Joins two ropes in O(|height difference|), descending the taller one and rebalancing on the way up.
+    private static Node concat(Node a, Node b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        if (a instanceof Leaf && b instanceof Leaf && a.size + b.size <= MAX_MERGED_LEAF) {
+            return mergeLeaves((Leaf) a, (Leaf) b);
+        }
+        if (a.height > b.height + 1) {
+            Branch branch = (Branch) a;
+            return balance(branch.left, concat(branch.right, b));
+        }
+        if (b.height > a.height + 1) {
+            Branch branch = (Branch) b;
+            return balance(concat(a, branch.left), branch.right);
+        }
+        return new Branch(a, b);
+    }
+
+    private static Node balance(Node left, Node right) {
+        if (height(left) > height(right) + 1) {
+            Branch l = (Branch) left;
+            if (height(l.left) >= height(l.right)) {
+                return new Branch(l.left, new Branch(l.right, right));
+            }
+            Branch lr = (Branch) l.right;
+            return new Branch(new Branch(l.left, lr.left), new Branch(lr.right, right));
+        }
+        if (height(right) > height(left) + 1) {
+            Branch r = (Branch) right;
+            if (height(r.right) >= height(r.left)) {
+                return new Branch(new Branch(left, r.left), r.right);
+            }
+            Branch rl = (Branch) r.left;
+            return new Branch(new Branch(left, rl.left), new Branch(rl.right, r.right));
+        }
+        return new Branch(left, right);
+    }
+
+    private static Leaf mergeLeaves(Leaf a, Leaf b) {
+        List<Song> merged = new ArrayList<>(a.size + b.size);
+        merged.addAll(a.songs.subList(a.from, a.from + a.size));
+        merged.addAll(b.songs.subList(b.from, b.from + b.size));
+        return new Leaf(merged, 0, merged.size());
+    }
+
+    // Splits into [0, index) and [index, size); either half may be null when empty.
+    private static Node[] split(Node node, int index) {
+        if (node == null || index <= 0) return new Node[]{null, node};
+        if (index >= node.size) return new Node[]{node, null};
+        if (node instanceof Leaf) {
+            Leaf leaf = (Leaf) node;
+            return new Node[]{
+                    new Leaf(leaf.songs, leaf.from, leaf.from + index),
+                    new Leaf(leaf.songs, leaf.from + index, leaf.from + leaf.size)};
+        }
+        Branch branch = (Branch) node;
+        if (index < branch.left.size) {
+            Node[] parts = split(branch.left, index);
+            return new Node[]{parts[0], concat(parts[1], branch.right)};
+        }
+        Node[] parts = split(branch.right, index - branch.left.size);
+        return new Node[]{concat(branch.left, parts[0]), parts[1]};
+    }
+}
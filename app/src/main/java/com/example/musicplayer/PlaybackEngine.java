@@ -0,0 +1,68 @@
+package com.example.musicplayer;
+
+import java.io.IOException;
+
+/**
+ * One decoder/output pipeline that plays a single track at a time, modelled on the MediaPlayer state
+ * machine: setDataSource, prepareAsync, then start/pause/seekTo, and reset to reuse it. Calls made in a
+ * state the engine does not allow throw IllegalStateException.
+ *
+ * PlaybackService drives several engines (current, pre-prepared next, fading out) and only talks to them
+ * through this interface, so the queue and transition logic does not depend on MediaPlayer.
+ */
+public interface PlaybackEngine {
+
+    interface Factory {
+        PlaybackEngine create();
+    }
+
+    /** Called on the thread that created the engine. */
+    interface Listener {
+        void onPrepared(PlaybackEngine engine);
+        void onCompletion(PlaybackEngine engine);
+        /** Returns true if the error was handled; the engine must be reset before it is used again. */
+        boolean onError(PlaybackEngine engine, int what, int extra);
+    }
+
+    void setListener(Listener listener);
+
+    void setDataSource(String path) throws IOException;
+
+    void prepareAsync();
+
+    void start();
+
+    void pause();
+
+    void stop();
+
+    /** Returns the engine to its idle state so it can take a new data source. */
+    void reset();
+
+    void release();
+
+    void seekTo(int positionMs);
+
+    int getCurrentPosition();
+
+    int getDuration();
+
+    boolean isPlaying();
+
+    void setLooping(boolean looping);
+
+    /** Linear gain from 0 to 1 on both channels. May be called from another thread, e.g. by a fade. */
+    void setVolume(float volume);
+
+    /**
+     * Fixed per-track gain from 0 to 1, such as a ReplayGain adjustment, multiplied into every
+     * {@link #setVolume} so fades and ducking keep working on top of it. reset() restores 1.
+     */
+    void setGain(float gain);
+
+    /**
+     * Chains {@code next}, already prepared, to start on the exact sample this engine completes at; null
+     * unchains. {@code next} must come from the same factory.
+     */
+    void setNextEngine(PlaybackEngine next);
+}
@@ -0,0 +1,253 @@
+package com.example.musicplayer;
+
+import java.util.Objects;
+import java.util.concurrent.Executor;
+
+/**
+ * Fans PlaybackService's events out to any number of {@link PlaybackService.PlaybackStateListener}s, each
+ * called on its own executor. Events are published from the playback thread only.
+ *
+ * Events that repeat the last published value are dropped, and events that pile up while a subscriber's
+ * executor is busy are merged: each subscriber gets the latest song, state, modes and position once, and
+ * several queue deltas collapse into a single REPLACED. Subscribing copies the subscriber array, so
+ * publishing neither locks the bus nor allocates.
+ */
+public class PlaybackEventBus implements PlaybackService.PlaybackStateListener {
+
+    private static final int QUEUE = 1;
+    private static final int SONG = 1 << 1;
+    private static final int STATE = 1 << 2;
+    private static final int SHUFFLE = 1 << 3;
+    private static final int REPEAT = 1 << 4;
+    private static final int POSITION = 1 << 5;
+    private static final Subscriber[] NO_SUBSCRIBERS = new Subscriber[0];
+
+    private final Runnable beforePublish;
+    private volatile Subscriber[] subscribers = NO_SUBSCRIBERS;
+
+    // Last published values, only touched on the publishing thread
+    private Song lastSong;
+    private boolean lastPlaying;
+    private boolean lastShuffle;
+    private PlaybackService.RepeatMode lastRepeatMode = PlaybackService.RepeatMode.NONE;
+    private PositionAnchor lastAnchor = PositionAnchor.STOPPED;
+
+    /** {@code beforePublish} runs before every event except position changes, which it may publish itself. */
+    public PlaybackEventBus(Runnable beforePublish) {
+        this.beforePublish = beforePublish;
+    }
+
+    public synchronized void subscribe(PlaybackService.PlaybackStateListener listener, Executor executor) {
+        Subscriber[] current = subscribers;
+        for (Subscriber subscriber : current) {
+            if (subscriber.listener == listener) return;
+        }
+        Subscriber[] updated = new Subscriber[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = new Subscriber(listener, executor);
+        subscribers = updated;
+    }
+
+    /** Events already queued on the listener's executor are dropped. */
+    public synchronized void unsubscribe(PlaybackService.PlaybackStateListener listener) {
+        Subscriber[] current = subscribers;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].listener != listener) continue;
+            current[i].removed = true;
+            Subscriber[] updated = new Subscriber[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, i);
+            System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+            subscribers = updated;
+            return;
+        }
+    }
+
+    public synchronized void unsubscribeAll() {
+        for (Subscriber subscriber : subscribers) {
+            subscriber.removed = true;
+        }
+        subscribers = NO_SUBSCRIBERS;
+    }
+
+    @Override
+    public void onSongChanged(Song newSong) {
+        beforePublish.run();
+        if (Objects.equals(newSong, lastSong)) return;
+        lastSong = newSong;
+        for (Subscriber subscriber : subscribers) {
+            subscriber.postSong(newSong);
+        }
+    }
+
+    @Override
+    public void onPlaybackStateChanged(boolean isPlaying) {
+        beforePublish.run();
+        if (isPlaying == lastPlaying) return;
+        lastPlaying = isPlaying;
+        for (Subscriber subscriber : subscribers) {
+            subscriber.postState(isPlaying);
+        }
+    }
+
+    @Override
+    public void onQueueUpdated(PlayQueue queue, QueueDelta delta, int newIndex) {
+        beforePublish.run();
+        for (Subscriber subscriber : subscribers) {
+            subscriber.postQueue(queue, delta, newIndex);
+        }
+    }
+
+    @Override
+    public void onShuffleModeChanged(boolean isShuffleOn) {
+        beforePublish.run();
+        if (isShuffleOn == lastShuffle) return;
+        lastShuffle = isShuffleOn;
+        for (Subscriber subscriber : subscribers) {
+            subscriber.postShuffle(isShuffleOn);
+        }
+    }
+
+    @Override
+    public void onRepeatModeChanged(PlaybackService.RepeatMode newMode) {
+        beforePublish.run();
+        if (newMode == lastRepeatMode) return;
+        lastRepeatMode = newMode;
+        for (Subscriber subscriber : subscribers) {
+            subscriber.postRepeat(newMode);
+        }
+    }
+
+    @Override
+    public void onPositionChanged(PositionAnchor anchor) {
+        if (anchor == lastAnchor) return;
+        lastAnchor = anchor;
+        for (Subscriber subscriber : subscribers) {
+            subscriber.postPosition(anchor);
+        }
+    }
+
+    /** One listener and the events waiting for its executor; runs itself there to deliver them. */
+    private static final class Subscriber implements Runnable {
+        final PlaybackService.PlaybackStateListener listener;
+        final Executor executor;
+        volatile boolean removed;
+
+        // Guarded by this
+        private boolean scheduled;
+        private int pending;
+        private PlayQueue queue;
+        private QueueDelta delta;
+        private int index;
+        private Song song;
+        private boolean playing;
+        private boolean shuffle;
+        private PlaybackService.RepeatMode repeatMode;
+        private PositionAnchor anchor;
+
+        Subscriber(PlaybackService.PlaybackStateListener listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
+
+        void postQueue(PlayQueue queue, QueueDelta delta, int index) {
+            boolean schedule;
+            synchronized (this) {
+                // Deltas only patch the queue they were taken against, so a backlog becomes one full reload
+                this.delta = (pending & QUEUE) != 0 ? QueueDelta.replaced() : delta;
+                this.queue = queue;
+                this.index = index;
+                schedule = markPending(QUEUE);
+            }
+            if (schedule) executor.execute(this);
+        }
+
+        void postSong(Song song) {
+            boolean schedule;
+            synchronized (this) {
+                this.song = song;
+                schedule = markPending(SONG);
+            }
+            if (schedule) executor.execute(this);
+        }
+
+        void postState(boolean playing) {
+            boolean schedule;
+            synchronized (this) {
+                this.playing = playing;
+                schedule = markPending(STATE);
+            }
+            if (schedule) executor.execute(this);
+        }
+
+        void postShuffle(boolean shuffle) {
+            boolean schedule;
+            synchronized (this) {
+                this.shuffle = shuffle;
+                schedule = markPending(SHUFFLE);
+            }
+            if (schedule) executor.execute(this);
+        }
+
+        void postRepeat(PlaybackService.RepeatMode repeatMode) {
+            boolean schedule;
+            synchronized (this) {
+                this.repeatMode = repeatMode;
+                schedule = markPending(REPEAT);
+            }
+            if (schedule) executor.execute(this);
+        }
+
+        void postPosition(PositionAnchor anchor) {
+            boolean schedule;
+            synchronized (this) {
+                this.anchor = anchor;
+                schedule = markPending(POSITION);
+            }
+            if (schedule) executor.execute(this);
+        }
+
+        // Returns true if the caller has to schedule a delivery
+        private boolean markPending(int event) {
+            pending |= event;
+            if (scheduled) return false;
+            scheduled = true;
+            return true;
+        }
+
+        @Override
+        public void run() {
+            int events;
+            PlayQueue queue;
+            QueueDelta delta;
+            int index;
+            Song song;
+            boolean playing;
+            boolean shuffle;
+            PlaybackService.RepeatMode repeatMode;
+            PositionAnchor anchor;
+            synchronized (this) {
+                events = pending;
+                queue = this.queue;
+                delta = this.delta;
+                index = this.index;
+                song = this.song;
+                playing = this.playing;
+                shuffle = this.shuffle;
+                repeatMode = this.repeatMode;
+                anchor = this.anchor;
+                pending = 0;
+                scheduled = false;
+                this.queue = null; // Don't hold on to a replaced queue
+                this.delta = null;
+            }
+            if (removed) return;
+            // Queue before song, so the song can be found in the queue a listener keeps
+            if ((events & QUEUE) != 0) listener.onQueueUpdated(queue, delta, index);
+            if ((events & SONG) != 0) listener.onSongChanged(song);
+            if ((events & STATE) != 0) listener.onPlaybackStateChanged(playing);
+            if ((events & SHUFFLE) != 0) listener.onShuffleModeChanged(shuffle);
+            if ((events & REPEAT) != 0) listener.onRepeatModeChanged(repeatMode);
+            if ((events & POSITION) != 0) listener.onPositionChanged(anchor);
+        }
+    }
+}
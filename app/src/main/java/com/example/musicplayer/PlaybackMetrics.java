@@ -0,0 +1,171 @@
+package com.example.musicplayer;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process-wide playback latency and reliability numbers, printed by PlaybackService.dump() for
+ * {@code adb shell dumpsys activity service com.example.musicplayer/.PlaybackService}.
+ *
+ * Recording is lock-free and allocation-free, so it can sit on the playback thread and in the decoders:
+ * counters are atomics, histograms count into fixed buckets, and error codes go into a fixed table.
+ */
+public class PlaybackMetrics {
+
+    private static final PlaybackMetrics INSTANCE = new PlaybackMetrics();
+
+    public final Histogram queueToPrepared = new Histogram("setQueue to onPrepared");
+    public final Histogram skipToAudio = new Histogram("Skip press to audio");
+    public final Histogram notificationBuild = new Histogram("Notification build");
+    public final Histogram artDecode = new Histogram("Art decode");
+    public final CodeCounter prepareFailures = new CodeCounter("Prepare failures");
+    public final AtomicLong playbackErrors = new AtomicLong(); // Errors after the track had started
+    public final AtomicLong focusLosses = new AtomicLong();
+    public final AtomicLong transientFocusLosses = new AtomicLong();
+    public final AtomicLong duckingFocusLosses = new AtomicLong();
+
+    private final long createdAtMs = SystemClock.elapsedRealtime();
+
+    public static PlaybackMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    private PlaybackMetrics() {
+    }
+
+    /** Start timestamp for {@link Histogram#recordSince}. */
+    public static long now() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    public void dump(PrintWriter writer) {
+        writer.println("Playback metrics, last " + (SystemClock.elapsedRealtime() - createdAtMs) / 1000 + " s:");
+        queueToPrepared.dump(writer);
+        skipToAudio.dump(writer);
+        notificationBuild.dump(writer);
+        artDecode.dump(writer);
+        prepareFailures.dump(writer);
+        writer.println("  Playback errors: " + playbackErrors.get());
+        writer.println("  Audio focus losses: " + focusLosses.get() + " permanent, " + transientFocusLosses.get()
+                + " transient, " + duckingFocusLosses.get() + " ducking");
+    }
+
+    /** Durations in fixed log-spaced buckets; percentiles are read as the upper bound of their bucket. */
+    public static final class Histogram {
+        // Upper bucket bounds in microseconds; the last bucket is everything slower
+        private static final long[] BOUNDS_US = {
+                100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 500000, 1000000, 2500000, 5000000
+        };
+
+        private final String name;
+        private final AtomicLongArray counts = new AtomicLongArray(BOUNDS_US.length + 1);
+        private final AtomicLong totalUs = new AtomicLong();
+        private final AtomicLong maxUs = new AtomicLong();
+
+        Histogram(String name) {
+            this.name = name;
+        }
+
+        /** Records the time since {@code startNanos}, a value from {@link PlaybackMetrics#now()}. */
+        public void recordSince(long startNanos) {
+            record((now() - startNanos) / 1000);
+        }
+
+        public void record(long us) {
+            int bucket = 0;
+            while (bucket < BOUNDS_US.length && us > BOUNDS_US[bucket]) bucket++;
+            counts.incrementAndGet(bucket);
+            totalUs.addAndGet(us);
+            long max;
+            do {
+                max = maxUs.get();
+            } while (us > max && !maxUs.compareAndSet(max, us));
+        }
+
+        // Upper bound of the bucket holding the given fraction of samples, or -1 past the last bound
+        private long percentileUs(long[] snapshot, long count, double fraction) {
+            long rank = (long) Math.ceil(count * fraction);
+            long seen = 0;
+            for (int bucket = 0; bucket < snapshot.length; bucket++) {
+                seen += snapshot[bucket];
+                if (seen >= rank) return bucket < BOUNDS_US.length ? BOUNDS_US[bucket] : -1;
+            }
+            return -1;
+        }
+
+        void dump(PrintWriter writer) {
+            long[] snapshot = new long[counts.length()];
+            long count = 0;
+            for (int bucket = 0; bucket < snapshot.length; bucket++) {
+                snapshot[bucket] = counts.get(bucket);
+                count += snapshot[bucket];
+            }
+            if (count == 0) {
+                writer.println("  " + name + ": no samples");
+                return;
+            }
+            writer.println(String.format(Locale.US, "  %s: n=%d mean=%s p50<=%s p90<=%s p99<=%s max=%s", name, count,
+                    formatUs(totalUs.get() / count), formatBound(percentileUs(snapshot, count, 0.5)),
+                    formatBound(percentileUs(snapshot, count, 0.9)), formatBound(percentileUs(snapshot, count, 0.99)),
+                    formatUs(maxUs.get())));
+        }
+
+        private static String formatBound(long us) {
+            return us < 0 ? "inf" : formatUs(us);
+        }
+
+        private static String formatUs(long us) {
+            return String.format(Locale.US, "%.1fms", us / 1000.0);
+        }
+    }
+
+    /**
+     * Counts by (what, extra) error code pair in a fixed open-addressed table. Pairs beyond its capacity are
+     * only counted in the total.
+     */
+    public static final class CodeCounter {
+        private static final int CAPACITY = 32;
+        private static final long EMPTY = Long.MIN_VALUE; // Not a pair of 32-bit codes anyone reports
+
+        private final String name;
+        private final AtomicLongArray keys = new AtomicLongArray(CAPACITY);
+        private final AtomicLongArray counts = new AtomicLongArray(CAPACITY);
+        private final AtomicLong total = new AtomicLong();
+
+        CodeCounter(String name) {
+            this.name = name;
+            for (int i = 0; i < CAPACITY; i++) {
+                keys.set(i, EMPTY);
+            }
+        }
+
+        public void record(int what, int extra) {
+            total.incrementAndGet();
+            long key = ((long) what << 32) | (extra & 0xffffffffL);
+            int start = (int) ((key ^ (key >>> 32)) & (CAPACITY - 1));
+            for (int probe = 0; probe < CAPACITY; probe++) {
+                int slot = (start + probe) & (CAPACITY - 1);
+                long current = keys.get(slot);
+                if (current == EMPTY && keys.compareAndSet(slot, EMPTY, key)) current = key;
+                else if (current == EMPTY) current = keys.get(slot); // Lost the race; see who won
+                if (current == key) {
+                    counts.incrementAndGet(slot);
+                    return;
+                }
+            }
+        }
+
+        void dump(PrintWriter writer) {
+            writer.println("  " + name + ": " + total.get());
+            for (int slot = 0; slot < CAPACITY; slot++) {
+                long key = keys.get(slot);
+                if (key == EMPTY) continue;
+                writer.println("    what=" + (int) (key >> 32) + " extra=" + (int) key + ": " + counts.get(slot));
+            }
+        }
+    }
+}
@@ -1,58 +1,110 @@
 package com.example.musicplayer;
 
-import android.app.Service;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.media.AudioAttributes;
+import android.content.SharedPreferences;
 import android.media.AudioFocusRequest;
 import android.media.AudioManager;
 import android.media.MediaPlayer;
 import android.os.Binder;
 import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
-import android.os.PowerManager;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.v4.media.MediaBrowserCompat;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.MediaSessionCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
 import android.util.Log;
 import android.widget.Toast;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.media.MediaBrowserServiceCompat;
+import androidx.media.MediaSessionManager;
+import androidx.media.session.MediaButtonReceiver;
 
-import com.bumptech.glide.Glide;
-import com.bumptech.glide.request.target.SimpleTarget;
-import com.bumptech.glide.request.transition.Transition;
-
+import java.io.FileDescriptor;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.PrintWriter;
+import java.util.Collections;
 import java.util.List;
-import java.util.Random;
-
-public class PlaybackService extends Service implements
-        MediaPlayer.OnPreparedListener,
-        MediaPlayer.OnCompletionListener,
-        MediaPlayer.OnErrorListener,
+import java.util.concurrent.Executor;
+
+/**
+ * Owns the play queue and the playback engines. Every engine call and queue mutation runs on one
+ * playback thread, in the order the commands arrived: public methods called from any other thread post
+ * themselves there and return at once. Callers read state from an immutable {@link PublishedState}
+ * republished whenever that thread goes idle, and listener callbacks are delivered on the main thread.
+ */
+public class PlaybackService extends MediaBrowserServiceCompat implements
+        PlaybackEngine.Listener,
         AudioManager.OnAudioFocusChangeListener {
 
     private static final String TAG = "PlaybackService";
-    private MediaPlayer mediaPlayer;
+    private PlaybackEngine.Factory engineFactory; // All players come from here; MediaPlayerEngine on device
+    private PlaybackEngine mediaPlayer;
+    // Gapless double buffer: the next queue entry is prepared here and chained with setNextEngine
+    private PlaybackEngine nextPlayer;
+    private int nextPlayerIndex = -1;
+    private boolean nextPlayerPrepared = false;
+    private boolean nextPlayerChained = false;
+    private PlaybackEngine sparePlayer; // A reset player kept for the next prepare instead of allocating one
+    private final GainGate gainGate = new GainGate(); // An engine whose gain is still being looked up is not started or chained
+    private final ShuffleEngine shuffleEngine = new ShuffleEngine(); // Only consulted while isShuffle
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private HandlerThread playbackThread;
+    private Handler playbackHandler; // Everything below that is not final or volatile belongs to this thread
+    private volatile PublishedState publishedState = PublishedState.IDLE;
+    private CrossfadeController crossfadeController;
+    private final Runnable crossfadeStartRunnable = this::startCrossfade;
+    private static final long ANCHOR_TOLERANCE_MS = 50; // Position drift a listener's extrapolation may show
+    private static final long SKIP_SETTLE_MS = 250; // Skips closer together than this form one burst
+    private static final long MEDIA_BUTTON_SETTLE_MS = 1000; // How soon a media button start is checked
+    private final Runnable leaveForegroundIfIdleRunnable = this::leaveForegroundIfIdle;
+    private final Runnable skipSettleRunnable = this::settleSkip;
+    private boolean skipSettlePending = false;
+    private long lastSkipUptimeMs;
+
+    private final PlaybackMetrics metrics = PlaybackMetrics.getInstance();
+    // When the tap that the next audio start answers came in, from PlaybackMetrics.now(); 0 if none waits
+    private long queueRequestedAtNanos;
+    private long skipRequestedAtNanos;
+    private boolean currentPreparing = false; // mediaPlayer is between prepareAsync and onPrepared
+    // Cookies of the open Tracing.TAP_TO_AUDIO and Tracing.PREPARE async sections, 0 if none is open
+    private int tapTraceCookie;
+    private int prepareTraceCookie;
+    private final SharedPreferences.OnSharedPreferenceChangeListener crossfadePrefListener =
+            (prefs, key) -> onPlaybackPreferenceChanged(key);
+    private boolean engineSwitchPending = false;
+    private int normalizationMode = LoudnessNormalizer.MODE_OFF;
     private final IBinder binder = new LocalBinder();
     private AudioManager audioManager;
     private AudioFocusRequest audioFocusRequest; // For API 26+
 
-    private List<Song> currentQueue = new ArrayList<>();
+    private PlayQueue currentQueue = PlayQueue.EMPTY; // Immutable; every edit swaps in a new version
     private int currentIndex = -1;
     private Song currentSong;
     private boolean isPaused = false;
     private boolean isShuffle = false;
     private RepeatMode repeatMode = RepeatMode.NONE;
-
-    private PlaybackStateListener playbackStateListener;
-    private MediaSessionCompat mediaSession;
+    private PlaybackSnapshotStore snapshotStore;
+    private boolean restoringSnapshot = false;
+    private boolean playWhenRestored = false; // A play request arrived before the snapshot was read back
+    private PlayQueue restoredPartialQueue;   // The current track alone, until the rest of the queue is restored
+    private int pendingStartPositionMs = 0;   // Restored position, applied when the current track is prepared
+
+    // Every event first refreshes publishedState, so getters called from a listener see what it reports
+    private final PlaybackEventBus events = new PlaybackEventBus(this::publishState);
+    private volatile MediaSessionCompat mediaSession; // Released on the playback thread
+    private MediaBrowseTree browseTree;
     private MediaNotificationManager mediaNotificationManager;
     private final BroadcastReceiver notificationActionReceiver = new NotificationActionReceiver();
     private boolean notificationReceiverRegistered = false;
@@ -63,12 +115,43 @@ public class PlaybackService extends Service implements
         NONE, ONE, ALL
     }
 
+    /** Callbacks for {@link #subscribe}; each listener is called on the executor it subscribed with. */
     public interface PlaybackStateListener {
         void onSongChanged(Song newSong);
         void onPlaybackStateChanged(boolean isPlaying);
-        void onQueueUpdated(List<Song> queue, int newIndex);
+        /** {@code queue} is immutable and can be kept; {@code delta} says how it differs from the previous one. */
+        void onQueueUpdated(PlayQueue queue, QueueDelta delta, int newIndex);
         void onShuffleModeChanged(boolean isShuffleOn);
         void onRepeatModeChanged(RepeatMode newMode);
+        /** Playback jumped, started or stopped; extrapolate from {@code anchor} until the next one. */
+        void onPositionChanged(PositionAnchor anchor);
+    }
+
+    /** Immutable copy of the playback state for callers on other threads. */
+    private static final class PublishedState {
+        static final PublishedState IDLE = new PublishedState(PlayQueue.EMPTY, -1, null, false, false, false,
+                RepeatMode.NONE, PositionAnchor.STOPPED);
+
+        final PlayQueue queue;
+        final int index;
+        final Song song;
+        final boolean playing;
+        final boolean paused;
+        final boolean shuffle;
+        final RepeatMode repeatMode;
+        final PositionAnchor anchor;
+
+        PublishedState(PlayQueue queue, int index, Song song, boolean playing, boolean paused, boolean shuffle,
+                       RepeatMode repeatMode, PositionAnchor anchor) {
+            this.queue = queue;
+            this.index = index;
+            this.song = song;
+            this.playing = playing;
+            this.paused = paused;
+            this.shuffle = shuffle;
+            this.repeatMode = repeatMode;
+            this.anchor = anchor;
+        }
     }
 
     public class LocalBinder extends Binder {
@@ -80,34 +163,380 @@ public class PlaybackService extends Service implements
     @Override
     public void onCreate() {
         super.onCreate();
+        playbackThread = new HandlerThread("Playback", Process.THREAD_PRIORITY_AUDIO);
+        playbackThread.start();
+        playbackHandler = new Handler(playbackThread.getLooper());
         audioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
-        initializeMediaPlayer();
+        engineFactory = selectedEngineFactory();
+        ArtworkBroker.getInstance(this).getDefaultArt(ArtworkBroker.SIZE_SESSION); // Main-thread render; the playback thread only reads it
+        mediaNotificationManager = new MediaNotificationManager(this, playbackThread.getLooper());
         initializeMediaSession();
-        mediaNotificationManager = new MediaNotificationManager(this);
+        setSessionToken(mediaSession.getSessionToken());
+        browseTree = new MediaBrowseTree(this);
+        crossfadeController = new CrossfadeController(this::onCrossfadeFinished, playbackThread.getLooper());
+        normalizationMode = LoudnessNormalizer.getMode(this);
+        getSharedPreferences(CrossfadeController.PREFS_NAME, MODE_PRIVATE).registerOnSharedPreferenceChangeListener(crossfadePrefListener);
         registerNotificationActionReceiver();
         becomingNoisyReceiver = new BecomingNoisyReceiver(); // Initialize
         registerBecomingNoisyReceiver(); // Register
+        snapshotStore = new PlaybackSnapshotStore(this, playbackThread.getLooper(), this::captureSnapshot);
+        playbackHandler.post(() -> {
+            initializeMediaPlayer(); // Engines deliver their callbacks on the thread that created them
+            updatePlaybackState(null); // Initial state is STOPPED
+            Looper.myQueue().addIdleHandler(() -> {
+                publishState(); // Once per burst of commands and callbacks
+                return true;
+            });
+            restoringSnapshot = true;
+            snapshotStore.restore(this::onSnapshotRestored);
+        });
         Log.d(TAG, "PlaybackService Created, MediaSession Initialized, Notification and BecomingNoisy Receivers Registered");
     }
 
     private void initializeMediaPlayer() {
         if (mediaPlayer == null) {
-            mediaPlayer = new MediaPlayer();
-            mediaPlayer.setWakeMode(getApplicationContext(), PowerManager.PARTIAL_WAKE_LOCK);
-            mediaPlayer.setAudioAttributes(new AudioAttributes.Builder()
-                    .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
-                    .setUsage(AudioAttributes.USAGE_MEDIA)
-                    .build());
-            mediaPlayer.setOnPreparedListener(this);
-            mediaPlayer.setOnCompletionListener(this);
-            mediaPlayer.setOnErrorListener(this);
+            mediaPlayer = createPlayer();
+        }
+    }
+
+    /**
+     * Returns false on the playback thread, where the caller just carries on; anywhere else posts
+     * {@code command} there and returns true, and the caller returns without doing anything itself.
+     */
+    private boolean runOnPlaybackThread(Runnable command) {
+        if (Looper.myLooper() == playbackThread.getLooper()) return false;
+        playbackHandler.post(command);
+        return true;
+    }
+
+    /**
+     * Runs on the playback thread when it runs out of work, and before every listener callback. The position
+     * anchor is only replaced, and pushed to subscribers, when playback stops following the previous one.
+     */
+    private void publishState() {
+        boolean playing = isPlayingNow();
+        PositionAnchor anchor = new PositionAnchor(currentPositionNow(), SystemClock.elapsedRealtime(),
+                playing ? 1f : 0f, durationNow());
+        PositionAnchor previous = publishedState.anchor;
+        boolean jumped = previous.divergesFrom(anchor, ANCHOR_TOLERANCE_MS);
+        if (!jumped) anchor = previous;
+        publishedState = new PublishedState(currentQueue, currentIndex, getCurrentSongNow(), playing, isPaused,
+                isShuffle, repeatMode, anchor);
+        if (jumped) events.onPositionChanged(anchor);
+    }
+
+    private void onPlaybackPreferenceChanged(String key) {
+        if (runOnPlaybackThread(() -> onPlaybackPreferenceChanged(key))) return;
+        if (CrossfadeController.PREF_CROSSFADE_SECONDS.equals(key)) {
+            onPlaybackOrderChanged();
+        } else if (AudioTrackEngine.PREF_ENGINE.equals(key)) {
+            engineSwitchPending = true; // Chained players must share an engine, so switch at the next cut
+        } else if (LoudnessNormalizer.PREF_MODE.equals(key)) {
+            onNormalizationModeChanged();
+        }
+    }
+
+    private void showToast(String text, int duration) {
+        mainHandler.post(() -> Toast.makeText(this, text, duration).show());
+    }
+
+    private PlaybackEngine.Factory selectedEngineFactory() {
+        if (AudioTrackEngine.isSelected(this)) {
+            Log.d(TAG, "Using the MediaCodec/AudioTrack engine");
+            return AudioTrackEngine::new;
+        }
+        return () -> new MediaPlayerEngine(this);
+    }
+
+    // Drops every player of the old engine; the next start creates one from the newly selected engine.
+    private void switchEngine() {
+        engineSwitchPending = false;
+        releaseNextPlayer();
+        if (sparePlayer != null) {
+            sparePlayer.release();
+            sparePlayer = null;
+        }
+        if (mediaPlayer != null) {
+            mediaPlayer.release();
+            mediaPlayer = null;
+        }
+        gainGate.clear();
+        engineFactory = selectedEngineFactory();
+    }
+
+    private PlaybackEngine createPlayer() {
+        PlaybackEngine player = engineFactory.create();
+        player.setListener(this);
+        return player;
+    }
+
+    /**
+     * Index the queue advances to after the current track, or -1 at its end. In shuffle mode the pick is
+     * drawn once and kept until it is played, so the track prepared ahead is the one that actually follows.
+     */
+    private int peekNextIndex() {
+        int size = currentQueue.size();
+        if (size == 0) return -1;
+        if (isShuffle) {
+            return shuffleEngine.peekNext(repeatMode == RepeatMode.ALL);
+        }
+        int nextIndex = currentIndex + 1;
+        if (nextIndex >= size) {
+            return repeatMode == RepeatMode.ALL ? 0 : -1;
+        }
+        return nextIndex;
+    }
+
+    /**
+     * Prepares the track after the current one on the second player and chains it to the current player,
+     * so the framework starts it on the exact sample the current track ends. Repeat-one uses looping instead.
+     */
+    private void prepareNextPlayer() {
+        releaseNextPlayer();
+        if (mediaPlayer == null || currentSong == null || repeatMode == RepeatMode.ONE) return;
+        int index = peekNextIndex();
+        if (index < 0) return;
+
+        PlaybackEngine player = sparePlayer != null ? sparePlayer : createPlayer();
+        sparePlayer = null;
+        nextPlayer = player;
+        nextPlayerIndex = index;
+        try {
+            player.setDataSource(currentQueue.get(index).getPath());
+            applyNormalization(player, currentQueue.get(index));
+            player.prepareAsync();
+        } catch (IOException | IllegalStateException e) {
+            Log.e(TAG, "Could not prepare next track: " + e.getMessage());
+            if (e instanceof IOException) metrics.prepareFailures.record(MediaPlayer.MEDIA_ERROR_UNKNOWN, MediaPlayer.MEDIA_ERROR_IO);
+            releaseNextPlayer();
+        }
+    }
+
+    /**
+     * Sets the loudness gain for {@code song} on {@code engine} once it is looked up, usually well before the
+     * prepare finishes. Dropped if the engine has been given another track in the meantime. An engine that
+     * finishes preparing first waits in onPrepared for the gain, so a track never starts at unity gain and
+     * then drops.
+     */
+    private void applyNormalization(PlaybackEngine engine, Song song) {
+        gainGate.expect(engine, song);
+        LoudnessNormalizer.getInstance(this).lookupGain(song, normalizationMode, playbackHandler, gain -> {
+            boolean release = gainGate.resolve(engine, song);
+            boolean current = engine == mediaPlayer && song.equals(currentSong);
+            boolean next = engine == nextPlayer && nextPlayerIndex >= 0 && song.equals(currentQueue.get(nextPlayerIndex));
+            if (!current && !next) return;
+            engine.setGain(gain);
+            if (release) {
+                onPrepared(engine); // Held back until now
+            }
+        });
+    }
+
+    private void onNormalizationModeChanged() {
+        normalizationMode = LoudnessNormalizer.getMode(this);
+        if (currentSong != null && mediaPlayer != null) applyNormalization(mediaPlayer, currentSong);
+        if (nextPlayer != null) applyNormalization(nextPlayer, currentQueue.get(nextPlayerIndex));
+    }
+
+    private void onNextPlayerPrepared() {
+        nextPlayerPrepared = true;
+        if (getCrossfadeMs() > 0) return; // Started by startCrossfade() ahead of the boundary instead
+        try {
+            mediaPlayer.setNextEngine(nextPlayer);
+            nextPlayerChained = true;
+            Log.d(TAG, "Next track prepared and chained: " + currentQueue.get(nextPlayerIndex).getTitle());
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Could not chain next player: " + e.getMessage());
+        }
+    }
+
+    /** Unchains and resets the pre-prepared player, keeping it as the spare. */
+    private void releaseNextPlayer() {
+        if (nextPlayer == null) return;
+        if (nextPlayerChained && mediaPlayer != null) {
+            try {
+                mediaPlayer.setNextEngine(null);
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "Could not unchain next player: " + e.getMessage());
+            }
+        }
+        nextPlayer.reset();
+        sparePlayer = nextPlayer;
+        nextPlayer = null;
+        nextPlayerIndex = -1;
+        nextPlayerPrepared = false;
+        nextPlayerChained = false;
+    }
+
+    /**
+     * Makes the prepared next player the current one. After a chained completion the framework has already
+     * started it; on a manual skip the current player is stopped and the next one started here.
+     */
+    private void promoteNextPlayer(boolean alreadyStarted, long fadeMs) {
+        PlaybackEngine finished = mediaPlayer;
+        mediaPlayer = nextPlayer;
+        currentIndex = nextPlayerIndex;
+        currentSong = currentQueue.get(currentIndex);
+        nextPlayer = null;
+        nextPlayerIndex = -1;
+        nextPlayerPrepared = false;
+        nextPlayerChained = false;
+        if (isShuffle) shuffleEngine.moveTo(currentIndex);
+
+        if (fadeMs > 0) {
+            mediaPlayer.setVolume(0f);
+            mediaPlayer.start();
+            crossfadeController.start(finished, mediaPlayer, fadeMs); // finished keeps playing until faded out
+        } else {
+            if (finished != null) {
+                try {
+                    finished.setNextEngine(null);
+                    finished.reset();
+                } catch (IllegalStateException e) {
+                    Log.w(TAG, "Error resetting finished player: " + e.getMessage());
+                }
+                sparePlayer = finished;
+            }
+            if (!alreadyStarted) {
+                mediaPlayer.start();
+                onAudioStarted(); // A skip onto the prepared track
+            }
+        }
+        isPaused = false;
+        Log.d(TAG, "Gapless transition to: " + currentSong.getTitle() + " at index " + currentIndex);
+        snapshotStore.scheduleWrite();
+
+        updateMediaMetadata(currentSong);
+        updatePlaybackState(currentSong);
+        events.onSongChanged(currentSong);
+        events.onPlaybackStateChanged(true);
+        onTrackStarted();
+    }
+
+    // Records how long the tap that led here took to produce audio.
+    private void onAudioStarted() {
+        if (queueRequestedAtNanos != 0) metrics.queueToPrepared.recordSince(queueRequestedAtNanos);
+        if (skipRequestedAtNanos != 0) metrics.skipToAudio.recordSince(skipRequestedAtNanos);
+        queueRequestedAtNanos = 0;
+        skipRequestedAtNanos = 0;
+        endTapTrace();
+    }
+
+    // A newer tap supersedes the one still waiting for audio. The cookie names the track tapped, if any.
+    private void beginTapTrace(Song target) {
+        endTapTrace();
+        tapTraceCookie = target != null ? Tracing.cookieFor(target.getId()) : Tracing.newCookie();
+        Tracing.beginAsync(Tracing.TAP_TO_AUDIO, tapTraceCookie);
+    }
+
+    private void endTapTrace() {
+        if (tapTraceCookie == 0) return;
+        Tracing.endAsync(Tracing.TAP_TO_AUDIO, tapTraceCookie);
+        tapTraceCookie = 0;
+    }
+
+    private void beginPrepareTrace(Song song) {
+        endPrepareTrace();
+        prepareTraceCookie = Tracing.cookieFor(song.getId());
+        Tracing.beginAsync(Tracing.PREPARE, prepareTraceCookie);
+    }
+
+    private void endPrepareTrace() {
+        if (prepareTraceCookie == 0) return;
+        Tracing.endAsync(Tracing.PREPARE, prepareTraceCookie);
+        prepareTraceCookie = 0;
+    }
+
+    // Runs whenever a track has started on mediaPlayer, by prepare or by gapless transition.
+    private void onTrackStarted() {
+        mediaPlayer.setLooping(repeatMode == RepeatMode.ONE);
+        if (!crossfadeController.isFading()) {
+            prepareNextPlayer(); // During a fade two decoders already run; the next one is prepared when it ends
+        }
+        scheduleCrossfade();
+    }
+
+    private int getCrossfadeMs() {
+        return CrossfadeController.getOverlapSeconds(this) * 1000;
+    }
+
+    /** Arms the crossfade to start {@code overlap} before the end of the current track, from its current position. */
+    private void scheduleCrossfade() {
+        playbackHandler.removeCallbacks(crossfadeStartRunnable);
+        int overlapMs = getCrossfadeMs();
+        if (overlapMs == 0 || repeatMode == RepeatMode.ONE || mediaPlayer == null || !mediaPlayer.isPlaying()) return;
+        try {
+            int duration = mediaPlayer.getDuration();
+            int fadeMs = Math.min(overlapMs, duration / 2); // Short tracks fade over at most half their length
+            long delay = duration - fadeMs - mediaPlayer.getCurrentPosition();
+            playbackHandler.postDelayed(crossfadeStartRunnable, Math.max(0, delay));
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Could not schedule crossfade: " + e.getMessage());
+        }
+    }
+
+    private void startCrossfade() {
+        if (!nextPlayerPrepared || mediaPlayer == null || !mediaPlayer.isPlaying()) {
+            return; // Next track not ready; onCompletion falls back to a cut
+        }
+        long remainingMs;
+        try {
+            remainingMs = mediaPlayer.getDuration() - mediaPlayer.getCurrentPosition();
+            if (nextPlayerChained) {
+                mediaPlayer.setNextEngine(null); // Started here, not by the framework at the boundary
+            }
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Could not start crossfade: " + e.getMessage());
+            return;
+        }
+        promoteNextPlayer(false, Math.max(1, Math.min(getCrossfadeMs(), remainingMs)));
+    }
+
+    private void onCrossfadeFinished(PlaybackEngine outgoing) {
+        recycleOutgoing(outgoing);
+        if (currentSong != null && nextPlayer == null) {
+            prepareNextPlayer();
+        }
+    }
+
+    /** Cuts a running crossfade short, e.g. for a skip, seek or pause, and drops a pending one. */
+    private void finishCrossfadeNow() {
+        playbackHandler.removeCallbacks(crossfadeStartRunnable);
+        PlaybackEngine outgoing = crossfadeController.cancel();
+        if (outgoing != null) {
+            recycleOutgoing(outgoing);
+        }
+    }
+
+    private void recycleOutgoing(PlaybackEngine outgoing) {
+        try {
+            outgoing.reset();
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Error resetting faded-out player: " + e.getMessage());
+        }
+        if (sparePlayer == null) {
+            sparePlayer = outgoing;
+        } else {
+            outgoing.release();
+        }
+    }
+
+    // Shuffle or repeat changed: the looping flag and the pre-prepared track may no longer be right.
+    private void onPlaybackOrderChanged() {
+        if (mediaPlayer != null && currentSong != null && (mediaPlayer.isPlaying() || isPaused)) {
+            mediaPlayer.setLooping(repeatMode == RepeatMode.ONE);
+            if (!crossfadeController.isFading()) {
+                prepareNextPlayer();
+            }
+            scheduleCrossfade();
+        } else {
+            releaseNextPlayer();
         }
     }
 
     private void initializeMediaSession() {
         mediaSession = new MediaSessionCompat(this, TAG);
         mediaSession.setActive(true);
-        updatePlaybackState(null); // Initial state is STOPPED
 
         mediaSession.setCallback(new MediaSessionCompat.Callback() {
             @Override
@@ -151,12 +580,24 @@ public class PlaybackService extends Service implements
                 Log.d(TAG, "MediaSession.Callback: onStop called");
                 stopSong();
             }
-        });
+
+            @Override
+            public void onPlayFromMediaId(String mediaId, Bundle extras) {
+                Log.d(TAG, "MediaSession.Callback: onPlayFromMediaId " + mediaId);
+                MediaSessionManager.RemoteUserInfo controller = mediaSession.getCurrentControllerInfo();
+                if (!MediaBrowseTree.isAllowedCaller(PlaybackService.this, controller.getPackageName(), controller.getUid())) {
+                    Log.w(TAG, "Ignoring a media id from " + controller.getPackageName());
+                    return;
+                }
+                browseTree.playFromMediaId(mediaId);
+            }
+        }, playbackHandler); // Transport controls arrive as playback thread commands
     }
 
     public MediaSessionCompat.Token getMediaSessionToken() {
-        if (mediaSession != null) {
-            return mediaSession.getSessionToken();
+        MediaSessionCompat session = mediaSession;
+        if (session != null) {
+            return session.getSessionToken();
         }
         return null;
     }
@@ -206,38 +647,176 @@ public class PlaybackService extends Service implements
     @Nullable
     @Override
     public IBinder onBind(Intent intent) {
+        if (SERVICE_INTERFACE.equals(intent.getAction())) {
+            return super.onBind(intent); // A media browser: a car head unit, a watch, another controller
+        }
         return binder;
     }
 
+    @Nullable
+    @Override
+    public BrowserRoot onGetRoot(@NonNull String clientPackageName, int clientUid, @Nullable Bundle rootHints) {
+        if (!MediaBrowseTree.isAllowedCaller(this, clientPackageName, clientUid)) {
+            Log.w(TAG, "Browser " + clientPackageName + " (uid " + clientUid + ") gets an empty root");
+            return new BrowserRoot(MediaBrowseTree.EMPTY_ROOT_ID, null); // Connects, so the session still works, but lists nothing
+        }
+        return new BrowserRoot(MediaBrowseTree.ROOT_ID, null);
+    }
+
+    @Override
+    public void onLoadChildren(@NonNull String parentId, @NonNull Result<List<MediaBrowserCompat.MediaItem>> result) {
+        browseTree.loadChildren(browsableId(parentId), result, null);
+    }
+
+    @Override
+    public void onLoadChildren(@NonNull String parentId, @NonNull Result<List<MediaBrowserCompat.MediaItem>> result,
+                               @NonNull Bundle options) {
+        browseTree.loadChildren(browsableId(parentId), result, options);
+    }
+
+    // Any connected browser can subscribe to any id, not just the root it was given, so check it again
+    private String browsableId(String parentId) {
+        MediaSessionManager.RemoteUserInfo browser = getCurrentBrowserInfo();
+        return MediaBrowseTree.isAllowedCaller(this, browser.getPackageName(), browser.getUid())
+                ? parentId : MediaBrowseTree.EMPTY_ROOT_ID;
+    }
+
+    /** {@code adb shell dumpsys activity service com.example.musicplayer/.PlaybackService} */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) { // Public in MediaBrowserServiceCompat
+        PublishedState state = publishedState;
+        writer.println("PlaybackService: " + (state.song != null ? state.song.getTitle() : "no track")
+                + (state.playing ? ", playing" : state.paused ? ", paused" : ", stopped")
+                + ", queue " + state.queue.size() + ", index " + state.index);
+        metrics.dump(writer);
+    }
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && Intent.ACTION_MEDIA_BUTTON.equals(intent.getAction())) {
+            // MediaButtonReceiver starts us with startForegroundService(), whether or not the key will play
+            mediaNotificationManager.startForegroundForMediaButton(getCurrentSong());
+            playbackHandler.postDelayed(leaveForegroundIfIdleRunnable, MEDIA_BUTTON_SETTLE_MS);
+        }
+        MediaButtonReceiver.handleIntent(mediaSession, intent); // Media buttons can cold-start the service
         return START_STICKY;
     }
 
-    public void setPlaybackStateListener(PlaybackStateListener listener) {
-        this.playbackStateListener = listener;
+    /**
+     * Leaves the foreground a media button entered if the key did not start playback: a pause or stop key,
+     * no track to play, denied focus or a failed prepare. A placeholder is removed and the service stopped;
+     * a real paused notification stays. Waits while a restore, prepare or skip is still on its way to playing.
+     */
+    private void leaveForegroundIfIdle() {
+        if (restoringSnapshot || playWhenRestored || currentPreparing || skipSettlePending) {
+            playbackHandler.postDelayed(leaveForegroundIfIdleRunnable, MEDIA_BUTTON_SETTLE_MS);
+            return;
+        }
+        if (isPlayingNow()) return;
+        Log.d(TAG, "Media button did not start playback, leaving the foreground.");
+        if (mediaNotificationManager.isShowingPlaceholder()) {
+            mediaNotificationManager.hideNotification();
+            stopSelf(); // Only stops once no activity is bound
+        } else {
+            mediaNotificationManager.leaveForeground();
+        }
     }
 
-    public void setQueue(List<Song> songs, int index) {
-        this.currentQueue.clear();
-        if (songs != null) {
-            this.currentQueue.addAll(songs);
+    private PlaybackSnapshotStore.Snapshot captureSnapshot() {
+        int position = currentSong != null ? currentPositionNow() : pendingStartPositionMs;
+        return new PlaybackSnapshotStore.Snapshot(currentQueue, currentIndex, position, isShuffle, repeatMode);
+    }
+
+    private void onSnapshotRestored(PlaybackSnapshotStore.Snapshot snapshot, boolean complete) {
+        if (complete) restoringSnapshot = false;
+        if (snapshot == null) {
+            playWhenRestored = false;
+            return;
         }
-        this.currentIndex = index;
-        if (playbackStateListener != null) {
-            playbackStateListener.onQueueUpdated(this.currentQueue, this.currentIndex);
+        if (!complete) {
+            if (!currentQueue.isEmpty()) return; // A queue was set meanwhile and wins over the saved one
+            restoredPartialQueue = snapshot.queue;
+            applySnapshot(snapshot);
+        } else if (restoredPartialQueue != null && currentQueue == restoredPartialQueue) {
+            // Swap the whole queue in around the current track, which keeps playing if it started
+            releaseNextPlayer();
+            restoredPartialQueue = null;
+            currentQueue = snapshot.queue;
+            currentIndex = snapshot.index;
+            if (isShuffle) shuffleEngine.reset(currentQueue.size(), currentIndex);
+            notifyQueueUpdated(QueueDelta.replaced());
+            onPlaybackOrderChanged();
+        } else if (currentQueue.isEmpty()) {
+            applySnapshot(snapshot);
         }
+        if (playWhenRestored && !currentQueue.isEmpty()) {
+            playWhenRestored = false;
+            playSongAtIndex(currentIndex);
+        }
+    }
+
+    // Loads restored state without starting playback; the first play resumes at the saved position.
+    private void applySnapshot(PlaybackSnapshotStore.Snapshot snapshot) {
+        currentQueue = snapshot.queue;
+        currentIndex = snapshot.index;
+        pendingStartPositionMs = snapshot.positionMs;
+        isShuffle = snapshot.shuffle;
+        repeatMode = snapshot.repeatMode;
+        if (isShuffle) shuffleEngine.reset(currentQueue.size(), currentIndex);
+        Song song = currentQueue.get(currentIndex);
+        updateMediaMetadata(song);
+        Log.d(TAG, "Restored " + song.getTitle() + " at " + pendingStartPositionMs + " ms, queue of " + currentQueue.size());
+        notifyQueueUpdated(QueueDelta.replaced());
+        events.onSongChanged(song);
+        events.onShuffleModeChanged(isShuffle);
+        events.onRepeatModeChanged(repeatMode);
+    }
+
+    /** Delivers playback events to {@code listener} on {@code executor} until it unsubscribes. */
+    public void subscribe(PlaybackStateListener listener, Executor executor) {
+        events.subscribe(listener, executor);
+    }
+
+    public void unsubscribe(PlaybackStateListener listener) {
+        events.unsubscribe(listener);
+    }
+
+    /** Replaces the queue and plays from {@code index}. {@code songs} is wrapped, not copied, and must not change afterwards. */
+    public void setQueue(List<Song> songs, int index) {
+        if (runOnPlaybackThread(() -> setQueue(songs, index))) return;
+        queueRequestedAtNanos = PlaybackMetrics.now();
+        skipRequestedAtNanos = 0;
+        beginTapTrace(songs != null && index >= 0 && index < songs.size() ? songs.get(index) : null);
+        releaseNextPlayer(); // Indexes refer to the old queue
+        restoredPartialQueue = null;
+        pendingStartPositionMs = 0;
+        this.currentQueue = PlayQueue.of(songs);
+        this.currentIndex = index;
+        if (isShuffle) shuffleEngine.reset(currentQueue.size(), index);
+        notifyQueueUpdated(QueueDelta.replaced());
         if (this.currentIndex >= 0 && this.currentIndex < this.currentQueue.size()) {
             playSongAtIndex(this.currentIndex);
         } else {
             Log.w(TAG, "setQueue: Invalid index or empty queue. Playback not started.");
-            if (currentSong != null || isPlaying()) {
+            if (currentSong != null || isPlayingNow()) {
                  stopSong();
             }
         }
     }
 
     public void playSongAtIndex(int index) {
+        if (runOnPlaybackThread(() -> playSongAtIndex(index))) return;
+        Tracing.begin(Tracing.PLAY_SONG_AT_INDEX);
+        try {
+            playSongAtIndexNow(index);
+        } finally {
+            Tracing.end();
+        }
+    }
+
+    private void playSongAtIndexNow(int index) {
+        cancelPendingSkip();
+        finishCrossfadeNow();
         if (index < 0 || index >= currentQueue.size()) {
             Log.e(TAG, "Invalid index for playSongAtIndex: " + index);
             if (repeatMode == RepeatMode.ALL && !currentQueue.isEmpty()) {
@@ -247,8 +826,11 @@ public class PlaybackService extends Service implements
                 return;
             }
         } else {
+            if (index != currentIndex) pendingStartPositionMs = 0; // The restored position belongs to the restored track
             currentIndex = index;
         }
+        if (isShuffle) shuffleEngine.moveTo(currentIndex);
+        snapshotStore.scheduleWrite();
 
         Song songToPlay = currentQueue.get(currentIndex);
         this.currentSong = songToPlay;
@@ -257,9 +839,23 @@ public class PlaybackService extends Service implements
 
         if (!requestAudioFocus()) {
             Log.e(TAG, "Could not obtain audio focus for " + songToPlay.getTitle());
-            Toast.makeText(this, "Could not obtain audio focus", Toast.LENGTH_SHORT).show();
+            showToast("Could not obtain audio focus", Toast.LENGTH_SHORT);
+            return;
+        }
+        if (engineSwitchPending) {
+            switchEngine();
+        }
+
+        if (nextPlayerPrepared && currentIndex == nextPlayerIndex && mediaPlayer != null) {
+            try {
+                mediaPlayer.stop();
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "Error stopping current player before skip: " + e.getMessage());
+            }
+            promoteNextPlayer(false, 0); // Already prepared, so the skip does not wait for a prepare
             return;
         }
+        releaseNextPlayer();
 
         try {
             if (mediaPlayer == null) {
@@ -267,18 +863,21 @@ public class PlaybackService extends Service implements
             }
             mediaPlayer.reset();
             mediaPlayer.setDataSource(songToPlay.getPath());
+            applyNormalization(mediaPlayer, songToPlay);
             mediaPlayer.prepareAsync();
+            currentPreparing = true;
+            beginPrepareTrace(songToPlay);
             Log.d(TAG, "Preparing song: " + songToPlay.getTitle());
 
             updateMediaMetadata(songToPlay);
-            mediaNotificationManager.buildNotificationAndStartForeground(songToPlay, false, getMediaSessionToken());
+            mediaNotificationManager.update(songToPlay, false, getMediaSessionToken());
 
-            if (playbackStateListener != null) {
-                playbackStateListener.onSongChanged(songToPlay);
-            }
+            events.onSongChanged(songToPlay);
         } catch (IOException | IllegalStateException e) {
             Log.e(TAG, "Error setting data source or player in wrong state for " + songToPlay.getTitle() + ": " + e.getMessage());
-            Toast.makeText(this, "Error playing song", Toast.LENGTH_SHORT).show();
+            if (e instanceof IOException) metrics.prepareFailures.record(MediaPlayer.MEDIA_ERROR_UNKNOWN, MediaPlayer.MEDIA_ERROR_IO);
+            endTapTrace(); // This tap will not produce audio
+            showToast("Error playing song", Toast.LENGTH_SHORT);
             abandonAudioFocus();
         }
     }
@@ -288,90 +887,238 @@ public class PlaybackService extends Service implements
             Log.e(TAG, "Cannot play a null song.");
             return;
         }
-        setQueue(new ArrayList<>(List.of(song)), 0);
+        setQueue(Collections.singletonList(song), 0);
+    }
+
+    /** Inserts {@code song} right after the current track, or starts it if the queue is empty. */
+    public void playNext(Song song) {
+        if (runOnPlaybackThread(() -> playNext(song))) return;
+        insertIntoQueue(currentIndex >= 0 ? currentIndex + 1 : currentQueue.size(), Collections.singletonList(song));
+    }
+
+    /** Appends {@code songs} to the end of the queue, or starts them if the queue is empty. Not copied. */
+    public void enqueue(List<Song> songs) {
+        if (runOnPlaybackThread(() -> enqueue(songs))) return;
+        insertIntoQueue(currentQueue.size(), songs);
+    }
+
+    private void insertIntoQueue(int index, List<Song> songs) {
+        if (songs.isEmpty()) return;
+        if (currentQueue.isEmpty()) {
+            setQueue(songs, 0);
+            return;
+        }
+        index = Math.min(index, currentQueue.size());
+        int count = songs.size();
+        boolean appended = index == currentQueue.size();
+        currentQueue = currentQueue.insert(index, songs);
+        if (currentIndex >= index) currentIndex += count;
+        if (nextPlayerIndex >= index) nextPlayerIndex += count;
+        if (isShuffle) {
+            if (appended) {
+                shuffleEngine.onAppended(count);
+            } else {
+                shuffleEngine.onInserted(index, count);
+            }
+        }
+        onQueueEdited(QueueDelta.inserted(index, count));
+    }
+
+    /** Moves the queue entry at {@code from} to {@code to}; the current track keeps playing. */
+    public void moveQueueItem(int from, int to) {
+        if (runOnPlaybackThread(() -> moveQueueItem(from, to))) return;
+        if (from < 0 || from >= currentQueue.size() || to < 0 || to >= currentQueue.size() || from == to) return;
+        currentQueue = currentQueue.move(from, to);
+        currentIndex = indexAfterMove(currentIndex, from, to);
+        if (nextPlayerIndex >= 0) nextPlayerIndex = indexAfterMove(nextPlayerIndex, from, to);
+        if (isShuffle) shuffleEngine.onMoved(from, to);
+        onQueueEdited(QueueDelta.moved(from, to));
+    }
+
+    /** Removes the queue entry at {@code index}. Removing the current track moves on to the entry that takes its place. */
+    public void removeQueueItem(int index) {
+        if (runOnPlaybackThread(() -> removeQueueItem(index))) return;
+        if (index < 0 || index >= currentQueue.size()) return;
+        boolean removingCurrent = index == currentIndex;
+        currentQueue = currentQueue.removeAt(index);
+        if (nextPlayerIndex == index) {
+            releaseNextPlayer();
+        } else if (nextPlayerIndex > index) {
+            nextPlayerIndex--;
+        }
+        if (isShuffle) shuffleEngine.onRemoved(index);
+        if (!removingCurrent) {
+            if (currentIndex > index) currentIndex--;
+            onQueueEdited(QueueDelta.removed(index));
+            return;
+        }
+
+        boolean wasPlaying = isPlayingNow();
+        currentIndex = index < currentQueue.size() ? index : -1;
+        notifyQueueUpdated(QueueDelta.removed(index));
+        if (wasPlaying && currentIndex >= 0) {
+            playSongAtIndex(currentIndex);
+        } else {
+            stopSong(); // resumeSong() starts the entry that took its place
+        }
+    }
+
+    private static int indexAfterMove(int index, int from, int to) {
+        if (index == from) return to;
+        if (from < to && index > from && index <= to) return index - 1;
+        if (from > to && index >= to && index < from) return index + 1;
+        return index;
     }
 
+    // After an edit that kept the current track, re-prepares the next one only if a different track now follows.
+    private void onQueueEdited(QueueDelta delta) {
+        notifyQueueUpdated(delta);
+        if (nextPlayer == null || peekNextIndex() != nextPlayerIndex) {
+            onPlaybackOrderChanged();
+        }
+    }
+
+    private void notifyQueueUpdated(QueueDelta delta) {
+        Log.d(TAG, "Queue " + delta + ", size " + currentQueue.size() + ", current index " + currentIndex);
+        snapshotStore.scheduleWrite();
+        events.onQueueUpdated(currentQueue, delta, currentIndex);
+        browseTree.onQueueChanged();
+    }
+
+    /** User skip forward. Presses in quick succession are coalesced, see {@link #skipTo}. */
     public void playNextSong() {
+        if (runOnPlaybackThread(this::playNextSong)) return;
+        advance(true);
+    }
+
+    // Moves to the track after the current one, or stops at the end of the queue.
+    private void advance(boolean userSkip) {
         if (currentQueue.isEmpty()) return;
 
         if (repeatMode == RepeatMode.ONE && !isPaused) {
-            playSongAtIndex(currentIndex);
+            startOrSkipTo(currentIndex, userSkip);
             return;
         }
 
-        int nextIndex = currentIndex + 1;
-        if (isShuffle) {
-            if (currentQueue.size() > 1) {
-                int newIndex;
-                do {
-                    newIndex = new Random().nextInt(currentQueue.size());
-                } while (newIndex == currentIndex);
-                nextIndex = newIndex;
-            } else {
-                nextIndex = currentIndex;
-            }
+        int nextIndex = peekNextIndex();
+        if (nextIndex < 0) {
+            Log.d(TAG, "End of queue reached.");
+            stopSong();
+            return;
+        }
+        startOrSkipTo(nextIndex, userSkip);
+    }
+
+    private void startOrSkipTo(int index, boolean userSkip) {
+        if (userSkip) {
+            skipTo(index);
         } else {
-            if (nextIndex >= currentQueue.size()) {
-                if (repeatMode == RepeatMode.ALL) {
-                    nextIndex = 0;
-                } else {
-                    Log.d(TAG, "End of queue reached.");
-                    stopSong();
-                    return;
+            playSongAtIndex(index);
+        }
+    }
+
+    /**
+     * Skips to {@code index} for a next/previous press. A lone press onto the pre-prepared next track is
+     * played at once, as that costs no prepare. Otherwise the press only moves the queue cursor, shown to
+     * listeners right away, and silences the old track; the track under the cursor is prepared once no
+     * further press has come for {@link #SKIP_SETTLE_MS}, so a burst of skips costs a single prepare.
+     */
+    private void skipTo(int index) {
+        skipRequestedAtNanos = PlaybackMetrics.now(); // The latest press of a burst is the one waiting for audio
+        queueRequestedAtNanos = 0;
+        beginTapTrace(index >= 0 && index < currentQueue.size() ? currentQueue.get(index) : null);
+        long now = SystemClock.uptimeMillis();
+        boolean inBurst = skipSettlePending || now - lastSkipUptimeMs < SKIP_SETTLE_MS;
+        lastSkipUptimeMs = now;
+        if (!inBurst && nextPlayerPrepared && index == nextPlayerIndex) {
+            playSongAtIndex(index);
+            return;
+        }
+        if (!skipSettlePending) {
+            finishCrossfadeNow();
+            if (mediaPlayer != null) {
+                try {
+                    if (mediaPlayer.isPlaying()) {
+                        mediaPlayer.pause();
+                    } else {
+                        mediaPlayer.reset(); // Still preparing the track being skipped, or idle
+                        currentPreparing = false;
+                        endPrepareTrace();
+                    }
+                } catch (IllegalStateException e) {
+                    Log.w(TAG, "Error silencing player for skip: " + e.getMessage());
                 }
             }
+            currentSong = null; // Nothing is loaded for the cursor yet; resumeSong() prepares it at once
+            isPaused = false;
+            skipSettlePending = true;
+        }
+        currentIndex = index;
+        pendingStartPositionMs = 0;
+        if (isShuffle) shuffleEngine.moveTo(index);
+        playbackHandler.removeCallbacks(skipSettleRunnable);
+        playbackHandler.postDelayed(skipSettleRunnable, SKIP_SETTLE_MS);
+        events.onSongChanged(currentQueue.get(index));
+    }
+
+    private void settleSkip() {
+        skipSettlePending = false;
+        if (currentIndex >= 0 && currentIndex < currentQueue.size()) {
+            playSongAtIndex(currentIndex);
         }
-        playSongAtIndex(nextIndex);
     }
 
+    // Drops a skip waiting to settle; the caller decides what plays instead.
+    private void cancelPendingSkip() {
+        playbackHandler.removeCallbacks(skipSettleRunnable);
+        skipSettlePending = false;
+    }
+
+    /** User skip back. Coalesced with other skips like {@link #playNextSong()}. */
     public void playPreviousSong() {
+        if (runOnPlaybackThread(this::playPreviousSong)) return;
         if (currentQueue.isEmpty()) return;
 
-        int prevIndex = currentIndex - 1;
+        int prevIndex;
         if (isShuffle) {
-            if (currentQueue.size() > 1) {
-                int newIndex;
-                do {
-                    newIndex = new Random().nextInt(currentQueue.size());
-                } while (newIndex == currentIndex);
-                prevIndex = newIndex;
-            } else {
-                prevIndex = currentIndex;
-            }
+            prevIndex = shuffleEngine.peekPrevious(); // -1 at the start of this cycle's shuffle history
         } else {
-            if (prevIndex < 0) {
-                if (repeatMode == RepeatMode.ALL && !currentQueue.isEmpty()) {
-                    prevIndex = currentQueue.size() - 1;
-                } else {
-                    if (mediaPlayer != null && getCurrentPosition() > 3000) {
-                         seekTo(0);
-                         if (!mediaPlayer.isPlaying()) resumeSong();
-                         return;
-                    }
-                    Log.d(TAG, "Start of queue reached.");
-                    return; 
-                }
+            prevIndex = currentIndex - 1;
+            if (prevIndex < 0 && repeatMode == RepeatMode.ALL) {
+                prevIndex = currentQueue.size() - 1;
+            }
+        }
+        if (prevIndex < 0) {
+            if (mediaPlayer != null && currentPositionNow() > 3000) {
+                 seekTo(0);
+                 if (!mediaPlayer.isPlaying()) resumeSong();
+                 return;
             }
+            Log.d(TAG, "Start of queue reached.");
+            return; 
         }
-        playSongAtIndex(prevIndex);
+        skipTo(prevIndex);
     }
 
     public void pauseSong() {
+        if (runOnPlaybackThread(this::pauseSong)) return;
+        if (skipSettlePending) {
+            cancelPendingSkip(); // Stay on the cursor without preparing it; resumeSong() starts it
+            isPaused = true;
+            updatePlaybackState(getCurrentSongNow());
+            events.onPlaybackStateChanged(false);
+            return;
+        }
         if (mediaPlayer != null && mediaPlayer.isPlaying()) {
+            finishCrossfadeNow();
             try {
                 mediaPlayer.pause();
                 isPaused = true;
                 abandonAudioFocus();
+                snapshotStore.writeNow(); // The process may be killed any time while paused
                 Log.d(TAG, "Song paused: " + (currentSong != null ? currentSong.getTitle() : "Unknown"));
                 updatePlaybackState(currentSong);
-                if (playbackStateListener != null) playbackStateListener.onPlaybackStateChanged(false);
-                if (currentSong != null) {
-                     mediaNotificationManager.buildNotificationAndStartForeground(currentSong, false, getMediaSessionToken());
-                     stopForeground(false);
-                } else {
-                    stopForeground(true);
-                    mediaNotificationManager.hideNotification();
-                }
+                events.onPlaybackStateChanged(false);
             } catch (IllegalStateException e) {
                 Log.e(TAG, "Error pausing media player: " + e.getMessage());
             }
@@ -379,25 +1126,29 @@ public class PlaybackService extends Service implements
     }
 
     public void resumeSong() {
+        if (runOnPlaybackThread(this::resumeSong)) return;
         if (mediaPlayer != null && isPaused && currentSong != null) {
             if (!requestAudioFocus()) {
                 Log.e(TAG, "Could not obtain audio focus for resume.");
-                Toast.makeText(this, "Could not resume: audio focus issue", Toast.LENGTH_SHORT).show();
+                showToast("Could not resume: audio focus issue", Toast.LENGTH_SHORT);
                 return;
             }
             try {
                 mediaPlayer.start();
                 isPaused = false;
+                scheduleCrossfade();
                 Log.d(TAG, "Song resumed: " + currentSong.getTitle());
                 updatePlaybackState(currentSong);
-                if (playbackStateListener != null) playbackStateListener.onPlaybackStateChanged(true);
-                mediaNotificationManager.buildNotificationAndStartForeground(currentSong, true, getMediaSessionToken());
+                events.onPlaybackStateChanged(true);
             } catch (IllegalStateException e) {
                 Log.e(TAG, "Failed to resume song, MediaPlayer in wrong state: " + e.getMessage());
                 playSongAtIndex(currentIndex);
             }
         } else if (currentSong == null && !currentQueue.isEmpty() && currentIndex != -1) {
             playSongAtIndex(currentIndex);
+        } else if (restoringSnapshot && currentQueue.isEmpty()) {
+            Log.d(TAG, "Play requested while the snapshot is being restored; starting once it is.");
+            playWhenRestored = true;
         } else {
             Log.d(TAG, "Cannot resume: mediaplayer is null, not paused, or no current song.");
             if (currentSong == null) {
@@ -407,6 +1158,14 @@ public class PlaybackService extends Service implements
     }
 
     public void stopSong() {
+        if (runOnPlaybackThread(this::stopSong)) return;
+        cancelPendingSkip();
+        queueRequestedAtNanos = 0; // Nothing will answer these taps now
+        skipRequestedAtNanos = 0;
+        endTapTrace();
+        endPrepareTrace();
+        finishCrossfadeNow();
+        releaseNextPlayer();
         if (mediaPlayer != null) {
             if (mediaPlayer.isPlaying() || isPaused) {
                 try {
@@ -424,63 +1183,97 @@ public class PlaybackService extends Service implements
             Log.d(TAG, "Song stopped and media player reset.");
             updatePlaybackState(null);
             currentSong = null;
-            if (playbackStateListener != null) playbackStateListener.onPlaybackStateChanged(false);
+            events.onPlaybackStateChanged(false);
 
-            stopForeground(true);
             mediaNotificationManager.hideNotification();
         }
     }
 
     public Song getCurrentSong() {
+        return publishedState.song;
+    }
+
+    private Song getCurrentSongNow() {
         if (currentIndex != -1 && currentIndex < currentQueue.size()) {
             return currentQueue.get(currentIndex);
         }
         return currentSong;
     }
 
-    public List<Song> getCurrentQueue() {
-        return currentQueue;
+    public PlayQueue getCurrentQueue() {
+        return publishedState.queue;
     }
 
     public int getCurrentIndex() {
-        return currentIndex;
+        return publishedState.index;
     }
 
-    public boolean toggleShuffle() {
+    public void toggleShuffle() {
+        if (runOnPlaybackThread(this::toggleShuffle)) return;
         isShuffle = !isShuffle;
         Log.d(TAG, "Shuffle mode toggled to: " + isShuffle);
-        if (playbackStateListener != null) {
-            playbackStateListener.onShuffleModeChanged(isShuffle);
+        if (isShuffle) {
+            shuffleEngine.reset(currentQueue.size(), currentIndex); // New order starting from the current track
         }
-        return isShuffle;
+        onPlaybackOrderChanged();
+        snapshotStore.scheduleWrite();
+        events.onShuffleModeChanged(isShuffle);
     }
 
     public boolean isShuffleEnabled() {
-        return isShuffle;
+        return publishedState.shuffle;
     }
 
-    public RepeatMode toggleRepeatMode() {
+    public void toggleRepeatMode() {
+        if (runOnPlaybackThread(this::toggleRepeatMode)) return;
         switch (repeatMode) {
             case NONE: repeatMode = RepeatMode.ALL; break;
             case ALL: repeatMode = RepeatMode.ONE; break;
             case ONE: repeatMode = RepeatMode.NONE; break;
         }
         Log.d(TAG, "Repeat mode toggled to: " + repeatMode);
-        if (playbackStateListener != null) {
-            playbackStateListener.onRepeatModeChanged(repeatMode);
-        }
-        return repeatMode;
+        onPlaybackOrderChanged();
+        snapshotStore.scheduleWrite();
+        events.onRepeatModeChanged(repeatMode);
+    }
+
+    public void setRepeatMode(RepeatMode mode) {
+        if (runOnPlaybackThread(() -> setRepeatMode(mode))) return;
+        if (repeatMode == mode) return;
+        repeatMode = mode;
+        Log.d(TAG, "Repeat mode set to: " + repeatMode);
+        onPlaybackOrderChanged();
+        snapshotStore.scheduleWrite();
+        events.onRepeatModeChanged(repeatMode);
     }
 
     public RepeatMode getRepeatMode() {
-        return repeatMode;
+        return publishedState.repeatMode;
     }
 
     public boolean isPlaying() {
-        return mediaPlayer != null && mediaPlayer.isPlaying();
+        return publishedState.playing;
     }
 
+    /** Extrapolated from the current {@link #getPositionAnchor() anchor}, so it costs no thread hop. */
     public int getCurrentPosition() {
+        return (int) publishedState.anchor.positionAt(SystemClock.elapsedRealtime());
+    }
+
+    public int getDuration() {
+        return (int) publishedState.anchor.durationMs;
+    }
+
+    /** The latest position anchor; listeners also get each new one in {@link PlaybackStateListener#onPositionChanged}. */
+    public PositionAnchor getPositionAnchor() {
+        return publishedState.anchor;
+    }
+
+    private boolean isPlayingNow() {
+        return mediaPlayer != null && mediaPlayer.isPlaying();
+    }
+
+    private int currentPositionNow() {
         if (mediaPlayer != null && (mediaPlayer.isPlaying() || isPaused)) {
             try {
                  return mediaPlayer.getCurrentPosition();
@@ -491,7 +1284,7 @@ public class PlaybackService extends Service implements
         return 0;
     }
 
-    public int getDuration() {
+    private int durationNow() {
         if (mediaPlayer != null && (mediaPlayer.isPlaying() || isPaused)) {
              try {
                 return mediaPlayer.getDuration();
@@ -503,9 +1296,14 @@ public class PlaybackService extends Service implements
     }
 
     public void seekTo(int position) {
+        if (runOnPlaybackThread(() -> seekTo(position))) return;
         if (mediaPlayer != null && (mediaPlayer.isPlaying() || isPaused)) {
+            finishCrossfadeNow(); // A seek within the incoming track ends the fade
             try {
                 mediaPlayer.seekTo(position);
+                updatePlaybackState(currentSong); // Re-anchors the session's position
+                scheduleCrossfade();
+                snapshotStore.scheduleWrite();
             } catch (IllegalStateException e) {
                 Log.e(TAG, "seekTo called in invalid state: " + e.getMessage());
             }
@@ -515,7 +1313,7 @@ public class PlaybackService extends Service implements
     private void updatePlaybackState(Song song) {
         long position = PlaybackStateCompat.PLAYBACK_POSITION_UNKNOWN;
         int state = isPaused ? PlaybackStateCompat.STATE_PAUSED :
-                    (isPlaying() ? PlaybackStateCompat.STATE_PLAYING : PlaybackStateCompat.STATE_STOPPED);
+                    (isPlayingNow() ? PlaybackStateCompat.STATE_PLAYING : PlaybackStateCompat.STATE_STOPPED);
 
         if (mediaPlayer != null && (state == PlaybackStateCompat.STATE_PLAYING || state == PlaybackStateCompat.STATE_PAUSED)) {
             try {
@@ -534,24 +1332,17 @@ public class PlaybackService extends Service implements
                         PlaybackStateCompat.ACTION_SKIP_TO_NEXT |
                         PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS |
                         PlaybackStateCompat.ACTION_SEEK_TO |
+                        PlaybackStateCompat.ACTION_PLAY_FROM_MEDIA_ID |
                         PlaybackStateCompat.ACTION_STOP
                 )
-                .setState(state, position, 1.0f);
+                .setState(state, position, 1.0f, SystemClock.elapsedRealtime()); // Same anchor semantics as PositionAnchor
         mediaSession.setPlaybackState(stateBuilder.build());
 
+        // The notification manager decides foreground vs. background and skips renders that change nothing
         if (state == PlaybackStateCompat.STATE_STOPPED) {
-             if (this.currentSong == null) { 
-                stopForeground(true);
-                mediaNotificationManager.hideNotification();
-             } else if (song != null) { 
-                mediaNotificationManager.buildNotificationAndStartForeground(song, false, getMediaSessionToken());
-                stopForeground(true); 
-             }
-        } else if (song != null) { 
-            mediaNotificationManager.buildNotificationAndStartForeground(song, state == PlaybackStateCompat.STATE_PLAYING, getMediaSessionToken());
-            if (state != PlaybackStateCompat.STATE_PLAYING) {
-                 stopForeground(false); 
-            }
+            mediaNotificationManager.update(null, false, getMediaSessionToken());
+        } else if (song != null) {
+            mediaNotificationManager.update(song, state == PlaybackStateCompat.STATE_PLAYING, getMediaSessionToken());
         }
         Log.d(TAG, "PlaybackState updated. State: " + state + ", Position: " + position + ", Song: " + (song != null ? song.getTitle() : "null"));
     }
@@ -564,86 +1355,120 @@ public class PlaybackService extends Service implements
             }
             return;
         }
-        MediaMetadataCompat currentMetadata = mediaSession.getController().getMetadata();
-        if (currentMetadata != null && song.getTitle().equals(currentMetadata.getString(MediaMetadataCompat.METADATA_KEY_TITLE))) {
-            if (currentMetadata.getLong(MediaMetadataCompat.METADATA_KEY_DURATION) <= 0 && song.getDuration() > 0) {
-                 // Continue to update if duration was missing
-            } else {
-                // return; // Metadata seems up-to-date for this song
-            }
-        }
-
-        MediaMetadataCompat.Builder metadataBuilder = new MediaMetadataCompat.Builder()
-                .putString(MediaMetadataCompat.METADATA_KEY_TITLE, song.getTitle())
-                .putString(MediaMetadataCompat.METADATA_KEY_ARTIST, song.getArtist())
-                .putString(MediaMetadataCompat.METADATA_KEY_ALBUM, song.getAlbum())
-                .putLong(MediaMetadataCompat.METADATA_KEY_DURATION, song.getDuration());
-
-        Glide.with(this)
-                .asBitmap()
-                .load(song.getAlbumArtUri())
-                .error(R.drawable.ic_default_album_art)
-                .into(new SimpleTarget<Bitmap>() {
-                    @Override
-                    public void onResourceReady(Bitmap resource, Transition<? super Bitmap> transition) {
-                        metadataBuilder.putBitmap(MediaMetadataCompat.METADATA_KEY_ALBUM_ART, resource);
-                        mediaSession.setMetadata(metadataBuilder.build());
-                        Log.d(TAG, "MediaMetadata (async) updated with album art for: " + song.getTitle());
-                        if (PlaybackService.this.currentSong != null && PlaybackService.this.currentSong.getId() == song.getId()) {
-                             updatePlaybackState(song);
-                        }
-                    }
-                     @Override
-                    public void onLoadFailed(@Nullable android.graphics.drawable.Drawable errorDrawable) {
-                        super.onLoadFailed(errorDrawable);
-                        Bitmap defaultArt = BitmapFactory.decodeResource(getResources(), R.drawable.ic_default_album_art);
-                        if (defaultArt != null) {
-                            metadataBuilder.putBitmap(MediaMetadataCompat.METADATA_KEY_ALBUM_ART, defaultArt);
-                        }
-                        mediaSession.setMetadata(metadataBuilder.build());
-                        Log.d(TAG, "MediaMetadata (async) updated with default album art for: " + song.getTitle());
-                        if (PlaybackService.this.currentSong != null && PlaybackService.this.currentSong.getId() == song.getId()) {
-                             updatePlaybackState(song);
-                        }
-                    }
-                });
-        mediaSession.setMetadata(metadataBuilder.build());
-        Log.d(TAG, "MediaMetadata (initial sync) updated for: " + song.getTitle());
+        Tracing.begin(Tracing.UPDATE_METADATA);
+        try {
+            MediaMetadataCompat currentMetadata = mediaSession.getController().getMetadata();
+            if (currentMetadata != null && song.getTitle().equals(currentMetadata.getString(MediaMetadataCompat.METADATA_KEY_TITLE))) {
+                if (currentMetadata.getLong(MediaMetadataCompat.METADATA_KEY_DURATION) <= 0 && song.getDuration() > 0) {
+                     // Continue to update if duration was missing
+                } else {
+                    // return; // Metadata seems up-to-date for this song
+                }
+            }
+
+            MediaMetadataCompat.Builder metadataBuilder = new MediaMetadataCompat.Builder()
+                    .putString(MediaMetadataCompat.METADATA_KEY_TITLE, song.getTitle())
+                    .putString(MediaMetadataCompat.METADATA_KEY_ARTIST, song.getArtist())
+                    .putString(MediaMetadataCompat.METADATA_KEY_ALBUM, song.getAlbum())
+                    .putLong(MediaMetadataCompat.METADATA_KEY_DURATION, song.getDuration());
+
+            ArtworkBroker artworkBroker = ArtworkBroker.getInstance(this);
+            Bitmap cachedArt = artworkBroker.getCached(song.getAlbumId(), ArtworkBroker.SIZE_SESSION);
+            if (cachedArt != null) {
+                metadataBuilder.putBitmap(MediaMetadataCompat.METADATA_KEY_ALBUM_ART, cachedArt);
+            }
+            mediaSession.setMetadata(metadataBuilder.build());
+            Log.d(TAG, "MediaMetadata (initial sync) updated for: " + song.getTitle());
+            if (cachedArt == null) {
+                // The broker is driven from the main thread and decodes on its own; the result comes back here
+                mainHandler.post(() -> artworkBroker.load(song.getAlbumId(), ArtworkBroker.SIZE_SESSION, (albumId, art) ->
+                        playbackHandler.post(() -> {
+                            if (currentSong == null || currentSong.getId() != song.getId()) return; // Track changed while decoding
+                            metadataBuilder.putBitmap(MediaMetadataCompat.METADATA_KEY_ALBUM_ART, art);
+                            mediaSession.setMetadata(metadataBuilder.build());
+                            Log.d(TAG, "MediaMetadata (async) updated with album art for: " + song.getTitle());
+                        })));
+            }
+        } finally {
+            Tracing.end();
+        }
     }
 
     @Override
-    public void onPrepared(MediaPlayer mp) {
-        Log.d(TAG, "MediaPlayer prepared, starting playback for: " + (currentSong != null ? currentSong.getTitle() : "Unknown"));
-        mp.start();
-        isPaused = false;
-        updatePlaybackState(currentSong);
-        if (playbackStateListener != null) {
-            playbackStateListener.onPlaybackStateChanged(true);
-            if (currentSong != null) playbackStateListener.onSongChanged(currentSong);
+    public void onPrepared(PlaybackEngine mp) {
+        if ((mp == nextPlayer || mp == mediaPlayer) && !gainGate.admit(mp)) {
+            Log.d(TAG, "Player prepared, waiting for its loudness gain.");
+            return;
+        }
+        if (mp == nextPlayer) {
+            onNextPlayerPrepared();
+            return;
+        }
+        if (mp != mediaPlayer) return;
+        Tracing.begin(Tracing.ON_PREPARED);
+        try {
+            currentPreparing = false;
+            endPrepareTrace();
+            Log.d(TAG, "Player prepared, starting playback for: " + (currentSong != null ? currentSong.getTitle() : "Unknown"));
+            if (pendingStartPositionMs > 0) {
+                mp.seekTo(pendingStartPositionMs); // Resuming a restored track where it was left
+                pendingStartPositionMs = 0;
+            }
+            mp.start();
+            onAudioStarted();
+            isPaused = false;
+            updatePlaybackState(currentSong);
+            events.onPlaybackStateChanged(true);
+            if (currentSong != null) events.onSongChanged(currentSong);
+            onTrackStarted();
+        } finally {
+            Tracing.end();
         }
-        mediaNotificationManager.buildNotificationAndStartForeground(currentSong, true, getMediaSessionToken());
     }
 
     @Override
-    public void onCompletion(MediaPlayer mp) {
+    public void onCompletion(PlaybackEngine mp) {
         Log.d(TAG, "Song completed: " + (currentSong != null ? currentSong.getTitle() : "Unknown"));
+        if (mp != mediaPlayer) return;
         Song completedSong = currentSong;
         isPaused = false; 
-        
+
+        if (nextPlayerChained) {
+            promoteNextPlayer(true, 0); // The framework already started the next track on the chained player
+            return;
+        }
         if (repeatMode == RepeatMode.ONE) {
             playSongAtIndex(currentIndex);
         } else {
-            playNextSong(); 
+            advance(false);
         }
-        if (this.currentSong == null && !isPlaying() && !isPaused) { 
+        if (this.currentSong == null && !isPlayingNow() && !isPaused) { 
              updatePlaybackState(completedSong); 
         }
     }
 
     @Override
-    public boolean onError(MediaPlayer mp, int what, int extra) {
-        Log.e(TAG, "MediaPlayer Error: What=" + what + ", Extra=" + extra + " for song: " + (currentSong != null ? currentSong.getTitle() : "Unknown"));
-        Toast.makeText(this, "Error playing track. Skipping.", Toast.LENGTH_LONG).show();
+    public boolean onError(PlaybackEngine mp, int what, int extra) {
+        if (mp == nextPlayer) {
+            Log.w(TAG, "Pre-prepared next track failed (What=" + what + ", Extra=" + extra + "), will prepare it on demand.");
+            if (!nextPlayerPrepared) metrics.prepareFailures.record(what, extra);
+            releaseNextPlayer();
+            return true;
+        }
+        if (mp != mediaPlayer) {
+            Log.w(TAG, "Fading-out player failed (What=" + what + ", Extra=" + extra + "), cutting the crossfade.");
+            finishCrossfadeNow();
+            return true;
+        }
+        Log.e(TAG, "Player error: What=" + what + ", Extra=" + extra + " for song: " + (currentSong != null ? currentSong.getTitle() : "Unknown"));
+        if (currentPreparing) {
+            metrics.prepareFailures.record(what, extra);
+        } else {
+            metrics.playbackErrors.incrementAndGet();
+        }
+        currentPreparing = false;
+        endPrepareTrace();
+        showToast("Error playing track. Skipping.", Toast.LENGTH_LONG);
         isPaused = false;
         try {
             if (mp != null) mp.reset();
@@ -657,24 +1482,21 @@ public class PlaybackService extends Service implements
         
         updatePlaybackState(null); 
         
-        if (playbackStateListener != null) {
-            playbackStateListener.onPlaybackStateChanged(false);
-        }
+        events.onPlaybackStateChanged(false);
         
-        if (currentQueue != null && !currentQueue.isEmpty() && problematicSong != null) {
-            int problematicIndex = currentQueue.indexOf(problematicSong);
-            if (problematicIndex != -1 && problematicIndex == currentIndex) {
+        if (!currentQueue.isEmpty() && problematicSong != null) {
+            if (currentIndex >= 0 && currentIndex < currentQueue.size() && currentQueue.get(currentIndex).equals(problematicSong)) {
                  Log.d(TAG, "Attempting to play next song after error.");
                  if (repeatMode == RepeatMode.ONE) {
                      setRepeatMode(RepeatMode.NONE); 
-                     playNextSong();
+                     advance(false);
                      setRepeatMode(RepeatMode.ONE); 
                  } else if (currentQueue.size() == 1) {
                      Log.d(TAG, "Only one song in queue, which is problematic. Stopping.");
                      stopSong(); 
                  }
                  else {
-                     playNextSong();
+                     advance(false);
                  }
             } else {
                 Log.d(TAG, "Error for a song not currently indexed or queue empty. Stopping.");
@@ -687,21 +1509,50 @@ public class PlaybackService extends Service implements
         return true; 
     }
     
+    private boolean requestAudioFocus() {
+        int result;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            if (audioFocusRequest == null) {
+                audioFocusRequest = new AudioFocusRequest.Builder(AudioManager.AUDIOFOCUS_GAIN)
+                        .setAudioAttributes(MediaPlayerEngine.MUSIC_ATTRIBUTES)
+                        .setOnAudioFocusChangeListener(this, playbackHandler)
+                        .build();
+            }
+            result = audioManager.requestAudioFocus(audioFocusRequest);
+        } else {
+            result = audioManager.requestAudioFocus(this, AudioManager.STREAM_MUSIC, AudioManager.AUDIOFOCUS_GAIN);
+        }
+        return result == AudioManager.AUDIOFOCUS_REQUEST_GRANTED;
+    }
+
+    private void abandonAudioFocus() {
+        if (audioManager == null) return;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            if (audioFocusRequest != null) audioManager.abandonAudioFocusRequest(audioFocusRequest);
+        } else {
+            audioManager.abandonAudioFocus(this);
+        }
+    }
+
     @Override
     public void onAudioFocusChange(int focusChange) {
+        if (runOnPlaybackThread(() -> onAudioFocusChange(focusChange))) return;
         switch (focusChange) {
             case AudioManager.AUDIOFOCUS_GAIN:
                 Log.d(TAG, "AUDIOFOCUS_GAIN");
                 if (mediaPlayer == null) {
                     initializeMediaPlayer(); 
                 }
-                mediaPlayer.setVolume(1.0f, 1.0f);
+                mediaPlayer.setVolume(1.0f);
                 if (isPaused && currentSong != null) {
                     // Optional: resumeSong(); 
                 }
                 break;
             case AudioManager.AUDIOFOCUS_LOSS:
                 Log.d(TAG, "AUDIOFOCUS_LOSS (e.g., incoming call)");
+                metrics.focusLosses.incrementAndGet();
+                finishCrossfadeNow();
+                releaseNextPlayer();
                 if (mediaPlayer != null && (mediaPlayer.isPlaying() || isPaused)) {
                     try {
                         if (mediaPlayer.isPlaying()) mediaPlayer.stop();
@@ -713,18 +1564,20 @@ public class PlaybackService extends Service implements
                     isPaused = false; 
                     currentSong = null;
                     updatePlaybackState(null); 
-                    if (playbackStateListener != null) playbackStateListener.onPlaybackStateChanged(false);
+                    events.onPlaybackStateChanged(false);
                     Log.d(TAG, "Playback stopped due to AUDIOFOCUS_LOSS.");
                 }
                 break;
             case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT:
                 Log.d(TAG, "AUDIOFOCUS_LOSS_TRANSIENT");
+                metrics.transientFocusLosses.incrementAndGet();
                 if (mediaPlayer != null && mediaPlayer.isPlaying()) {
+                    finishCrossfadeNow();
                     try {
                         mediaPlayer.pause();
                         isPaused = true;
                         updatePlaybackState(currentSong); 
-                        if (playbackStateListener != null) playbackStateListener.onPlaybackStateChanged(false);
+                        events.onPlaybackStateChanged(false);
                         Log.d(TAG, "Playback paused due to AUDIOFOCUS_LOSS_TRANSIENT.");
                     } catch (IllegalStateException e) {
                         Log.e(TAG, "Error pausing media player on AUDIOFOCUS_LOSS_TRANSIENT: " + e.getMessage());
@@ -733,9 +1586,10 @@ public class PlaybackService extends Service implements
                 break;
             case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK:
                 Log.d(TAG, "AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK");
+                metrics.duckingFocusLosses.incrementAndGet();
                 if (mediaPlayer != null && mediaPlayer.isPlaying()) {
                     try {
-                        mediaPlayer.setVolume(0.3f, 0.3f); 
+                        mediaPlayer.setVolume(0.3f);
                         Log.d(TAG, "Volume ducked due to AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK.");
                     } catch (IllegalStateException e) {
                         Log.e(TAG, "Error ducking volume on AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK: " + e.getMessage());
@@ -792,21 +1646,34 @@ public class PlaybackService extends Service implements
     @Override
     public void onDestroy() {
         super.onDestroy();
-        if (mediaPlayer != null) {
-            mediaPlayer.release();
-            mediaPlayer = null;
-        }
-        if (mediaSession != null) {
-            mediaSession.release();
-            mediaSession = null;
-        }
-        abandonAudioFocus();
+        getSharedPreferences(CrossfadeController.PREFS_NAME, MODE_PRIVATE).unregisterOnSharedPreferenceChangeListener(crossfadePrefListener);
         unregisterNotificationActionReceiver();
-        unregisterBecomingNoisyReceiver(); 
-        stopForeground(true);
-        if (mediaNotificationManager != null) {
+        unregisterBecomingNoisyReceiver();
+        events.unsubscribeAll();
+        browseTree.release();
+        // Runs after the commands already queued; the thread then exits and later posts are dropped
+        playbackHandler.post(() -> {
+            snapshotStore.writeNow();
+            snapshotStore.release();
+            finishCrossfadeNow();
+            crossfadeController.release();
+            releaseNextPlayer();
+            if (sparePlayer != null) {
+                sparePlayer.release();
+                sparePlayer = null;
+            }
+            if (mediaPlayer != null) {
+                mediaPlayer.release();
+                mediaPlayer = null;
+            }
+            if (mediaSession != null) {
+                mediaSession.release();
+                mediaSession = null;
+            }
+            abandonAudioFocus();
             mediaNotificationManager.hideNotification();
-        }
+        });
+        playbackThread.quitSafely();
         Log.d(TAG, "PlaybackService Destroyed");
     }
 }
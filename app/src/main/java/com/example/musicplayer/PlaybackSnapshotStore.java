@@ -0,0 +1,243 @@
+package com.example.musicplayer;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.AtomicFile;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps a small binary file with the play queue (as MediaStore ids), the current index and position and
+ * the shuffle and repeat modes, so a cold-started PlaybackService can resume without waiting for a scan.
+ *
+ * Writes are batched: state changes only schedule one, and the state is captured once when it runs.
+ * Restoring resolves the current track first, with a single indexed lookup, so it can start playing
+ * before the rest of the queue has been read back.
+ */
+public class PlaybackSnapshotStore {
+
+    private static final String TAG = "PlaybackSnapshotStore";
+    private static final String FILE_NAME = "playback_snapshot.bin";
+    private static final int MAGIC = 0x4D505351; // "MPSQ"
+    private static final int VERSION = 1;
+    private static final long WRITE_DELAY_MS = 1000; // State changes within this window share one write
+
+    public static final class Snapshot {
+        public final PlayQueue queue;
+        public final int index;
+        public final int positionMs;
+        public final boolean shuffle;
+        public final PlaybackService.RepeatMode repeatMode;
+
+        public Snapshot(PlayQueue queue, int index, int positionMs, boolean shuffle, PlaybackService.RepeatMode repeatMode) {
+            this.queue = queue;
+            this.index = index;
+            this.positionMs = positionMs;
+            this.shuffle = shuffle;
+            this.repeatMode = repeatMode;
+        }
+    }
+
+    public interface StateSource {
+        /** Owner thread. Must be cheap; the queue is immutable, so it is captured by reference. */
+        Snapshot capture();
+    }
+
+    public interface RestoreListener {
+        /**
+         * Owner thread. Called with the current track alone ({@code complete} false) as soon as it is resolved,
+         * then with the whole queue. {@code snapshot} is null if there was nothing to restore.
+         */
+        void onRestored(Snapshot snapshot, boolean complete);
+    }
+
+    private final AtomicFile file;
+    private final LibraryDatabase database;
+    private final StateSource stateSource;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "PlaybackSnapshot"));
+    private final Handler handler; // The owner thread; every public method is called on it
+    private final Runnable writeRunnable = this::writeNow;
+    private boolean writeScheduled = false;
+    private boolean restoring = false;
+    private boolean writeAfterRestore = false;
+
+    /** {@code ownerLooper} is the thread that owns the playback state; captures and restore callbacks run there. */
+    public PlaybackSnapshotStore(Context context, Looper ownerLooper, StateSource stateSource) {
+        this.handler = new Handler(ownerLooper);
+        this.file = new AtomicFile(new File(context.getFilesDir(), FILE_NAME));
+        this.database = LibraryDatabase.getInstance(context);
+        this.stateSource = stateSource;
+    }
+
+    /** Owner thread. Schedules a write of the state as it will be when the write runs. */
+    public void scheduleWrite() {
+        if (writeScheduled) return;
+        writeScheduled = true;
+        handler.postDelayed(writeRunnable, WRITE_DELAY_MS);
+    }
+
+    /** Owner thread. Captures the state now and writes it in the background. */
+    public void writeNow() {
+        handler.removeCallbacks(writeRunnable);
+        writeScheduled = false;
+        if (restoring) {
+            writeAfterRestore = true; // The half-restored state must not overwrite the snapshot being read
+            return;
+        }
+        Snapshot snapshot = stateSource.capture();
+        executor.execute(() -> write(snapshot));
+    }
+
+    /** Owner thread. Reads the snapshot back; writes requested meanwhile are held until it completes. */
+    public void restore(RestoreListener listener) {
+        restoring = true;
+        executor.execute(() -> {
+            long startNanos = System.nanoTime();
+            SavedState saved = read();
+            if (saved == null) {
+                postRestored(listener, null, true);
+                return;
+            }
+            Song current = resolveCurrent(saved);
+            if (current != null) {
+                postRestored(listener, new Snapshot(PlayQueue.of(Collections.singletonList(current)), 0,
+                        saved.positionMs, saved.shuffle, saved.repeatMode), false);
+                Log.d(TAG, "Current track restored in " + (System.nanoTime() - startNanos) / 1000000 + " ms");
+            }
+            postRestored(listener, resolveQueue(saved), true);
+            Log.d(TAG, "Queue of " + saved.songIds.length + " restored in " + (System.nanoTime() - startNanos) / 1000000 + " ms");
+        });
+    }
+
+    /** Owner thread. Pending writes still run; call {@link #writeNow()} first to save the final state. */
+    public void release() {
+        handler.removeCallbacks(writeRunnable);
+        executor.shutdown();
+    }
+
+    private void postRestored(RestoreListener listener, Snapshot snapshot, boolean complete) {
+        handler.post(() -> {
+            if (complete) {
+                restoring = false;
+            }
+            listener.onRestored(snapshot, complete);
+            if (complete && writeAfterRestore) {
+                writeAfterRestore = false;
+                writeNow();
+            }
+        });
+    }
+
+    private void write(Snapshot snapshot) {
+        FileOutputStream stream = null;
+        try {
+            stream = file.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(snapshot.index);
+            out.writeInt(snapshot.positionMs);
+            out.writeBoolean(snapshot.shuffle);
+            out.writeByte(snapshot.repeatMode.ordinal());
+            out.writeInt(snapshot.queue.size());
+            for (Song song : snapshot.queue) {
+                out.writeLong(song.getId());
+            }
+            out.flush();
+            file.finishWrite(stream);
+            Log.d(TAG, "Snapshot written: " + snapshot.queue.size() + " tracks, index " + snapshot.index);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write playback snapshot: " + e.getMessage());
+            if (stream != null) file.failWrite(stream);
+        }
+    }
+
+    private SavedState read() {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(file.openRead()))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Log.w(TAG, "Ignoring playback snapshot in an unknown format");
+                return null;
+            }
+            int index = in.readInt();
+            int positionMs = in.readInt();
+            boolean shuffle = in.readBoolean();
+            int repeat = in.readByte();
+            long[] songIds = new long[in.readInt()];
+            for (int i = 0; i < songIds.length; i++) {
+                songIds[i] = in.readLong();
+            }
+            PlaybackService.RepeatMode[] modes = PlaybackService.RepeatMode.values();
+            if (songIds.length == 0 || index < 0 || index >= songIds.length || repeat < 0 || repeat >= modes.length) {
+                return null;
+            }
+            return new SavedState(songIds, index, positionMs, shuffle, modes[repeat]);
+        } catch (FileNotFoundException e) {
+            return null; // Nothing saved yet
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read playback snapshot: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private Song resolveCurrent(SavedState saved) {
+        SongTable table = new SongTable();
+        database.loadSongsById(table, new long[]{saved.songIds[saved.index]});
+        return table.isEmpty() ? null : table.get(0);
+    }
+
+    // Puts the queue back in its saved order, dropping tracks that have left the library since.
+    private Snapshot resolveQueue(SavedState saved) {
+        SongTable table = new SongTable();
+        database.loadSongsById(table, saved.songIds);
+        LongSparseArray<Song> byId = new LongSparseArray<>(table.size());
+        for (int row = 0; row < table.size(); row++) {
+            Song song = table.get(row);
+            byId.put(song.getId(), song);
+        }
+        List<Song> songs = new ArrayList<>(table.size());
+        int index = -1;
+        boolean currentKept = false;
+        for (int i = 0; i < saved.songIds.length; i++) {
+            Song song = byId.get(saved.songIds[i]);
+            if (i == saved.index) {
+                index = songs.size(); // The saved track, or the one that took its place
+                currentKept = song != null;
+            }
+            if (song != null) songs.add(song);
+        }
+        if (songs.isEmpty()) return null;
+        return new Snapshot(PlayQueue.of(Collections.unmodifiableList(songs)), Math.min(index, songs.size() - 1),
+                currentKept ? saved.positionMs : 0, saved.shuffle, saved.repeatMode);
+    }
+
+    private static final class SavedState {
+        final long[] songIds;
+        final int index;
+        final int positionMs;
+        final boolean shuffle;
+        final PlaybackService.RepeatMode repeatMode;
+
+        SavedState(long[] songIds, int index, int positionMs, boolean shuffle, PlaybackService.RepeatMode repeatMode) {
+            this.songIds = songIds;
+            this.index = index;
+            this.positionMs = positionMs;
+            this.shuffle = shuffle;
+            this.repeatMode = repeatMode;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.example.musicplayer;
+
+/**
+ * Where playback stood at one instant, in PlaybackStateCompat terms: a position at an elapsedRealtime
+ * timestamp and the speed it advances at (0 while paused or stopped). Holders extrapolate the position
+ * for any later time themselves, so the service only has to push a new anchor when playback jumps.
+ */
+public final class PositionAnchor {
+
+    public static final PositionAnchor STOPPED = new PositionAnchor(0, 0, 0f, 0);
+
+    public final long positionMs;
+    public final long elapsedRealtimeMs;
+    public final float speed;
+    public final long durationMs;
+
+    public PositionAnchor(long positionMs, long elapsedRealtimeMs, float speed, long durationMs) {
+        this.positionMs = positionMs;
+        this.elapsedRealtimeMs = elapsedRealtimeMs;
+        this.speed = speed;
+        this.durationMs = durationMs;
+    }
+
+    /** The position at {@code elapsedRealtimeMs}, never past the end of the track. */
+    public long positionAt(long elapsedRealtimeMs) {
+        long position = positionMs + (long) (speed * (elapsedRealtimeMs - this.elapsedRealtimeMs));
+        if (durationMs > 0 && position > durationMs) return durationMs;
+        return Math.max(0, position);
+    }
+
+    /**
+     * True if {@code actual} is not what this anchor predicts: a different speed or duration, or a position
+     * more than {@code toleranceMs} away from the extrapolated one (a seek, a new track, drift).
+     */
+    public boolean divergesFrom(PositionAnchor actual, long toleranceMs) {
+        if (speed != actual.speed || durationMs != actual.durationMs) return true;
+        return Math.abs(positionAt(actual.elapsedRealtimeMs) - actual.positionMs) > toleranceMs;
+    }
+
+    @Override
+    public String toString() {
+        return "PositionAnchor{" + positionMs + " ms at " + elapsedRealtimeMs + ", speed " + speed + ", duration " + durationMs + "}";
+    }
+}
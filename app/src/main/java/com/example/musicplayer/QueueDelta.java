@@ -0,0 +1,53 @@
+package com.example.musicplayer;
+
+/**
+ * Describes one change to the play queue, so listeners can patch what they show instead of reloading
+ * the whole queue.
+ */
+public final class QueueDelta {
+
+    public static final int REPLACED = 0; // A new queue; index and count are unused
+    public static final int INSERTED = 1; // count entries inserted at index
+    public static final int REMOVED = 2;  // The entry at index was removed
+    public static final int MOVED = 3;    // The entry at index moved to toIndex
+
+    public final int type;
+    public final int index;
+    public final int count;
+    public final int toIndex;
+
+    private static final QueueDelta REPLACED_DELTA = new QueueDelta(REPLACED, -1, 0, -1);
+
+    private QueueDelta(int type, int index, int count, int toIndex) {
+        this.type = type;
+        this.index = index;
+        this.count = count;
+        this.toIndex = toIndex;
+    }
+
+    public static QueueDelta replaced() {
+        return REPLACED_DELTA; // Carries nothing, so one instance serves every replacement
+    }
+
+    public static QueueDelta inserted(int index, int count) {
+        return new QueueDelta(INSERTED, index, count, -1);
+    }
+
+    public static QueueDelta removed(int index) {
+        return new QueueDelta(REMOVED, index, 1, -1);
+    }
+
+    public static QueueDelta moved(int from, int to) {
+        return new QueueDelta(MOVED, from, 1, to);
+    }
+
+    @Override
+    public String toString() {
+        switch (type) {
+            case INSERTED: return "INSERTED(" + index + ", " + count + ")";
+            case REMOVED: return "REMOVED(" + index + ")";
+            case MOVED: return "MOVED(" + index + " -> " + toIndex + ")";
+            default: return "REPLACED";
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.example.musicplayer;
+
+import android.content.Context;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.OperationCanceledException;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs library syncs for the whole process, independent of any activity. At most one scan runs at a time
+ * on a single background thread: a scan requested while another is queued or running joins it, and a
+ * MediaStore change seen while one is running schedules exactly one follow-up scan. Progress and results
+ * are delivered on the main thread to whichever listener is attached, and replayed on attach so a
+ * recreated activity picks up a scan its predecessor started.
+ */
+public class ScanCoordinator {
+
+    private static final String TAG = "ScanCoordinator";
+
+    private static ScanCoordinator instance;
+
+    private final Context appContext;
+    private final MediaScanner mediaScanner = new MediaScanner();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // One worker and room for one queued scan; requests beyond that are coalesced before reaching it
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(1), runnable -> new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+            }, "LibraryScan"), new ThreadPoolExecutor.DiscardPolicy());
+
+    // Guarded by this
+    private boolean scanQueued = false;
+    private boolean scanRunning = false;
+    private boolean rescanRequested = false;
+    private CancellationSignal cancellationSignal;
+
+    // Only touched on the main thread
+    private Listener listener;
+    private boolean scanning = false;
+    private int progressFetched = 0;
+    private int progressTotal = -1;
+    private int finishedScans = 0;
+    private ScanOutcome lastOutcome;
+
+    public interface Listener {
+        /** A scan is running; {@code total} is -1 until the number of changed tracks is known. */
+        void onScanProgress(int fetched, int total);
+
+        /** A scan completed or was cancelled ({@code outcome} is null when cancelled). */
+        void onScanFinished(ScanOutcome outcome);
+    }
+
+    /** Result of one completed scan. Sequence numbers start at 1 and increase with every completed scan. */
+    public static class ScanOutcome {
+        public final int sequence;
+        public final MediaScanner.SyncResult syncResult;
+        public final long songCount;
+
+        ScanOutcome(int sequence, MediaScanner.SyncResult syncResult, long songCount) {
+            this.sequence = sequence;
+            this.syncResult = syncResult;
+            this.songCount = songCount;
+        }
+    }
+
+    public static synchronized ScanCoordinator getInstance(Context context) {
+        if (instance == null) {
+            instance = new ScanCoordinator(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private ScanCoordinator(Context appContext) {
+        this.appContext = appContext;
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /** Makes sure the library is synced; joins a scan that is already queued or running. */
+    public synchronized void requestScan() {
+        if (scanQueued || scanRunning) {
+            Log.d(TAG, "Scan already pending, joining it.");
+            return;
+        }
+        submitScan();
+    }
+
+    /**
+     * Asks for a scan after MediaStore changed. A running scan may already have read past the change, so
+     * one more scan is scheduled after it; any number of such requests collapse into that one.
+     */
+    public synchronized void requestRescan() {
+        if (scanQueued) return;
+        if (scanRunning) {
+            rescanRequested = true;
+            return;
+        }
+        submitScan();
+    }
+
+    /** Cancels the running scan, if any, and drops any queued or follow-up scan. */
+    public synchronized void cancel() {
+        rescanRequested = false;
+        if (scanQueued) {
+            executor.getQueue().clear();
+            scanQueued = false;
+        }
+        if (cancellationSignal != null) {
+            cancellationSignal.cancel();
+        }
+    }
+
+    /** Attaches the UI that receives scan updates, replacing any previous one. Main thread only. */
+    public void attach(Listener newListener) {
+        listener = newListener;
+        if (scanning) {
+            newListener.onScanProgress(progressFetched, progressTotal);
+        }
+        if (lastOutcome != null) {
+            newListener.onScanFinished(lastOutcome);
+        }
+    }
+
+    /** Detaches {@code oldListener} if it is still the attached one. Main thread only. */
+    public void detach(Listener oldListener) {
+        if (listener == oldListener) {
+            listener = null;
+        }
+    }
+
+    // Called with the lock held
+    private void submitScan() {
+        scanQueued = true;
+        executor.execute(this::runScan);
+    }
+
+    private void runScan() {
+        CancellationSignal signal = new CancellationSignal();
+        synchronized (this) {
+            scanQueued = false;
+            scanRunning = true;
+            cancellationSignal = signal;
+        }
+        mainHandler.post(() -> publishProgress(0, -1));
+        try {
+            MediaScanner.SyncResult syncResult = mediaScanner.syncLibrary(appContext, signal,
+                    (fetched, total) -> mainHandler.post(() -> publishProgress(fetched, total)));
+            MusicLibrary.getInstance(appContext).applySync(syncResult);
+            long songCount = LibraryDatabase.getInstance(appContext).countSongs();
+            mainHandler.post(() -> publishOutcome(syncResult, songCount));
+        } catch (OperationCanceledException e) {
+            Log.d(TAG, "Scan cancelled.");
+            mainHandler.post(() -> publishOutcome(null, 0));
+        } finally {
+            synchronized (this) {
+                scanRunning = false;
+                cancellationSignal = null;
+                if (rescanRequested) {
+                    rescanRequested = false;
+                    submitScan();
+                }
+            }
+        }
+    }
+
+    private void publishProgress(int fetched, int total) {
+        scanning = true;
+        progressFetched = fetched;
+        progressTotal = total;
+        if (listener != null) {
+            listener.onScanProgress(fetched, total);
+        }
+    }
+
+    private void publishOutcome(MediaScanner.SyncResult syncResult, long songCount) {
+        scanning = false;
+        ScanOutcome outcome = null;
+        if (syncResult != null) {
+            outcome = new ScanOutcome(++finishedScans, syncResult, songCount);
+            lastOutcome = outcome;
+        }
+        if (listener != null) {
+            listener.onScanFinished(outcome);
+        }
+    }
+}
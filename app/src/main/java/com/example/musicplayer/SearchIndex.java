@@ -0,0 +1,285 @@
+package com.example.musicplayer;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * In-memory search over title, artist and album. Text is accent-folded and lower-cased into tokens;
+ * a sorted token map answers prefix queries and a trigram map answers matches inside a token.
+ * Songs can be added and removed one by one, so library deltas never require a rebuild.
+ *
+ * Not thread-safe: all calls must come from the same thread (MusicLibrary's executor).
+ */
+public class SearchIndex {
+
+    private static final int FIELD_TITLE = 0;
+    private static final int FIELD_ARTIST = 1;
+    private static final int FIELD_ALBUM = 2;
+    private static final int[] FIELD_WEIGHTS = {8, 4, 2};
+    private static final int EXACT_TOKEN_BONUS = 1;
+    private static final int INFIX_WEIGHT = 1;
+
+    private Song[] docs = new Song[1024];
+    private int docCount;
+    private final BitSet deleted = new BitSet();
+    private int deletedCount;
+    private final HashMap<Long, Integer> docsById = new HashMap<>();
+
+    // Postings are (doc << 2 | field), in ascending doc order
+    private final TreeMap<String, IntList> tokens = new TreeMap<>();
+    // Postings are docs, in ascending doc order, one entry per doc
+    private final HashMap<Long, IntList> trigrams = new HashMap<>();
+
+    // Query scratch space, reused between queries
+    private int[] scores = new int[0];
+    private int[] matchedTerms = new int[0];
+    private final IntList touched = new IntList();
+    private final StringBuilder normalizeBuffer = new StringBuilder();
+    // Artist and album names repeat across many tracks; tokenize each distinct name once
+    private final HashMap<String, List<String>> sharedTokens = new HashMap<>();
+
+    public int size() {
+        return docCount - deletedCount;
+    }
+
+    public void add(Song song) {
+        remove(song.getId());
+        if (docCount == docs.length) docs = Arrays.copyOf(docs, docCount * 2);
+        int doc = docCount++;
+        docs[doc] = song;
+        docsById.put(song.getId(), doc);
+        indexField(doc, FIELD_TITLE, tokenize(song.getTitle()));
+        indexField(doc, FIELD_ARTIST, sharedTokens(song.getArtist()));
+        indexField(doc, FIELD_ALBUM, sharedTokens(song.getAlbum()));
+    }
+
+    private List<String> sharedTokens(String text) {
+        if (text == null) return tokenize(null);
+        List<String> cached = sharedTokens.get(text);
+        if (cached == null) {
+            cached = tokenize(text);
+            sharedTokens.put(text, cached);
+        }
+        return cached;
+    }
+
+    public void remove(long songId) {
+        Integer doc = docsById.remove(songId);
+        if (doc == null) return;
+        deleted.set(doc);
+        docs[doc] = null;
+        deletedCount++;
+        if (deletedCount > 1024 && deletedCount > docCount / 4) {
+            compact();
+        }
+    }
+
+    /** Drops tombstoned documents by re-adding the live ones; amortized over many removals. */
+    private void compact() {
+        Song[] live = new Song[docCount - deletedCount];
+        int n = 0;
+        for (int doc = 0; doc < docCount; doc++) {
+            if (!deleted.get(doc)) live[n++] = docs[doc];
+        }
+        docs = new Song[Math.max(1024, n)];
+        docCount = 0;
+        deleted.clear();
+        deletedCount = 0;
+        docsById.clear();
+        tokens.clear();
+        trigrams.clear();
+        sharedTokens.clear();
+        for (Song song : live) {
+            add(song);
+        }
+    }
+
+    private void indexField(int doc, int field, List<String> fieldTokens) {
+        for (String token : fieldTokens) {
+            IntList postings = tokens.get(token);
+            if (postings == null) {
+                postings = new IntList();
+                tokens.put(token, postings);
+            }
+            postings.add(doc << 2 | field);
+
+            for (int i = 0; i + 3 <= token.length(); i++) {
+                long key = trigramKey(token, i);
+                IntList docsWithTrigram = trigrams.get(key);
+                if (docsWithTrigram == null) {
+                    docsWithTrigram = new IntList();
+                    trigrams.put(key, docsWithTrigram);
+                }
+                if (docsWithTrigram.size == 0 || docsWithTrigram.last() != doc) {
+                    docsWithTrigram.add(doc);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns up to {@code limit} songs matching every query term, best first. A term matches a token that
+     * starts with it (title beats artist beats album, whole-token matches get a bonus) or, for terms of
+     * three or more characters, a token that contains it.
+     */
+    public List<Song> search(String query, int limit) {
+        List<String> terms = tokenize(query);
+        List<Song> results = new ArrayList<>();
+        if (terms.isEmpty() || limit <= 0) return results;
+
+        if (scores.length < docCount) {
+            scores = new int[docs.length];
+            matchedTerms = new int[docs.length];
+        }
+        touched.size = 0;
+
+        for (int termIndex = 0; termIndex < terms.size(); termIndex++) {
+            String term = terms.get(termIndex);
+            NavigableMap<String, IntList> range = tokens.subMap(term, true, term + Character.MAX_VALUE, false);
+            for (Map.Entry<String, IntList> entry : range.entrySet()) {
+                int bonus = entry.getKey().length() == term.length() ? EXACT_TOKEN_BONUS : 0;
+                IntList postings = entry.getValue();
+                for (int i = 0; i < postings.size; i++) {
+                    int posting = postings.values[i];
+                    int doc = posting >>> 2;
+                    if (deleted.get(doc)) continue;
+                    match(doc, termIndex, FIELD_WEIGHTS[posting & 3] + bonus);
+                }
+            }
+            if (term.length() >= 3) {
+                IntList infixDocs = docsContaining(term);
+                for (int i = 0; infixDocs != null && i < infixDocs.size; i++) {
+                    int doc = infixDocs.values[i];
+                    if (deleted.get(doc) || matchedTerms[doc] != termIndex) continue; // Already matched by prefix
+                    if (!hasTokenContaining(doc, term)) continue;
+                    match(doc, termIndex, INFIX_WEIGHT);
+                }
+            }
+        }
+
+        // Rank full matches by score, then by doc order (which follows the library's title order)
+        int termCount = terms.size();
+        long[] ranked = new long[touched.size];
+        int n = 0;
+        for (int i = 0; i < touched.size; i++) {
+            int doc = touched.values[i];
+            if (matchedTerms[doc] == termCount) {
+                ranked[n++] = ((long) (Integer.MAX_VALUE - scores[doc]) << 32) | doc;
+            }
+            scores[doc] = 0;
+            matchedTerms[doc] = 0;
+        }
+        Arrays.sort(ranked, 0, n);
+        for (int i = 0; i < n && results.size() < limit; i++) {
+            results.add(docs[(int) ranked[i]]);
+        }
+        return results;
+    }
+
+    // A doc only advances to term k+1 if it matched all terms before it; its score accumulates per field.
+    private void match(int doc, int termIndex, int weight) {
+        if (matchedTerms[doc] == termIndex) {
+            if (termIndex == 0) touched.add(doc);
+            matchedTerms[doc] = termIndex + 1;
+            scores[doc] += weight;
+        } else if (matchedTerms[doc] == termIndex + 1) {
+            scores[doc] += weight;
+        }
+    }
+
+    // Trigram postings are per doc, not per token, so a candidate may have the term's trigrams spread over
+    // several tokens ("abcx zbcd" for "abcd"); only a token holding the whole term is a match.
+    private boolean hasTokenContaining(int doc, String term) {
+        Song song = docs[doc];
+        return anyContains(tokenize(song.getTitle()), term)
+                || anyContains(sharedTokens(song.getArtist()), term)
+                || anyContains(sharedTokens(song.getAlbum()), term);
+    }
+
+    private static boolean anyContains(List<String> fieldTokens, String term) {
+        for (String token : fieldTokens) {
+            if (token.contains(term)) return true;
+        }
+        return false;
+    }
+
+    /** Candidate docs for an infix term: those with all of its trigrams, in any of their tokens. */
+    private IntList docsContaining(String term) {
+        IntList[] lists = new IntList[term.length() - 2];
+        for (int i = 0; i < lists.length; i++) {
+            lists[i] = trigrams.get(trigramKey(term, i));
+            if (lists[i] == null) return null;
+        }
+        // Intersect the rarest trigrams first so the running result shrinks as early as possible
+        Arrays.sort(lists, (a, b) -> Integer.compare(a.size, b.size));
+        IntList result = lists[0];
+        for (int i = 1; i < lists.length && result.size > 0; i++) {
+            result = intersect(result, lists[i]);
+        }
+        return result;
+    }
+
+    private static IntList intersect(IntList a, IntList b) {
+        IntList out = new IntList();
+        int i = 0, j = 0;
+        while (i < a.size && j < b.size) {
+            int x = a.values[i], y = b.values[j];
+            if (x == y) {
+                out.add(x);
+                i++;
+                j++;
+            } else if (x < y) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return out;
+    }
+
+    private static long trigramKey(String token, int start) {
+        return ((long) token.charAt(start) << 32) | ((long) token.charAt(start + 1) << 16) | token.charAt(start + 2);
+    }
+
+    /** Accent-folds, lower-cases and splits text on anything that is not a letter or digit. */
+    List<String> tokenize(String text) {
+        List<String> out = new ArrayList<>();
+        if (text == null || text.isEmpty()) return out;
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        StringBuilder token = normalizeBuffer;
+        token.setLength(0);
+        for (int i = 0; i < decomposed.length(); i++) {
+            char c = decomposed.charAt(i);
+            if (Character.getType(c) == Character.NON_SPACING_MARK) continue;
+            if (Character.isLetterOrDigit(c)) {
+                token.append(Character.toLowerCase(c));
+            } else if (token.length() > 0) {
+                out.add(token.toString());
+                token.setLength(0);
+            }
+        }
+        if (token.length() > 0) out.add(token.toString());
+        return out;
+    }
+
+    private static class IntList {
+        int[] values = new int[4];
+        int size;
+
+        void add(int value) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        int last() {
+            return values[size - 1];
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.example.musicplayer;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Shuffle order over queue indexes as a lazy Fisher-Yates permutation. Slots that were never touched hold
+ * their own index implicitly, so starting a new order is O(1) however long the queue is, and each step
+ * draws one slot in O(1) without allocating. The drawn prefix of the permutation is the play history, so
+ * going back replays earlier picks and going forward again replays them in the same order before new
+ * ones are drawn. Every track plays once per cycle.
+ *
+ * Queue edits relabel only the drawn prefix and rebuild the permutation around it, which costs
+ * O(tracks played this cycle), not O(queue size). Not thread-safe.
+ */
+public class ShuffleEngine {
+
+    private final Random random = new Random();
+
+    private int size;
+    private int[] slots = new int[0];      // Value at each slot, valid where slotStamps matches generation
+    private int[] slotStamps = new int[0];
+    private int[] where = new int[0];      // Slot of each value, valid where whereStamps matches generation
+    private int[] whereStamps = new int[0];
+    private int generation = 1;
+    private int position;                  // Slots [0, position) are drawn; the rest is the undrawn pool
+    private int cursor = -1;               // Slot of the current track
+    private int played;                    // Slots [0, played) have been current; [played, position) were only peeked
+    private int[] scratch = new int[0];    // Drawn prefix while rebuilding after an edit
+
+    /** Starts a new order over a queue of {@code size}, beginning at {@code startIndex}. */
+    public void reset(int size, int startIndex) {
+        ensureCapacity(size);
+        this.size = size;
+        newGeneration();
+        position = 0;
+        cursor = -1;
+        played = 0;
+        if (startIndex >= 0 && startIndex < size) {
+            moveTo(startIndex);
+        }
+    }
+
+    /**
+     * Returns the queue index after the current one without moving to it, drawing it if needed; the same
+     * index is returned until the cursor moves. Returns -1 at the end of a cycle unless {@code repeat},
+     * in which case a new cycle is started.
+     */
+    public int peekNext(boolean repeat) {
+        if (size == 0) return -1;
+        if (cursor + 1 < position) return valueAt(cursor + 1);
+        if (position < size) {
+            swap(position, position + random.nextInt(size - position));
+            position++;
+            return valueAt(position - 1);
+        }
+        if (!repeat) return -1;
+        int current = cursor >= 0 ? valueAt(cursor) : -1;
+        reset(size, current); // History restarts with the new cycle
+        if (size == 1) return current;
+        return peekNext(false);
+    }
+
+    /** Returns the queue index played before the current one in this cycle, or -1 at its start. */
+    public int peekPrevious() {
+        return cursor > 0 ? valueAt(cursor - 1) : -1;
+    }
+
+    /**
+     * Makes {@code index} the current track. A drawn index moves the cursor back or forward through the
+     * history; an undrawn one (picked by the user) is drawn right after the last track that played, and
+     * a track that was only peeked at goes back to the pool, so previous never goes to one that did not play.
+     */
+    public void moveTo(int index) {
+        if (index < 0 || index >= size) return;
+        int slot = slotOf(index);
+        if (slot < position) {
+            cursor = slot;
+            played = Math.max(played, slot + 1);
+            return;
+        }
+        position = played; // The pool is unordered, so un-drawing is just moving its boundary back
+        swap(position, slot);
+        cursor = position++;
+        played = position;
+    }
+
+    /** {@code count} entries were inserted at queue index {@code index}. */
+    public void onInserted(int index, int count) {
+        int drawn = copyDrawn();
+        for (int i = 0; i < drawn; i++) {
+            if (scratch[i] >= index) scratch[i] += count;
+        }
+        rebuild(size + count, drawn, cursor, played);
+    }
+
+    /** {@code count} entries were appended; they join the undrawn pool in O(1). */
+    public void onAppended(int count) {
+        ensureCapacity(size + count);
+        size += count; // New slots are untouched, so they implicitly hold their own index
+    }
+
+    /** The entry at queue index {@code index} was removed. */
+    public void onRemoved(int index) {
+        int drawn = copyDrawn();
+        int newCursor = cursor;
+        int newPlayed = played;
+        int kept = 0;
+        for (int i = 0; i < drawn; i++) {
+            int value = scratch[i];
+            if (value == index) {
+                if (i <= cursor) newCursor--; // The current track's predecessor (or itself) leaves the history
+                if (i < played) newPlayed--;
+                continue;
+            }
+            scratch[kept++] = value > index ? value - 1 : value;
+        }
+        rebuild(size - 1, kept, newCursor, newPlayed);
+    }
+
+    /** The entry at queue index {@code from} moved to {@code to}, shifting the entries in between. */
+    public void onMoved(int from, int to) {
+        int drawn = copyDrawn();
+        for (int i = 0; i < drawn; i++) {
+            int value = scratch[i];
+            if (value == from) {
+                scratch[i] = to;
+            } else if (from < to && value > from && value <= to) {
+                scratch[i] = value - 1;
+            } else if (from > to && value >= to && value < from) {
+                scratch[i] = value + 1;
+            }
+        }
+        rebuild(size, drawn, cursor, played);
+    }
+
+    private int copyDrawn() {
+        if (scratch.length < position) scratch = new int[Math.max(position, scratch.length * 2)];
+        for (int i = 0; i < position; i++) {
+            scratch[i] = valueAt(i);
+        }
+        return position;
+    }
+
+    // Lays the relabelled history back into slots [0, drawn) of a fresh permutation.
+    private void rebuild(int newSize, int drawn, int newCursor, int newPlayed) {
+        ensureCapacity(newSize);
+        size = newSize;
+        newGeneration();
+        position = 0;
+        for (int i = 0; i < drawn; i++) {
+            swap(position, slotOf(scratch[i]));
+            position++;
+        }
+        cursor = Math.min(newCursor, position - 1);
+        played = Math.min(newPlayed, position);
+    }
+
+    private int valueAt(int slot) {
+        return slotStamps[slot] == generation ? slots[slot] : slot;
+    }
+
+    private int slotOf(int value) {
+        return whereStamps[value] == generation ? where[value] : value;
+    }
+
+    private void swap(int a, int b) {
+        if (a == b) return;
+        int valueA = valueAt(a);
+        int valueB = valueAt(b);
+        set(a, valueB);
+        set(b, valueA);
+    }
+
+    private void set(int slot, int value) {
+        slots[slot] = value;
+        slotStamps[slot] = generation;
+        where[value] = slot;
+        whereStamps[value] = generation;
+    }
+
+    private void newGeneration() {
+        if (generation == Integer.MAX_VALUE) {
+            Arrays.fill(slotStamps, 0);
+            Arrays.fill(whereStamps, 0);
+            generation = 0;
+        }
+        generation++;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (slots.length >= capacity) return;
+        int newCapacity = Math.max(capacity, slots.length * 2);
+        slots = Arrays.copyOf(slots, newCapacity);
+        slotStamps = Arrays.copyOf(slotStamps, newCapacity);
+        where = Arrays.copyOf(where, newCapacity);
+        whereStamps = Arrays.copyOf(whereStamps, newCapacity);
+    }
+}
@@ -1,49 +1,68 @@
 package com.example.musicplayer;
 
+/**
+ * Lightweight view over one row of a {@link SongTable}. Two views are equal when they refer to the same
+ * MediaStore id, so lookups such as {@code indexOf} keep working across pages and table rebuilds.
+ */
 public class Song {
-    private long id;
-    private String path;
-    private String title;
-    private String artist;
-    private String album;
-    private long duration;
-    private String albumArtUri;
-
-    public Song(long id, String path, String title, String artist, String album, long duration, String albumArtUri) {
-        this.id = id;
-        this.path = path;
-        this.title = title;
-        this.artist = artist;
-        this.album = album;
-        this.duration = duration;
-        this.albumArtUri = albumArtUri;
+    private final SongTable table;
+    private final int row;
+
+    Song(SongTable table, int row) {
+        this.table = table;
+        this.row = row;
     }
 
     public long getId() {
-        return id;
+        return table.getId(row);
     }
 
     public String getPath() {
-        return path;
+        return table.getPath(row);
     }
 
     public String getTitle() {
-        return title;
+        return table.getTitle(row);
     }
 
     public String getArtist() {
-        return artist;
+        return table.getArtist(row);
     }
 
     public String getAlbum() {
-        return album;
+        return table.getAlbum(row);
+    }
+
+    public long getAlbumId() {
+        return table.getAlbumId(row);
     }
 
     public long getDuration() {
-        return duration;
+        return table.getDuration(row);
     }
 
     public String getAlbumArtUri() {
-        return albumArtUri;
+        return MediaScanner.albumArtUriFor(table.getAlbumId(row));
+    }
+
+    SongTable getTable() {
+        return table;
+    }
+
+    int getRow() {
+        return row;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Song)) return false;
+        return getId() == ((Song) o).getId();
+    }
+
+    @Override
+    public int hashCode() {
+        long id = getId();
+        return (int) (id ^ (id >>> 32));
     }
 }
@@ -1,7 +1,7 @@
 package com.example.musicplayer;
 
 import android.content.Context;
-import android.net.Uri;
+import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -9,10 +9,9 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 
-import com.bumptech.glide.Glide;
-
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
@@ -20,53 +19,87 @@ import java.util.concurrent.TimeUnit;
 
 public class SongAdapter extends RecyclerView.Adapter<SongAdapter.SongViewHolder> {
 
+    private static final int PREFETCH_DISTANCE = 30; // Rows from the end at which the next page is requested
+
     private Context context;
+    private final AlbumThumbnails albumThumbnails;
     private List<Song> songs;
     private OnSongClickListener onSongClickListener;
+    private OnLoadMoreListener onLoadMoreListener;
+    private boolean hasMorePages = false;
+    private boolean loadMoreRequested = false;
 
 
     public interface OnSongClickListener {
         void onSongClick(Song song, int position);
+        void onSongLongClick(Song song, int position);
+    }
+
+    public interface OnLoadMoreListener {
+        void onLoadMore();
     }
 
     public SongAdapter(Context context, List<Song> songs, OnSongClickListener listener) {
         this.context = context;
         this.songs = songs != null ? songs : new ArrayList<>();
         this.onSongClickListener = listener;
+        this.albumThumbnails = new AlbumThumbnails(context);
+    }
+
+    /** Preloads album art for the rows ahead of the scroll direction of {@code recyclerView}. */
+    public void attachArtPreloader(RecyclerView recyclerView) {
+        recyclerView.addOnScrollListener(albumThumbnails.createPreloader(this::getSongAt));
+    }
+
+    private Song getSongAt(int position) {
+        return position >= 0 && position < songs.size() ? songs.get(position) : null;
     }
 
     @NonNull
     @Override
     public SongViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
         View view = LayoutInflater.from(context).inflate(R.layout.list_item_song, parent, false);
-        return new SongViewHolder(view);
+        SongViewHolder holder = new SongViewHolder(view);
+        // Rows moved by applyDiff are not rebound, so the position is read at click time, never captured at bind
+        view.setOnClickListener(v -> {
+            int position = holder.getBindingAdapterPosition();
+            if (position == RecyclerView.NO_POSITION || onSongClickListener == null) return;
+            onSongClickListener.onSongClick(songs.get(position), position);
+        });
+        view.setOnLongClickListener(v -> {
+            int position = holder.getBindingAdapterPosition();
+            if (position == RecyclerView.NO_POSITION || onSongClickListener == null) return false;
+            onSongClickListener.onSongLongClick(songs.get(position), position);
+            return true;
+        });
+        return holder;
     }
 
     @Override
     public void onBindViewHolder(@NonNull SongViewHolder holder, int position) {
-        Song song = songs.get(position);
-        holder.textViewTitle.setText(song.getTitle());
-        holder.textViewArtist.setText(song.getArtist());
-
-        long durationMillis = song.getDuration();
-        String durationFormatted = String.format(Locale.getDefault(), "%02d:%02d",
-                TimeUnit.MILLISECONDS.toMinutes(durationMillis),
-                TimeUnit.MILLISECONDS.toSeconds(durationMillis) -
-                        TimeUnit.MINUTES.toSeconds(TimeUnit.MILLISECONDS.toMinutes(durationMillis))
-        );
-        holder.textViewDuration.setText(durationFormatted);
-
-        Glide.with(context)
-                .load(Uri.parse(song.getAlbumArtUri()))
-                .placeholder(R.drawable.ic_default_album_art) // Placeholder drawable
-                .error(R.drawable.ic_default_album_art)       // Error drawable
-                .into(holder.imageViewAlbumArt);
-
-        holder.itemView.setOnClickListener(v -> {
-            if (onSongClickListener != null) {
-                onSongClickListener.onSongClick(song, position);
+        Tracing.begin(Tracing.BIND_SONG);
+        try {
+            Song song = songs.get(position);
+            if (hasMorePages && !loadMoreRequested && onLoadMoreListener != null
+                    && position >= songs.size() - PREFETCH_DISTANCE) {
+                loadMoreRequested = true;
+                onLoadMoreListener.onLoadMore();
             }
-        });
+            holder.textViewTitle.setText(song.getTitle());
+            holder.textViewArtist.setText(song.getArtist());
+
+            long durationMillis = song.getDuration();
+            String durationFormatted = String.format(Locale.getDefault(), "%02d:%02d",
+                    TimeUnit.MILLISECONDS.toMinutes(durationMillis),
+                    TimeUnit.MILLISECONDS.toSeconds(durationMillis) -
+                            TimeUnit.MINUTES.toSeconds(TimeUnit.MILLISECONDS.toMinutes(durationMillis))
+            );
+            holder.textViewDuration.setText(durationFormatted);
+
+            albumThumbnails.into(song.getAlbumId(), holder.imageViewAlbumArt);
+        } finally {
+            Tracing.end();
+        }
     }
 
     @Override
@@ -79,6 +112,69 @@ public class SongAdapter extends RecyclerView.Adapter<SongAdapter.SongViewHolder
         notifyDataSetChanged();
     }
 
+    public void setOnLoadMoreListener(OnLoadMoreListener listener) {
+        this.onLoadMoreListener = listener;
+    }
+
+    /** Called after a page was appended; {@code songs} must extend the previous list. Only new rows are bound. */
+    public void onPageAppended(List<Song> songs, int positionStart, int itemCount, boolean hasMorePages) {
+        this.songs = songs;
+        this.hasMorePages = hasMorePages;
+        this.loadMoreRequested = false;
+        if (itemCount > 0) {
+            notifyItemRangeInserted(positionStart, itemCount);
+        }
+    }
+
+    /** Swaps in a refreshed list using a diff computed off the main thread against the list shown now. */
+    public void applyDiff(List<Song> songs, DiffUtil.DiffResult diff, boolean hasMorePages) {
+        this.songs = songs;
+        this.hasMorePages = hasMorePages;
+        this.loadMoreRequested = false;
+        diff.dispatchUpdatesTo(this);
+    }
+
+    /**
+     * Diffs two song lists by MediaStore id and visible fields. Run this on a background thread; the
+     * result only dispatches the minimal insert, remove and change events.
+     */
+    public static DiffUtil.DiffResult calculateDiff(List<Song> oldSongs, List<Song> newSongs) {
+        return DiffUtil.calculateDiff(new DiffUtil.Callback() {
+            @Override
+            public int getOldListSize() {
+                return oldSongs.size();
+            }
+
+            @Override
+            public int getNewListSize() {
+                return newSongs.size();
+            }
+
+            @Override
+            public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+                return oldSongs.get(oldItemPosition).getId() == newSongs.get(newItemPosition).getId();
+            }
+
+            @Override
+            public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+                Song oldSong = oldSongs.get(oldItemPosition);
+                Song newSong = newSongs.get(newItemPosition);
+                return oldSong.getDuration() == newSong.getDuration()
+                        && oldSong.getAlbumId() == newSong.getAlbumId()
+                        && TextUtils.equals(oldSong.getTitle(), newSong.getTitle())
+                        && TextUtils.equals(oldSong.getArtist(), newSong.getArtist());
+            }
+        }, false); // Rows are title-sorted, so a move is always a change to the title; skip move detection
+    }
+
+    /** Called when the list was reset to its first page. */
+    public void onPagesReset(List<Song> songs, boolean hasMorePages) {
+        this.songs = songs;
+        this.hasMorePages = hasMorePages;
+        this.loadMoreRequested = false;
+        notifyDataSetChanged();
+    }
+
     static class SongViewHolder extends RecyclerView.ViewHolder {
         ImageView imageViewAlbumArt;
         TextView textViewTitle;
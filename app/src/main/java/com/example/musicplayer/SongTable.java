@@ -0,0 +1,233 @@
+package com.example.musicplayer;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Column-oriented store for the scanned library. Ids and durations live in primitive arrays, artist and
+ * album names are dictionary encoded, and paths share their directory prefixes through a small trie, so
+ * a row costs a few dozen bytes instead of a Song object plus five Strings.
+ *
+ * Rows are append-only and are written by a single thread; readers on other threads may read any row
+ * below {@link #size()}, which is published last. {@link Song} instances are lightweight views over a row.
+ */
+public class SongTable {
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private long[] ids = new long[INITIAL_CAPACITY];
+    private long[] durations = new long[INITIAL_CAPACITY];
+    private long[] albumIds = new long[INITIAL_CAPACITY];
+    private int[] artistOrdinals = new int[INITIAL_CAPACITY];
+    private int[] albumOrdinals = new int[INITIAL_CAPACITY];
+    private int[] directoryNodes = new int[INITIAL_CAPACITY];
+    private String[] titles = new String[INITIAL_CAPACITY];
+    private String[] fileNames = new String[INITIAL_CAPACITY];
+
+    private final StringDictionary artists = new StringDictionary();
+    private final StringDictionary albums = new StringDictionary();
+    private final PathTrie directories = new PathTrie();
+
+    private volatile int size; // Written after the row data, so reading it first makes the row visible
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** Appends one row. Must only be called from the table's single writer thread. */
+    public void append(long id, String path, String title, String artist, String album, long albumId, long duration) {
+        int row = size;
+        if (row == ids.length) {
+            grow();
+        }
+        ids[row] = id;
+        durations[row] = duration;
+        albumIds[row] = albumId;
+        artistOrdinals[row] = artists.intern(artist);
+        albumOrdinals[row] = albums.intern(album);
+        titles[row] = title;
+        if (path == null) {
+            directoryNodes[row] = PathTrie.NO_NODE;
+            fileNames[row] = null;
+        } else {
+            int slash = path.lastIndexOf('/');
+            directoryNodes[row] = slash < 0 ? PathTrie.ROOT : directories.insert(path, slash);
+            fileNames[row] = path.substring(slash + 1);
+        }
+        size = row + 1;
+    }
+
+    private void grow() {
+        int capacity = ids.length * 2;
+        ids = Arrays.copyOf(ids, capacity);
+        durations = Arrays.copyOf(durations, capacity);
+        albumIds = Arrays.copyOf(albumIds, capacity);
+        artistOrdinals = Arrays.copyOf(artistOrdinals, capacity);
+        albumOrdinals = Arrays.copyOf(albumOrdinals, capacity);
+        directoryNodes = Arrays.copyOf(directoryNodes, capacity);
+        titles = Arrays.copyOf(titles, capacity);
+        fileNames = Arrays.copyOf(fileNames, capacity);
+    }
+
+    public Song get(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+        }
+        return new Song(this, row);
+    }
+
+    /**
+     * Returns an immutable list of the first {@code count} rows. Later appends do not change it, which
+     * lets adapters hold a stable snapshot while the writer keeps filling the table.
+     */
+    public List<Song> rows(int count) {
+        if (count < 0 || count > size) {
+            throw new IndexOutOfBoundsException("Count " + count + " of " + size);
+        }
+        return new RowView(count);
+    }
+
+    long getId(int row) {
+        return ids[row];
+    }
+
+    long getDuration(int row) {
+        return durations[row];
+    }
+
+    long getAlbumId(int row) {
+        return albumIds[row];
+    }
+
+    String getTitle(int row) {
+        return titles[row];
+    }
+
+    String getArtist(int row) {
+        return artists.get(artistOrdinals[row]);
+    }
+
+    String getAlbum(int row) {
+        return albums.get(albumOrdinals[row]);
+    }
+
+    /** Dictionary ordinal of the row's artist; equal ordinals mean equal names within this table. */
+    int getArtistOrdinal(int row) {
+        return artistOrdinals[row];
+    }
+
+    int getAlbumOrdinal(int row) {
+        return albumOrdinals[row];
+    }
+
+    String getPath(int row) {
+        int node = directoryNodes[row];
+        if (node == PathTrie.NO_NODE) return null;
+        if (node == PathTrie.ROOT) return fileNames[row];
+        StringBuilder builder = new StringBuilder(64);
+        directories.appendPath(node, builder);
+        return builder.append('/').append(fileNames[row]).toString();
+    }
+
+    private class RowView extends AbstractList<Song> {
+        private final int count;
+
+        RowView(int count) {
+            this.count = count;
+        }
+
+        @Override
+        public Song get(int index) {
+            if (index < 0 || index >= count) {
+                throw new IndexOutOfBoundsException("Index " + index + " of " + count);
+            }
+            return new Song(SongTable.this, index);
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+    }
+
+    /** Maps each distinct string to a dense ordinal. Lookups by ordinal are safe from any thread. */
+    private static class StringDictionary {
+        private final HashMap<String, Integer> ordinals = new HashMap<>();
+        private String[] values = new String[64];
+        private int count;
+
+        int intern(String value) {
+            Integer ordinal = ordinals.get(value);
+            if (ordinal != null) return ordinal;
+            if (count == values.length) values = Arrays.copyOf(values, count * 2);
+            values[count] = value;
+            ordinals.put(value, count);
+            return count++;
+        }
+
+        String get(int ordinal) {
+            return values[ordinal];
+        }
+    }
+
+    /** Directory prefix trie; a node is one path segment and knows only its parent and its children. */
+    private static class PathTrie {
+        static final int NO_NODE = -1;
+        static final int ROOT = 0;
+
+        private int[] parents = new int[64];
+        private String[] segments = new String[64];
+        private final List<HashMap<String, Integer>> children = new ArrayList<>();
+        private int count = 1; // Node 0 is the root, which has no segment
+
+        PathTrie() {
+            parents[ROOT] = NO_NODE;
+            children.add(new HashMap<>());
+        }
+
+        /** Inserts the directory part {@code path[0, end)} and returns its node. */
+        int insert(String path, int end) {
+            int node = ROOT;
+            int start = 0;
+            while (true) {
+                int slash = path.indexOf('/', start);
+                int segmentEnd = slash < 0 || slash > end ? end : slash;
+                node = child(node, path.substring(start, segmentEnd));
+                if (segmentEnd == end) return node;
+                start = segmentEnd + 1;
+            }
+        }
+
+        private int child(int parent, String segment) {
+            HashMap<String, Integer> siblings = children.get(parent);
+            Integer existing = siblings.get(segment);
+            if (existing != null) return existing;
+            if (count == parents.length) {
+                parents = Arrays.copyOf(parents, count * 2);
+                segments = Arrays.copyOf(segments, count * 2);
+            }
+            int node = count++;
+            parents[node] = parent;
+            segments[node] = segment;
+            children.add(new HashMap<>(4));
+            siblings.put(segment, node);
+            return node;
+        }
+
+        void appendPath(int node, StringBuilder builder) {
+            int parent = parents[node];
+            if (parent != ROOT) {
+                appendPath(parent, builder);
+                builder.append('/');
+            }
+            builder.append(segments[node]);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.example.musicplayer;
+
+import android.os.Trace;
+
+import androidx.core.os.TraceCompat;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * System trace markers for Perfetto/systrace captures. Names are constants so they stay the same across
+ * releases and never build strings; the tap-to-audio path can be followed from setQueue or a skip press
+ * through prepare to the start of audio.
+ *
+ * Sections are nested on one thread and must be closed on it, in try/finally. Async sections may start
+ * and end on different threads and are matched by name and cookie.
+ */
+public final class Tracing {
+
+    // Sections
+    public static final String SYNC_LIBRARY = "MediaScanner.syncLibrary";
+    public static final String FETCH_AND_INDEX = "MediaScanner.fetchAndIndex";
+    public static final String BIND_SONG = "SongAdapter.onBindViewHolder";
+    public static final String PLAY_SONG_AT_INDEX = "PlaybackService.playSongAtIndex";
+    public static final String ON_PREPARED = "PlaybackService.onPrepared";
+    public static final String UPDATE_METADATA = "PlaybackService.updateMediaMetadata";
+    public static final String BUILD_NOTIFICATION = "MediaNotificationManager.build";
+    public static final String DECODE_ART = "ArtworkBroker.decode";
+
+    // Async sections
+    public static final String TAP_TO_AUDIO = "TapToAudio"; // setQueue or skip press until the track is audible
+    public static final String PREPARE = "Prepare";         // prepareAsync until onPrepared or failure
+
+    private static final AtomicInteger nextCookie = new AtomicInteger(1);
+
+    private Tracing() {
+    }
+
+    /** Cheap when tracing is off: the platform only reads a flag. */
+    public static void begin(String name) {
+        Trace.beginSection(name);
+    }
+
+    public static void end() {
+        Trace.endSection();
+    }
+
+    /** A cookie that no other async section in this process uses; never 0. */
+    public static int newCookie() {
+        int cookie = nextCookie.getAndIncrement();
+        return cookie != 0 ? cookie : nextCookie.getAndIncrement();
+    }
+
+    /**
+     * The cookie for an async section about song {@code songId}, so a trace shows which track it timed:
+     * the id folded to 32 bits. Only unique among sections of one name if the caller keeps at most one of
+     * that name open, as PlaybackService does; 0 is reserved, so it falls back to {@link #newCookie()}.
+     */
+    public static int cookieFor(long songId) {
+        int cookie = (int) (songId ^ (songId >>> 32));
+        return cookie != 0 ? cookie : newCookie();
+    }
+
+    // Async sections go through reflection before API 29, so they are skipped unless a trace is running
+    public static void beginAsync(String name, int cookie) {
+        if (TraceCompat.isEnabled()) TraceCompat.beginAsyncSection(name, cookie);
+    }
+
+    public static void endAsync(String name, int cookie) {
+        if (TraceCompat.isEnabled()) TraceCompat.endAsyncSection(name, cookie);
+    }
+}
@@ -0,0 +1,104 @@
+package com.example.musicplayer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/** The gapless transition path on the virtual clock: prepare, chain, complete, measure the gap. */
+public class FakePlaybackEngineTest {
+
+    private FakePlaybackEngine.Environment environment;
+    private final List<PlaybackEngine> prepared = new ArrayList<>();
+    private final List<PlaybackEngine> completed = new ArrayList<>();
+
+    private final PlaybackEngine.Listener listener = new PlaybackEngine.Listener() {
+        @Override
+        public void onPrepared(PlaybackEngine engine) {
+            prepared.add(engine);
+        }
+
+        @Override
+        public void onCompletion(PlaybackEngine engine) {
+            completed.add(engine);
+        }
+
+        @Override
+        public boolean onError(PlaybackEngine engine, int what, int extra) {
+            return true;
+        }
+    };
+
+    @Before
+    public void setUp() {
+        environment = new FakePlaybackEngine.Environment()
+                .addTrack("a.mp3", 1000)
+                .addTrack("b.mp3", 500)
+                .setPrepareLatency(20);
+    }
+
+    private PlaybackEngine prepare(String path) throws Exception {
+        PlaybackEngine engine = environment.create();
+        engine.setListener(listener);
+        engine.setDataSource(path);
+        engine.prepareAsync();
+        return engine;
+    }
+
+    @Test
+    public void chainedEngineStartsOnTheTickTheFirstCompletes() throws Exception {
+        PlaybackEngine first = prepare("a.mp3");
+        PlaybackEngine second = prepare("b.mp3");
+        environment.clock.advanceBy(20);
+        assertEquals(2, prepared.size());
+
+        first.start();
+        first.setNextEngine(second);
+        environment.clock.advanceBy(1000);
+
+        assertEquals(1, completed.size());
+        assertFalse(first.isPlaying());
+        assertTrue(second.isPlaying());
+        List<FakePlaybackEngine.Start> starts = environment.getStarts();
+        assertEquals(2, starts.size());
+        assertEquals("b.mp3", starts.get(1).path);
+        assertTrue(starts.get(1).chained);
+        long endOfFirst = starts.get(0).atMs + 1000;
+        assertEquals(0, starts.get(1).atMs - endOfFirst); // No gap
+
+        environment.clock.advanceBy(500);
+        assertEquals(2, completed.size());
+        assertFalse(second.isPlaying());
+    }
+
+    @Test
+    public void unchainedEngineWaitsForItsOwnStart() throws Exception {
+        PlaybackEngine first = prepare("a.mp3");
+        PlaybackEngine second = prepare("b.mp3");
+        environment.clock.advanceBy(20);
+
+        first.start();
+        environment.clock.advanceBy(1000);
+        assertEquals(1, completed.size());
+        assertFalse(second.isPlaying());
+
+        environment.clock.advanceBy(30); // A late start by the completion handler
+        second.start();
+        List<FakePlaybackEngine.Start> starts = environment.getStarts();
+        assertFalse(starts.get(1).chained);
+        assertEquals(30, starts.get(1).atMs - (starts.get(0).atMs + 1000));
+    }
+
+    @Test
+    public void resetRestoresUnityGain() throws Exception {
+        FakePlaybackEngine engine = (FakePlaybackEngine) prepare("a.mp3");
+        engine.setGain(0.5f);
+        engine.reset();
+        assertEquals(1f, engine.getGain(), 0f);
+    }
+}
@@ -0,0 +1,157 @@
+package com.example.musicplayer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The gain wait on the virtual clock, driven the way PlaybackService drives it: onPrepared asks the gate
+ * before starting or chaining, and a finished lookup sets the gain and lets a held engine through.
+ */
+public class GainGateTest {
+
+    private FakePlaybackEngine.Environment environment;
+    private GainGate gate;
+    private PlaybackEngine current;
+    private PlaybackEngine next;
+
+    private final PlaybackEngine.Listener listener = new PlaybackEngine.Listener() {
+        @Override
+        public void onPrepared(PlaybackEngine engine) {
+            if ((engine == current || engine == next) && !gate.admit(engine)) return;
+            if (engine == current) {
+                engine.start();
+            } else if (engine == next) {
+                current.setNextEngine(engine);
+            }
+        }
+
+        @Override
+        public void onCompletion(PlaybackEngine engine) {
+            if (engine == current) {
+                current = next;
+                next = null;
+            }
+        }
+
+        @Override
+        public boolean onError(PlaybackEngine engine, int what, int extra) {
+            return true;
+        }
+    };
+
+    @Before
+    public void setUp() {
+        environment = new FakePlaybackEngine.Environment()
+                .addTrack("a.mp3", 1000)
+                .addTrack("b.mp3", 500)
+                .setPrepareLatency(20);
+        gate = new GainGate();
+    }
+
+    private static Song song(long id, String path) {
+        SongTable table = new SongTable();
+        table.append(id, path, "Song " + id, "Artist", "Album", 1, 1000);
+        return table.get(0);
+    }
+
+    private PlaybackEngine prepare(PlaybackEngine engine, Song song) throws Exception {
+        engine.setListener(listener);
+        engine.setDataSource(song.getPath());
+        engine.prepareAsync();
+        return engine;
+    }
+
+    // As applyNormalization: the lookup answers after latencyMs, and only for the track the engine still holds
+    private void lookupGain(PlaybackEngine engine, Song song, float gain, long latencyMs) {
+        gate.expect(engine, song);
+        environment.clock.schedule(latencyMs, () -> {
+            boolean release = gate.resolve(engine, song);
+            if (!song.getPath().equals(((FakePlaybackEngine) engine).getPath())) return;
+            engine.setGain(gain);
+            if (release) listener.onPrepared(engine);
+        });
+    }
+
+    @Test
+    public void startWaitsForALateGain() throws Exception {
+        Song a = song(1, "a.mp3");
+        current = environment.create();
+        lookupGain(current, a, 0.5f, 50);
+        prepare(current, a);
+
+        environment.clock.advanceBy(20);
+        assertFalse(current.isPlaying()); // Prepared, but the gain is not known yet
+        environment.clock.advanceBy(30);
+        assertTrue(current.isPlaying());
+
+        List<FakePlaybackEngine.Start> starts = environment.getStarts();
+        assertEquals(1, starts.size());
+        assertEquals(50, starts.get(0).atMs);
+        assertEquals(0.5f, starts.get(0).gain, 0f);
+    }
+
+    @Test
+    public void gainKnownBeforePrepareDoesNotHoldTheStart() throws Exception {
+        Song a = song(1, "a.mp3");
+        current = environment.create();
+        lookupGain(current, a, 0.8f, 5);
+        prepare(current, a);
+
+        environment.clock.advanceBy(20);
+        List<FakePlaybackEngine.Start> starts = environment.getStarts();
+        assertEquals(1, starts.size());
+        assertEquals(20, starts.get(0).atMs);
+        assertEquals(0.8f, starts.get(0).gain, 0f);
+    }
+
+    @Test
+    public void chainingWaitsForTheNextTracksGain() throws Exception {
+        Song a = song(1, "a.mp3");
+        Song b = song(2, "b.mp3");
+        current = environment.create();
+        lookupGain(current, a, 1f, 0);
+        prepare(current, a);
+        environment.clock.advanceBy(20);
+
+        next = environment.create();
+        lookupGain(next, b, 0.25f, 300);
+        prepare(next, b);
+        environment.clock.advanceBy(100);
+        environment.clock.advanceBy(1000);
+
+        List<FakePlaybackEngine.Start> starts = environment.getStarts();
+        assertEquals(2, starts.size());
+        FakePlaybackEngine.Start chained = starts.get(1);
+        assertTrue(chained.chained);
+        assertEquals(0, chained.atMs - (starts.get(0).atMs + 1000)); // Still gapless
+        assertEquals(0.25f, chained.gain, 0f); // And never at unity gain
+        assertTrue(current.isPlaying());
+    }
+
+    @Test
+    public void staleLookupDoesNotReleaseAReusedEngine() throws Exception {
+        Song a = song(1, "a.mp3");
+        Song b = song(2, "b.mp3");
+        current = environment.create();
+        lookupGain(current, a, 0.9f, 50);
+        prepare(current, a);
+        current.reset(); // Skipped before it started; the engine is reused for the next track
+        lookupGain(current, b, 0.4f, 80);
+        prepare(current, b);
+
+        environment.clock.advanceBy(50);
+        assertFalse(current.isPlaying()); // a's answer came back, but b's gain is still unknown
+        environment.clock.advanceBy(30);
+        List<FakePlaybackEngine.Start> starts = environment.getStarts();
+        assertEquals(1, starts.size());
+        assertEquals("b.mp3", starts.get(0).path);
+        assertEquals(80, starts.get(0).atMs);
+        assertEquals(0.4f, starts.get(0).gain, 0f);
+    }
+}
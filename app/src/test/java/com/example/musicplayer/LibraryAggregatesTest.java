@@ -0,0 +1,124 @@
+package com.example.musicplayer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/** Patching the groupings sync by sync must give the same groups as building them from scratch. */
+public class LibraryAggregatesTest {
+
+    private static final class Row {
+        final long id;
+        final String title;
+        final String artist;
+        final long albumId;
+
+        Row(long id, String title, String artist, long albumId) {
+            this.id = id;
+            this.title = title;
+            this.artist = artist;
+            this.albumId = albumId;
+        }
+    }
+
+    // In the index's SONG_SORT_ORDER, as build() gets it from the database
+    private static SongTable tableOf(Collection<Row> unsorted) {
+        List<Row> rows = new ArrayList<>(unsorted);
+        Collections.sort(rows, (a, b) -> {
+            int byTitle = a.title.compareToIgnoreCase(b.title);
+            return byTitle != 0 ? byTitle : Long.compare(a.id, b.id);
+        });
+        SongTable table = new SongTable();
+        for (Row row : rows) {
+            table.append(row.id, "/music/" + row.id + ".mp3", row.title, row.artist, "Album " + row.albumId, row.albumId, row.id * 10);
+        }
+        return table;
+    }
+
+    private static Row randomRow(Random random, long id) {
+        return new Row(id, "Title " + random.nextInt(50), "Artist " + random.nextInt(8), random.nextInt(12));
+    }
+
+    private static void assertSameGroups(LibraryAggregates expected, LibraryAggregates actual, int type) {
+        List<LibraryGroup> expectedGroups = expected.getGroups(type);
+        List<LibraryGroup> actualGroups = actual.getGroups(type);
+        assertEquals(expectedGroups.size(), actualGroups.size());
+        for (LibraryGroup group : expectedGroups) {
+            LibraryGroup other = actual.getGroup(type, group.key);
+            assertEquals("Group " + group.key, group.getTrackCount(), other.getTrackCount());
+            assertEquals(group.totalDuration, other.totalDuration);
+            Set<Long> ids = new HashSet<>();
+            for (Song track : group.tracks) ids.add(track.getId());
+            String previousTitle = null;
+            for (Song track : other.tracks) {
+                assertTrue("Unexpected track " + track.getId(), ids.contains(track.getId()));
+                if (previousTitle != null) {
+                    assertTrue("Out of order in " + group.key, previousTitle.compareToIgnoreCase(track.getTitle()) <= 0);
+                }
+                previousTitle = track.getTitle();
+            }
+        }
+    }
+
+    @Test
+    public void appliedSyncsMatchAFreshBuild() {
+        Random random = new Random(3);
+        Map<Long, Row> library = new LinkedHashMap<>();
+        long nextId = 1;
+        for (int i = 0; i < 200; i++, nextId++) library.put(nextId, randomRow(random, nextId));
+        LibraryAggregates aggregates = LibraryAggregates.build(tableOf(library.values()));
+
+        for (int sync = 0; sync < 50; sync++) {
+            List<Long> ids = new ArrayList<>(library.keySet());
+            List<Long> deleted = new ArrayList<>();
+            List<Row> upserted = new ArrayList<>();
+            for (int i = random.nextInt(20); i > 0 && !ids.isEmpty(); i--) {
+                long id = ids.remove(random.nextInt(ids.size()));
+                deleted.add(id);
+                library.remove(id);
+            }
+            for (int i = random.nextInt(20); i > 0 && !ids.isEmpty(); i--) {
+                long id = ids.remove(random.nextInt(ids.size()));
+                Row row = randomRow(random, id); // Retagged: may move to another album or artist
+                upserted.add(row);
+                library.put(id, row);
+            }
+            for (int i = random.nextInt(20); i > 0; i--, nextId++) {
+                Row row = randomRow(random, nextId);
+                upserted.add(row);
+                library.put(nextId, row);
+            }
+            long[] deletedIds = new long[deleted.size()];
+            for (int i = 0; i < deletedIds.length; i++) deletedIds[i] = deleted.get(i);
+            aggregates.apply(deletedIds, tableOf(upserted));
+
+            LibraryAggregates rebuilt = LibraryAggregates.build(tableOf(library.values()));
+            assertSameGroups(rebuilt, aggregates, LibraryGroup.TYPE_ALBUM);
+            assertSameGroups(rebuilt, aggregates, LibraryGroup.TYPE_ARTIST);
+        }
+    }
+
+    @Test
+    public void removingTheLastTrackDropsTheGroup() {
+        List<Row> rows = new ArrayList<>();
+        rows.add(new Row(1, "Only", "Solo", 5));
+        rows.add(new Row(2, "Other", "Band", 6));
+        LibraryAggregates aggregates = LibraryAggregates.build(tableOf(rows));
+        aggregates.apply(new long[]{1}, new SongTable());
+        assertNull(aggregates.getGroup(LibraryGroup.TYPE_ALBUM, "5"));
+        assertNull(aggregates.getGroup(LibraryGroup.TYPE_ARTIST, "Solo"));
+        assertEquals(1, aggregates.getGroups(LibraryGroup.TYPE_ALBUM).size());
+    }
+}
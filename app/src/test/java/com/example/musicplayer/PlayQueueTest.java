@@ -0,0 +1,123 @@
+package com.example.musicplayer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/** Every rope edit is checked against the same edit on an ArrayList. */
+public class PlayQueueTest {
+
+    private SongTable table;
+    private long nextId;
+
+    @Before
+    public void setUp() {
+        table = new SongTable();
+        nextId = 1;
+    }
+
+    private List<Song> newSongs(int count) {
+        int first = table.size();
+        for (int i = 0; i < count; i++) {
+            long id = nextId++;
+            table.append(id, "/music/" + id + ".mp3", "Song " + id, "Artist", "Album", 1, 1000);
+        }
+        return new ArrayList<>(table.rows(table.size()).subList(first, table.size()));
+    }
+
+    private static void assertSameSongs(List<Song> expected, PlayQueue actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals("Index " + i, expected.get(i).getId(), actual.get(i).getId());
+        }
+        Iterator<Song> iterator = actual.iterator();
+        for (Song song : expected) {
+            assertEquals(song.getId(), iterator.next().getId());
+        }
+        assertFalse(iterator.hasNext());
+    }
+
+    @Test
+    public void randomEditsMatchArrayList() {
+        Random random = new Random(7);
+        for (int round = 0; round < 50; round++) {
+            List<Song> expected = newSongs(random.nextInt(100));
+            PlayQueue queue = PlayQueue.of(new ArrayList<>(expected));
+            for (int step = 0; step < 300; step++) {
+                int action = random.nextInt(4);
+                if (action == 0 || expected.isEmpty()) {
+                    int index = random.nextInt(expected.size() + 1);
+                    List<Song> songs = newSongs(1 + random.nextInt(random.nextBoolean() ? 3 : 60));
+                    expected.addAll(index, songs);
+                    queue = queue.insert(index, songs);
+                } else if (action == 1) {
+                    int index = random.nextInt(expected.size());
+                    expected.remove(index);
+                    queue = queue.removeAt(index);
+                } else {
+                    int from = random.nextInt(expected.size());
+                    int to = random.nextInt(expected.size());
+                    expected.add(to, expected.remove(from));
+                    queue = queue.move(from, to);
+                }
+                assertSameSongs(expected, queue);
+            }
+        }
+    }
+
+    @Test
+    public void editsLeaveTheOriginalUnchanged() {
+        List<Song> songs = newSongs(50);
+        PlayQueue original = PlayQueue.of(songs);
+        original.insert(10, newSongs(5)).removeAt(3).move(0, 40).append(newSongs(2));
+        assertSameSongs(songs, original);
+    }
+
+    @Test
+    public void manyAppendsStayConsistent() {
+        List<Song> expected = new ArrayList<>();
+        PlayQueue queue = PlayQueue.EMPTY;
+        for (int i = 0; i < 2000; i++) {
+            List<Song> songs = newSongs(1);
+            expected.addAll(songs);
+            queue = queue.append(songs);
+        }
+        assertSameSongs(expected, queue);
+        assertSameSongs(Collections.emptyList(), PlayQueue.of(null));
+    }
+
+    @Test
+    public void outOfRangeIndexesThrow() {
+        PlayQueue queue = PlayQueue.of(newSongs(3));
+        int[][] moves = {{-1, 0}, {3, 0}, {0, -1}, {0, 3}};
+        for (int[] move : moves) {
+            try {
+                queue.move(move[0], move[1]);
+                fail("move(" + move[0] + ", " + move[1] + ") did not throw");
+            } catch (IndexOutOfBoundsException expected) {
+                // Expected
+            }
+        }
+        try {
+            queue.removeAt(3);
+            fail("removeAt(3) did not throw");
+        } catch (IndexOutOfBoundsException expected) {
+            // Expected
+        }
+        try {
+            queue.insert(4, newSongs(1));
+            fail("insert(4) did not throw");
+        } catch (IndexOutOfBoundsException expected) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.example.musicplayer;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SearchIndexTest {
+
+    private SongTable table;
+    private SearchIndex index;
+
+    @Before
+    public void setUp() {
+        table = new SongTable();
+        index = new SearchIndex();
+    }
+
+    private Song add(long id, String title, String artist, String album) {
+        table.append(id, "/music/" + id + ".mp3", title, artist, album, id, 1000);
+        Song song = table.get(table.size() - 1);
+        index.add(song);
+        return song;
+    }
+
+    @Test
+    public void infixMatchesInsideOneToken() {
+        Song song = add(1, "Unforgettable", "Nat", "Classics");
+        List<Song> results = index.search("getta", 10);
+        assertEquals(1, results.size());
+        assertEquals(song.getId(), results.get(0).getId());
+    }
+
+    @Test
+    public void infixDoesNotMatchAcrossTokens() {
+        add(1, "abcx", "zbcd", "other"); // Every trigram of "abcd" is in the doc, but in two tokens
+        assertEquals(0, index.search("abcd", 10).size());
+    }
+
+    @Test
+    public void prefixOutranksInfix() {
+        Song infix = add(1, "Rebellion", "Arcade", "Funeral");
+        Song prefix = add(2, "Bell Song", "Someone", "Album");
+        List<Song> results = index.search("bell", 10);
+        assertEquals(2, results.size());
+        assertEquals(prefix.getId(), results.get(0).getId());
+        assertEquals(infix.getId(), results.get(1).getId());
+    }
+}
@@ -0,0 +1,136 @@
+package com.example.musicplayer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class ShuffleEngineTest {
+
+    // Plays the next track the way PlaybackService does: peek, then move the cursor there.
+    private static int advance(ShuffleEngine shuffle) {
+        int next = shuffle.peekNext(false);
+        if (next >= 0) shuffle.moveTo(next);
+        return next;
+    }
+
+    @Test
+    public void everyTrackPlaysOncePerCycle() {
+        for (int size : new int[]{1, 2, 7, 100}) {
+            ShuffleEngine shuffle = new ShuffleEngine();
+            shuffle.reset(size, 0);
+            Set<Integer> seen = new HashSet<>();
+            seen.add(0);
+            for (int index = advance(shuffle); index >= 0; index = advance(shuffle)) {
+                assertTrue("Played twice: " + index, seen.add(index));
+            }
+            assertEquals(size, seen.size());
+        }
+    }
+
+    @Test
+    public void repeatStartsANewCycle() {
+        ShuffleEngine shuffle = new ShuffleEngine();
+        shuffle.reset(5, 2);
+        for (int i = 0; i < 4; i++) advance(shuffle);
+        assertEquals(-1, shuffle.peekNext(false));
+        int next = shuffle.peekNext(true);
+        assertTrue(next >= 0 && next < 5);
+        assertEquals(-1, shuffle.peekPrevious()); // History restarted with the new cycle
+    }
+
+    @Test
+    public void previousAndNextReplayTheHistory() {
+        ShuffleEngine shuffle = new ShuffleEngine();
+        shuffle.reset(50, 10);
+        List<Integer> history = new ArrayList<>();
+        history.add(10);
+        for (int i = 0; i < 8; i++) history.add(advance(shuffle));
+
+        for (int i = history.size() - 2; i >= 0; i--) {
+            int previous = shuffle.peekPrevious();
+            assertEquals(history.get(i).intValue(), previous);
+            shuffle.moveTo(previous);
+        }
+        assertEquals(-1, shuffle.peekPrevious());
+        for (int i = 1; i < history.size(); i++) {
+            assertEquals(history.get(i).intValue(), advance(shuffle));
+        }
+    }
+
+    @Test
+    public void pickingAnUndrawnTrackDropsThePeekedOne() {
+        ShuffleEngine shuffle = new ShuffleEngine();
+        shuffle.reset(20, 0);
+        int played = advance(shuffle);
+        int peeked = shuffle.peekNext(false); // Pre-prepared for gapless, never played
+        int picked = 0;
+        while (picked == 0 || picked == played || picked == peeked) picked++;
+        shuffle.moveTo(picked);
+
+        assertEquals(played, shuffle.peekPrevious());
+        Set<Integer> seen = new HashSet<>();
+        seen.add(0);
+        seen.add(played);
+        seen.add(picked);
+        for (int index = advance(shuffle); index >= 0; index = advance(shuffle)) {
+            assertTrue("Played twice: " + index, seen.add(index));
+        }
+        assertTrue("Peeked track never came back", seen.contains(peeked));
+        assertEquals(20, seen.size());
+    }
+
+    @Test
+    public void editsDuringACycleKeepThePermutationValid() {
+        Random random = new Random(42);
+        for (int round = 0; round < 200; round++) {
+            List<Integer> queue = new ArrayList<>(); // Track ids; the engine sees their indexes
+            int nextId = 0;
+            int size = 1 + random.nextInt(30);
+            for (int i = 0; i < size; i++) queue.add(nextId++);
+            ShuffleEngine shuffle = new ShuffleEngine();
+            int start = random.nextInt(size);
+            shuffle.reset(size, start);
+            Set<Integer> played = new HashSet<>();
+            played.add(queue.get(start));
+
+            while (true) {
+                int action = random.nextInt(6);
+                if (action == 0) {
+                    int index = random.nextInt(queue.size() + 1);
+                    int count = 1 + random.nextInt(3);
+                    for (int i = 0; i < count; i++) queue.add(index + i, nextId++);
+                    if (index == queue.size() - count) {
+                        shuffle.onAppended(count);
+                    } else {
+                        shuffle.onInserted(index, count);
+                    }
+                } else if (action == 1 && queue.size() > 1) {
+                    int index = random.nextInt(queue.size());
+                    queue.remove(index);
+                    shuffle.onRemoved(index);
+                } else if (action == 2) {
+                    int from = random.nextInt(queue.size());
+                    int to = random.nextInt(queue.size());
+                    queue.add(to, queue.remove(from));
+                    shuffle.onMoved(from, to);
+                } else if (action == 3) {
+                    shuffle.peekNext(false); // Gapless pre-prepare, which may not be played
+                } else {
+                    int next = advance(shuffle);
+                    if (next < 0) break;
+                    assertTrue("Played twice in a cycle: " + queue.get(next), played.add(queue.get(next)));
+                }
+            }
+            for (int id : queue) {
+                assertTrue("Never played: " + id, played.contains(id));
+            }
+        }
+    }
+}